@@ -13,11 +13,10 @@ import android.widget.GridLayout;
 import android.widget.PopupWindow;
 import android.widget.ToggleButton;
 
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.nio.charset.StandardCharsets;
 
 import xeffyr.alpine.term.R;
+import xeffyr.alpine.term.terminal.KeyHandler;
 import xeffyr.alpine.term.terminal.TerminalSession;
 import xeffyr.alpine.term.view.TerminalView;
 
@@ -33,9 +32,10 @@ public final class ExtraKeysView extends GridLayout {
 
     private ToggleButton controlButton;
     private ToggleButton altButton;
-    private ScheduledExecutorService scheduledExecutor;
     private PopupWindow popupWindow;
     private int longPressCount;
+    /** The modifiers applied to the repeats of the held key, read from the toggle buttons on the first repeat. */
+    private int repeatKeyMod;
 
 
     public ExtraKeysView(Context context, AttributeSet attrs) {
@@ -43,53 +43,66 @@ public final class ExtraKeysView extends GridLayout {
         reload();
     }
 
-    private static void sendKey(View view, String keyName) {
-        int keyCode = 0;
-        String chars = null;
+    /** Get the key code sent by an extra key, or 0 if it sends text, see {@link #getKeyChars(String)}. */
+    private static int getKeyCode(String keyName) {
         switch (keyName) {
             case "ESC":
-                keyCode = KeyEvent.KEYCODE_ESCAPE;
-                break;
+                return KeyEvent.KEYCODE_ESCAPE;
             case "TAB":
-                keyCode = KeyEvent.KEYCODE_TAB;
-                break;
+                return KeyEvent.KEYCODE_TAB;
             case "HOME":
-                keyCode = KeyEvent.KEYCODE_MOVE_HOME;
-                break;
+                return KeyEvent.KEYCODE_MOVE_HOME;
             case "END":
-                keyCode = KeyEvent.KEYCODE_MOVE_END;
-                break;
+                return KeyEvent.KEYCODE_MOVE_END;
             case "PGUP":
-                keyCode = KeyEvent.KEYCODE_PAGE_UP;
-                break;
+                return KeyEvent.KEYCODE_PAGE_UP;
             case "PGDN":
-                keyCode = KeyEvent.KEYCODE_PAGE_DOWN;
-                break;
+                return KeyEvent.KEYCODE_PAGE_DOWN;
             case "↑":
-                keyCode = KeyEvent.KEYCODE_DPAD_UP;
-                break;
+                return KeyEvent.KEYCODE_DPAD_UP;
             case "←":
-                keyCode = KeyEvent.KEYCODE_DPAD_LEFT;
-                break;
+                return KeyEvent.KEYCODE_DPAD_LEFT;
             case "→":
-                keyCode = KeyEvent.KEYCODE_DPAD_RIGHT;
-                break;
+                return KeyEvent.KEYCODE_DPAD_RIGHT;
             case "↓":
-                keyCode = KeyEvent.KEYCODE_DPAD_DOWN;
-                break;
-            case "―":
-                chars = "-";
-                break;
+                return KeyEvent.KEYCODE_DPAD_DOWN;
             default:
-                chars = keyName;
+                return 0;
         }
+    }
 
+    /** Get the text sent by an extra key without a key code. */
+    private static String getKeyChars(String keyName) {
+        return "―".equals(keyName) ? "-" : keyName;
+    }
+
+    private static void sendKey(View view, String keyName) {
+        int keyCode = getKeyCode(keyName);
         TerminalView terminalView = view.findViewById(R.id.terminal_view);
         if (keyCode > 0) {
             terminalView.onKeyDown(keyCode, new KeyEvent(KeyEvent.ACTION_UP, keyCode));
         } else {
             TerminalSession session = terminalView.getCurrentSession();
-            if (session != null) session.write(chars);
+            if (session != null) session.write(getKeyChars(keyName));
+        }
+    }
+
+    /**
+     * Send a held key again. The key code or text is resolved when the key is pressed, so repeats write the escape
+     * sequence directly instead of going through a synthetic {@link KeyEvent}.
+     */
+    private void repeatKey(View view, int keyCode, byte[] chars, int count) {
+        if (keyCode > 0 && count == 1) {
+            repeatKeyMod = (readControlButton() ? KeyHandler.KEYMOD_CTRL : 0) | (readAltButton() ? KeyHandler.KEYMOD_ALT : 0);
+        }
+
+        TerminalView terminalView = view.findViewById(R.id.terminal_view);
+        TerminalSession session = terminalView.getCurrentSession();
+        if (session == null || session.getEmulator() == null) return;
+        if (keyCode > 0) {
+            terminalView.handleKeyCode(keyCode, repeatKeyMod);
+        } else {
+            session.write(chars, 0, chars.length);
         }
     }
 
@@ -148,6 +161,12 @@ public final class ExtraKeysView extends GridLayout {
         popupWindow.showAsDropDown(view, 0, -2 * height);
     }
 
+    @Override
+    protected void onDetachedFromWindow() {
+        KeyRepeater.get().stop();
+        super.onDetachedFromWindow();
+    }
+
     @SuppressLint("ClickableViewAccessibility")
     private void reload() {
         altButton = controlButton = null;
@@ -211,24 +230,25 @@ public final class ExtraKeysView extends GridLayout {
                     }
                 });
 
+                final boolean repeatable = !"CTRL".equals(buttonText) && !"ALT".equals(buttonText);
+                final int keyCode = getKeyCode(buttonText);
+                final byte[] keyChars = (keyCode > 0) ? null : getKeyChars(buttonText).getBytes(StandardCharsets.UTF_8);
                 button.setOnTouchListener((v, event) -> {
                     final View root = getRootView();
                     switch (event.getAction()) {
                         case MotionEvent.ACTION_DOWN:
                             longPressCount = 0;
                             v.setBackgroundColor(BUTTON_PRESSED_COLOR);
-                            if ("↑↓←→".contains(buttonText)) {
-                                scheduledExecutor = Executors.newSingleThreadScheduledExecutor();
-                                scheduledExecutor.scheduleWithFixedDelay(() -> {
-                                    longPressCount++;
-                                    sendKey(root, buttonText);
-                                }, 400, 80, TimeUnit.MILLISECONDS);
+                            if (repeatable) {
+                                KeyRepeater.get().start(count -> repeatKey(root, keyCode, keyChars, count));
                             }
                             return true;
                         case MotionEvent.ACTION_MOVE:
-                            if ("―/|>".contains(buttonText)) {
+                            if ("―/|>".contains(buttonText) || "ESC".equals(buttonText)) {
                                 if (popupWindow == null && event.getY() < 0) {
                                     v.setBackgroundColor(BUTTON_COLOR);
+                                    // Swiping up selects the alternative character instead of repeating.
+                                    longPressCount += KeyRepeater.get().stop();
 
                                     switch (buttonText) {
                                         case "―":
@@ -243,6 +263,9 @@ public final class ExtraKeysView extends GridLayout {
                                         case ">":
                                             popup(v, "<");
                                             break;
+                                        case "ESC":
+                                            popup(v, "MACRO");
+                                            break;
                                     }
                                 }
                                 if (popupWindow != null && event.getY() > 0) {
@@ -255,12 +278,9 @@ public final class ExtraKeysView extends GridLayout {
                         case MotionEvent.ACTION_UP:
                         case MotionEvent.ACTION_CANCEL:
                             v.setBackgroundColor(BUTTON_COLOR);
-                            if (scheduledExecutor != null) {
-                                scheduledExecutor.shutdownNow();
-                                scheduledExecutor = null;
-                            }
+                            if (repeatable) longPressCount += KeyRepeater.get().stop();
                             if (longPressCount == 0) {
-                                if (popupWindow != null && "―/|>".contains(buttonText)) {
+                                if (popupWindow != null && ("―/|>".contains(buttonText) || "ESC".equals(buttonText))) {
                                     popupWindow.setContentView(null);
                                     popupWindow.dismiss();
                                     popupWindow = null;
@@ -278,6 +298,9 @@ public final class ExtraKeysView extends GridLayout {
                                         case ">":
                                             sendKey(root, "<");
                                             break;
+                                        case "ESC":
+                                            ((TerminalActivity) getContext()).showMacroSelection();
+                                            break;
                                     }
                                 } else {
                                     v.performClick();
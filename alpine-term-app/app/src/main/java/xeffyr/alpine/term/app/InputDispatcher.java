@@ -46,6 +46,11 @@ public final class InputDispatcher implements TerminalViewClient {
         if (mgr != null) mgr.showSoftInput(mActivity.mTerminalView, InputMethodManager.SHOW_IMPLICIT);
     }
 
+    @Override
+    public void copySelectedText(TerminalEmulator emulator, int x1, int y1, int x2, int y2) {
+        SelectionCopier.copy(mActivity, emulator, x1, y1, x2, y2);
+    }
+
     @Override
     public boolean shouldBackButtonBeMappedToEscape() {
         return mActivity.mSettings.isBackEscape();
@@ -73,6 +78,12 @@ public final class InputDispatcher implements TerminalViewClient {
                 mActivity.switchToSession(true);
             } else if (keyCode == KeyEvent.KEYCODE_DPAD_UP || unicodeChar == 'p' /* previous */) {
                 mActivity.switchToSession(false);
+            } else if (keyCode == KeyEvent.KEYCODE_PAGE_UP) {
+                mActivity.mTerminalView.scrollToCommand(true);
+            } else if (keyCode == KeyEvent.KEYCODE_PAGE_DOWN) {
+                mActivity.mTerminalView.scrollToCommand(false);
+            } else if (unicodeChar == 'o'/* output */) {
+                mActivity.copyCommandOutput();
             } else if (keyCode == KeyEvent.KEYCODE_DPAD_RIGHT) {
                 mActivity.getDrawer().openDrawer(Gravity.LEFT);
             } else if (keyCode == KeyEvent.KEYCODE_DPAD_LEFT) {
@@ -216,12 +227,16 @@ public final class InputDispatcher implements TerminalViewClient {
                 case 'q':
                     mActivity.toggleShowExtraKeys();
                     break;
+                case 'm':
+                    mActivity.showMacroSelection();
+                    break;
             }
 
             if (resultingKeyCode != -1) {
                 TerminalEmulator term = session.getEmulator();
-                session.write(KeyHandler.getCode(resultingKeyCode, 0,
-                    term.isCursorKeysApplicationMode(), term.isKeypadApplicationMode()));
+                byte[] code = KeyHandler.getCodeBytes(resultingKeyCode, 0,
+                    term.isCursorKeysApplicationMode(), term.isKeypadApplicationMode());
+                session.write(code, 0, code.length);
             } else if (resultingCodePoint != -1) {
                 session.writeCodePoint(altDown, resultingCodePoint);
             }
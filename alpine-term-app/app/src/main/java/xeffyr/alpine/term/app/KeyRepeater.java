@@ -0,0 +1,65 @@
+package xeffyr.alpine.term.app;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Repeats a held key on the main thread, shared by all views of the application since only one key repeats at a time.
+ * <p>
+ * The first repeat comes after {@link #INITIAL_DELAY_MILLIS}, after which the interval shrinks with every repeat from
+ * {@link #START_INTERVAL_MILLIS} down to {@link #MIN_INTERVAL_MILLIS}, so that a key held longer moves faster.
+ */
+final class KeyRepeater implements Runnable {
+
+    interface Listener {
+        /** Called for every repeat of the held key, with the number of repeats so far including this one. */
+        void onKeyRepeat(int count);
+    }
+
+    private static final long INITIAL_DELAY_MILLIS = 400;
+    private static final long START_INTERVAL_MILLIS = 80;
+    private static final long MIN_INTERVAL_MILLIS = 20;
+    /** The amount the interval shrinks by with every repeat. */
+    private static final long ACCELERATION_MILLIS = 4;
+
+    private static KeyRepeater sInstance;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private Listener mListener;
+    private int mCount;
+    private long mInterval;
+
+    private KeyRepeater() {
+    }
+
+    /** Get the key repeater of the application. Must be called on the main thread. */
+    static KeyRepeater get() {
+        if (sInstance == null) sInstance = new KeyRepeater();
+        return sInstance;
+    }
+
+    /** Start repeating a key which has just been pressed, stopping the key repeated before if any. */
+    void start(Listener listener) {
+        stop();
+        mListener = listener;
+        mInterval = START_INTERVAL_MILLIS;
+        mMainHandler.postDelayed(this, INITIAL_DELAY_MILLIS);
+    }
+
+    /** Stop repeating when the key is released, returning the number of times it was repeated. */
+    int stop() {
+        final int count = mCount;
+        mMainHandler.removeCallbacks(this);
+        mListener = null;
+        mCount = 0;
+        return count;
+    }
+
+    @Override
+    public void run() {
+        if (mListener == null) return;
+        mMainHandler.postDelayed(this, mInterval);
+        mInterval = Math.max(MIN_INTERVAL_MILLIS, mInterval - ACCELERATION_MILLIS);
+        mListener.onKeyRepeat(++mCount);
+    }
+}
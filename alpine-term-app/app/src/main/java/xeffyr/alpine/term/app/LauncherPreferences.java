@@ -17,6 +17,7 @@ import java.util.regex.PatternSyntaxException;
 
 import xeffyr.alpine.term.R;
 import xeffyr.alpine.term.terminal.EmulatorDebug;
+import xeffyr.alpine.term.terminal.TerminalEmulator;
 
 public class LauncherPreferences extends PreferenceActivity {
 
@@ -44,6 +45,21 @@ public class LauncherPreferences extends PreferenceActivity {
             prefsEditor.putString(context.getString(R.string.qemu_upstream_dns_key), "1.1.1.1");
         }
 
+        if (prefs.getString(context.getString(R.string.terminal_max_fps_key), "").isEmpty()) {
+            prefsEditor.putString(context.getString(R.string.terminal_max_fps_key), "0");
+        }
+
+        // Limits above the largest one are not offered, so reset them to the default:
+        if (prefs.getString(context.getString(R.string.terminal_clipboard_limit_key), "").isEmpty()
+            || TerminalPreferences.getClipboardLimit(context) > TerminalEmulator.MAX_CLIPBOARD_LIMIT) {
+            prefsEditor.putString(context.getString(R.string.terminal_clipboard_limit_key), String.valueOf(TerminalEmulator.DEFAULT_CLIPBOARD_LIMIT));
+        }
+
+        // Triggers may be cleared by the user, so only set when missing:
+        if (!prefs.contains(context.getString(R.string.terminal_triggers_key))) {
+            prefsEditor.putString(context.getString(R.string.terminal_triggers_key), "BUILD SUCCESSFUL\nlogin:\nKernel panic");
+        }
+
         prefsEditor.apply();
     }
 
@@ -58,6 +74,8 @@ public class LauncherPreferences extends PreferenceActivity {
             findPreference(getString(R.string.qemu_cdrom_path_key)).setOnPreferenceChangeListener(this);
             findPreference(getString(R.string.qemu_upstream_dns_key)).setOnPreferenceChangeListener(this);
             findPreference(getString(R.string.qemu_exposed_ports_key)).setOnPreferenceChangeListener(this);
+            findPreference(getString(R.string.terminal_triggers_key)).setOnPreferenceChangeListener(this);
+            findPreference(getString(R.string.terminal_macros_key)).setOnPreferenceChangeListener(this);
         }
 
         @Override
@@ -72,6 +90,10 @@ public class LauncherPreferences extends PreferenceActivity {
                 return validateIp(value.toString());
             } else if (preference.getKey().equals(getString(R.string.qemu_exposed_ports_key))) {
                 return validatePortForwardingRules(value.toString());
+            } else if (preference.getKey().equals(getString(R.string.terminal_triggers_key))) {
+                return validateTriggers(value.toString());
+            } else if (preference.getKey().equals(getString(R.string.terminal_macros_key))) {
+                return validateMacros(value.toString());
             }
 
             // Do not perform input validation in any other cases.
@@ -112,6 +134,40 @@ public class LauncherPreferences extends PreferenceActivity {
             return false;
         }
 
+        private boolean validateTriggers(String triggers) {
+            for (String trigger : TerminalPreferences.parseTriggerPatterns(triggers)) {
+                if (trigger.length() > 2 && trigger.startsWith("/") && trigger.endsWith("/")) {
+                    try {
+                        Pattern.compile(trigger.substring(1, trigger.length() - 1));
+                    } catch (PatternSyntaxException e) {
+                        new AlertDialog.Builder(getActivity())
+                            .setIcon(android.R.drawable.ic_dialog_alert)
+                            .setTitle(R.string.pref_dialog_invalid_trigger_title)
+                            .setMessage(getString(R.string.pref_dialog_invalid_trigger_body, trigger, e.getDescription()))
+                            .setPositiveButton(R.string.ok_label, (dialogInterface, i) -> dialogInterface.dismiss()).show();
+                        return false;
+                    }
+                }
+            }
+
+            return true;
+        }
+
+        private boolean validateMacros(String macros) {
+            try {
+                Macro.parse(macros);
+            } catch (IllegalArgumentException e) {
+                new AlertDialog.Builder(getActivity())
+                    .setIcon(android.R.drawable.ic_dialog_alert)
+                    .setTitle(R.string.pref_dialog_invalid_macro_title)
+                    .setMessage(getString(R.string.pref_dialog_invalid_macro_body, e.getMessage()))
+                    .setPositiveButton(R.string.ok_label, (dialogInterface, i) -> dialogInterface.dismiss()).show();
+                return false;
+            }
+
+            return true;
+        }
+
         private boolean validateIp(String ip) {
             String regex = "^(25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?)\\." +
                 "(25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?)\\." +
@@ -0,0 +1,169 @@
+package xeffyr.alpine.term.app;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import xeffyr.alpine.term.R;
+import xeffyr.alpine.term.terminal.EmulatorDebug;
+import xeffyr.alpine.term.terminal.TerminalSession;
+
+/**
+ * A named sequence of input defined in the settings, which is sent to a session with a single write instead of as
+ * separate key presses.
+ * <p>
+ * Macros are defined one per line as "name=text". The text may contain the escapes \r, \n, \t, \e (escape), \\,
+ * \^ and \xHH (a byte in hex), ^X for a control character such as ^C, and \wN to wait N milliseconds before sending
+ * the rest. Waiting is done by posting to the main thread, so the text is split into parts written separately.
+ */
+final class Macro {
+
+    private static final Handler MAIN_HANDLER = new Handler(Looper.getMainLooper());
+
+    /** The macros parsed from {@link #sDefinitions}, so that they are only encoded when changed. */
+    private static List<Macro> sMacros = Collections.emptyList();
+    private static String sDefinitions = "";
+
+    final String mName;
+    /** The encoded input, split where waiting. */
+    private final byte[][] mParts;
+    /** The time to wait before sending each part, in milliseconds. */
+    private final long[] mDelays;
+
+    private Macro(String name, List<byte[]> parts, List<Long> delays) {
+        mName = name;
+        mParts = parts.toArray(new byte[0][]);
+        mDelays = new long[delays.size()];
+        for (int i = 0; i < mDelays.length; i++) mDelays[i] = delays.get(i);
+    }
+
+    /** Get the macros as set in {@link LauncherPreferences}, which are only parsed again when changed. */
+    static List<Macro> getMacros(Context context) {
+        String definitions = PreferenceManager.getDefaultSharedPreferences(context).getString(context.getString(R.string.terminal_macros_key), "");
+        if (!definitions.equals(sDefinitions)) {
+            try {
+                sMacros = parse(definitions);
+            } catch (IllegalArgumentException e) {
+                Log.e(EmulatorDebug.LOG_TAG, "Invalid macro definitions", e);
+                sMacros = Collections.emptyList();
+            }
+            sDefinitions = definitions;
+        }
+        return sMacros;
+    }
+
+    /**
+     * Parse macro definitions, one per non-empty line. Lines starting with '#' are comments.
+     *
+     * @throws IllegalArgumentException with a message describing the invalid line.
+     */
+    static List<Macro> parse(String definitions) {
+        List<Macro> macros = new ArrayList<>();
+        for (String line : definitions.split("\n")) {
+            if (line.trim().isEmpty() || line.trim().startsWith("#")) continue;
+
+            final int separator = line.indexOf('=');
+            if (separator <= 0 || line.substring(0, separator).trim().isEmpty()) {
+                throw new IllegalArgumentException("Missing name=text in: " + line);
+            }
+            final String name = line.substring(0, separator).trim();
+            final String text = line.substring(separator + 1).replaceFirst("^\\s+", "");
+
+            List<byte[]> parts = new ArrayList<>();
+            List<Long> delays = new ArrayList<>();
+            ByteArrayOutputStream part = new ByteArrayOutputStream();
+            long delay = 0;
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (c == '^' && i + 1 < text.length()) {
+                    char control = text.charAt(++i);
+                    if (control == '?') {
+                        part.write(127);
+                    } else if (Character.toUpperCase(control) >= '@' && Character.toUpperCase(control) <= '_') {
+                        part.write(Character.toUpperCase(control) & 0x1F);
+                    } else {
+                        throw new IllegalArgumentException("Invalid control character ^" + control + " in: " + line);
+                    }
+                } else if (c == '\\' && i + 1 < text.length()) {
+                    char escape = text.charAt(++i);
+                    switch (escape) {
+                        case 'r':
+                            part.write('\r');
+                            break;
+                        case 'n':
+                            part.write('\n');
+                            break;
+                        case 't':
+                            part.write('\t');
+                            break;
+                        case 'e':
+                            part.write(27);
+                            break;
+                        case '\\':
+                        case '^':
+                            part.write(escape);
+                            break;
+                        case 'x':
+                            if (i + 2 >= text.length()) throw new IllegalArgumentException("Incomplete \\x in: " + line);
+                            try {
+                                part.write(Integer.parseInt(text.substring(i + 1, i + 3), 16));
+                            } catch (NumberFormatException e) {
+                                throw new IllegalArgumentException("Invalid \\x" + text.substring(i + 1, i + 3) + " in: " + line);
+                            }
+                            i += 2;
+                            break;
+                        case 'w': {
+                            int end = i + 1;
+                            while (end < text.length() && Character.isDigit(text.charAt(end))) end++;
+                            if (end == i + 1 || end - i > 6) throw new IllegalArgumentException("Invalid \\w in: " + line);
+                            if (part.size() > 0 || !parts.isEmpty()) {
+                                parts.add(part.toByteArray());
+                                delays.add(delay);
+                                part.reset();
+                                delay = 0;
+                            }
+                            delay += Long.parseLong(text.substring(i + 1, end));
+                            i = end - 1;
+                            break;
+                        }
+                        default:
+                            throw new IllegalArgumentException("Invalid escape \\" + escape + " in: " + line);
+                    }
+                } else {
+                    final int end = (Character.isHighSurrogate(c) && i + 1 < text.length()) ? i + 2 : i + 1;
+                    byte[] bytes = text.substring(i, end).getBytes(StandardCharsets.UTF_8);
+                    part.write(bytes, 0, bytes.length);
+                    i = end - 1;
+                }
+            }
+            if (part.size() > 0 || parts.isEmpty()) {
+                parts.add(part.toByteArray());
+                delays.add(delay);
+            }
+            macros.add(new Macro(name, parts, delays));
+        }
+        return macros;
+    }
+
+    /** Send the macro to a session, writing each part at once and waiting between them without blocking. */
+    void send(TerminalSession session) {
+        long time = 0;
+        for (int i = 0; i < mParts.length; i++) {
+            final byte[] part = mParts[i];
+            time += mDelays[i];
+            if (time == 0) {
+                session.write(part, 0, part.length);
+            } else {
+                MAIN_HANDLER.postDelayed(() -> session.write(part, 0, part.length), time);
+            }
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package xeffyr.alpine.term.app;
+
+import android.content.ClipData;
+import android.content.ClipboardManager;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.Gravity;
+import android.widget.Toast;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import xeffyr.alpine.term.R;
+import xeffyr.alpine.term.terminal.EmulatorDebug;
+import xeffyr.alpine.term.terminal.TerminalBuffer;
+import xeffyr.alpine.term.terminal.TerminalEmulator;
+
+/**
+ * Copies text selected in a terminal to the clipboard.
+ * <p>
+ * Small selections are copied directly. Larger ones are read from the terminal buffer on the main thread in chunks of
+ * rows and assembled on a background thread, like {@link TranscriptExporter} does, reporting progress in toasts. Text
+ * longer than {@link #MAX_CLIPBOARD_CHARS} does not fit in a clipboard transaction, so it is written to a file which is
+ * put on the clipboard as a content URI of {@link TranscriptProvider} instead. Each such copy gets a file of its own,
+ * so that a copy does not change the text of an earlier clip while it is being pasted, and files of earlier copies are
+ * deleted.
+ */
+final class SelectionCopier extends Thread {
+
+    /** The number of rows read from the terminal at a time, and the largest selection copied directly. */
+    private static final int CHUNK_ROWS = 128;
+    /** The maximal length of text put on the clipboard, which is kept well below the binder transaction limit. */
+    private static final int MAX_CLIPBOARD_CHARS = 256 * 1024;
+    /** The minimal time between progress reports. */
+    private static final long PROGRESS_INTERVAL_MILLIS = 1000;
+    /** Whitespace is held back to trim the end of the text, but only up to this length. */
+    private static final int MAX_PENDING_WHITESPACE = 8192;
+    /** The start of the names of files with copied text, which are followed by a unique part. */
+    private static final String FILE_NAME_PREFIX = "alpine-term_selection-";
+
+    /** The application context, so that the activity is not kept while copying. */
+    private final Context mContext;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final TerminalEmulator mEmulator;
+    private final TerminalBuffer mBuffer;
+    private final int mSelX1, mSelX2;
+    /** The numbers of the first and last selected rows, see {@link TerminalBuffer#getRowNumber(int)}. */
+    private final long mFirstRowNumber, mLastRowNumber;
+    private long mNextRowNumber;
+
+    /** The text copied so far, or null once written to {@link #mFileOut} instead. */
+    private StringBuilder mText = new StringBuilder();
+    private File mFile;
+    private Writer mFileOut;
+    /** If text other than whitespace has been copied, so that leading whitespace is trimmed. */
+    private boolean mStarted;
+    private final StringBuilder mPendingWhitespace = new StringBuilder();
+    /** The last progress toast shown, to replace it with the next one. Only accessed on the main thread. */
+    private Toast mLastToast;
+
+    /**
+     * Copy the selected text to the clipboard, with leading and trailing whitespace trimmed. Must be called on the main
+     * thread.
+     *
+     * @param x1 the first selected column on the first row.
+     * @param y1 the first selected row, in external coordinates of the current screen.
+     * @param x2 the last selected column on the last row.
+     * @param y2 the last selected row.
+     */
+    static void copy(TerminalActivity activity, TerminalEmulator emulator, int x1, int y1, int x2, int y2) {
+        if (y2 - y1 < CHUNK_ROWS) {
+            setClipboardText(activity, emulator.getSelectedText(x1, y1, x2, y2).trim());
+        } else {
+            SelectionCopier copier = new SelectionCopier(activity.getApplicationContext(), emulator, x1, y1, x2, y2);
+            copier.showToast(activity.getString(R.string.copy_selection_toast_progress, 0), false);
+            copier.start();
+        }
+    }
+
+    private SelectionCopier(Context context, TerminalEmulator emulator, int x1, int y1, int x2, int y2) {
+        mContext = context;
+        mEmulator = emulator;
+        mBuffer = emulator.getScreen();
+        mSelX1 = x1;
+        mSelX2 = x2;
+        mFirstRowNumber = mNextRowNumber = mBuffer.getRowNumber(y1);
+        mLastRowNumber = mBuffer.getRowNumber(y2);
+    }
+
+    @Override
+    public void run() {
+        long lastProgressTime = SystemClock.uptimeMillis();
+        try {
+            String chunk;
+            while ((chunk = copyNextChunk()) != null) {
+                append(chunk);
+
+                final long now = SystemClock.uptimeMillis();
+                if (now - lastProgressTime >= PROGRESS_INTERVAL_MILLIS) {
+                    lastProgressTime = now;
+                    final int percent = (int) (100 * (mNextRowNumber - mFirstRowNumber) / (mLastRowNumber - mFirstRowNumber + 1));
+                    mMainHandler.post(() -> showToast(mContext.getString(R.string.copy_selection_toast_progress, percent), false));
+                }
+            }
+            if (mFileOut != null) mFileOut.close();
+        } catch (IOException | ExecutionException | InterruptedException e) {
+            Log.e(EmulatorDebug.LOG_TAG, "Failed to copy selection", e);
+            if (mFileOut != null) {
+                try {
+                    mFileOut.close();
+                } catch (IOException closeException) {
+                    // Ignore.
+                }
+            }
+            mMainHandler.post(() -> showToast(mContext.getString(R.string.copy_selection_toast_failed), true));
+            return;
+        }
+
+        if (mText != null) {
+            final String text = mText.toString();
+            mMainHandler.post(() -> {
+                setClipboardText(mContext, text);
+                showToast(mContext.getString(R.string.copy_selection_toast_copied), false);
+            });
+        } else {
+            final Uri uri = TranscriptProvider.getUriForFile(mFile);
+            mMainHandler.post(() -> {
+                ClipboardManager clipboard = (ClipboardManager) mContext.getSystemService(Context.CLIPBOARD_SERVICE);
+                if (clipboard != null) clipboard.setPrimaryClip(ClipData.newUri(mContext.getContentResolver(), mFile.getName(), uri));
+                showToast(mContext.getString(R.string.copy_selection_toast_copied_as_file), true);
+            });
+        }
+    }
+
+    /**
+     * Get the text of the next chunk of rows on the main thread, followed by a newline unless the chunk ends with a
+     * wrapped row or the selection. Returns null when done.
+     */
+    private String copyNextChunk() throws ExecutionException, InterruptedException {
+        FutureTask<String> task = new FutureTask<>(() -> {
+            // Rows may have been evicted from the transcript, or output may have scrolled rows out of the selection.
+            final long first = Math.max(mNextRowNumber, mBuffer.getFirstRowNumber());
+            final long last = Math.min(Math.min(mLastRowNumber, mBuffer.getLastRowNumber()), first + CHUNK_ROWS - 1);
+            if (first > last) return null;
+            mNextRowNumber = last + 1;
+
+            final long screenStart = mBuffer.getRowNumber(0);
+            final int startRow = (int) (first - screenStart);
+            final int endRow = (int) (last - screenStart);
+            final int columns = mEmulator.mColumns;
+            final int x1 = (first == mFirstRowNumber) ? Math.min(mSelX1, columns - 1) : 0;
+            final int x2 = (last == mLastRowNumber) ? mSelX2 : columns;
+            final String text = mBuffer.getSelectedText(x1, startRow, x2, endRow, true);
+            return (last == mLastRowNumber || mBuffer.getLineWrap(endRow)) ? text : text + '\n';
+        });
+        mMainHandler.post(task);
+        return task.get();
+    }
+
+    /** Append text, trimming leading whitespace and holding back trailing whitespace. */
+    private void append(String text) throws IOException {
+        final int length = text.length();
+        int start = 0;
+        if (!mStarted) {
+            while (start < length && text.charAt(start) <= ' ') start++;
+            if (start == length) return;
+            mStarted = true;
+        }
+
+        int end = length;
+        while (end > start && text.charAt(end - 1) <= ' ') end--;
+        if (end > start) {
+            write(mPendingWhitespace);
+            mPendingWhitespace.setLength(0);
+            write(text.substring(start, end));
+        }
+        mPendingWhitespace.append(text, end, length);
+        if (mPendingWhitespace.length() > MAX_PENDING_WHITESPACE) {
+            write(mPendingWhitespace);
+            mPendingWhitespace.setLength(0);
+        }
+    }
+
+    private void write(CharSequence text) throws IOException {
+        if (text.length() == 0) return;
+        if (mText != null && mText.length() + text.length() > MAX_CLIPBOARD_CHARS) {
+            // Too large for the clipboard, continue in a file:
+            final File dir = TranscriptProvider.getTranscriptsDir(mContext);
+            File[] oldFiles = dir.listFiles((d, name) -> name.startsWith(FILE_NAME_PREFIX));
+            if (oldFiles != null) for (File oldFile : oldFiles) //noinspection ResultOfMethodCallIgnored
+                oldFile.delete();
+            if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+            mFile = File.createTempFile(FILE_NAME_PREFIX, ".txt", dir);
+            FileOutputStream stream = new FileOutputStream(mFile);
+            mFileOut = Channels.newWriter(stream.getChannel(), StandardCharsets.UTF_8.newEncoder(), 16384);
+            mFileOut.append(mText);
+            mText = null;
+        }
+        if (mText != null) {
+            mText.append(text);
+        } else {
+            mFileOut.append(text);
+        }
+    }
+
+    /** Show a toast in place of the last one shown, like {@link TerminalActivity#showToast(String, boolean)}. */
+    private void showToast(String text, boolean longDuration) {
+        if (mLastToast != null) mLastToast.cancel();
+        mLastToast = Toast.makeText(mContext, text, longDuration ? Toast.LENGTH_LONG : Toast.LENGTH_SHORT);
+        mLastToast.setGravity(Gravity.TOP, 0, 0);
+        mLastToast.show();
+    }
+
+    private static void setClipboardText(Context context, String text) {
+        ClipboardManager clipboard = (ClipboardManager) context.getSystemService(Context.CLIPBOARD_SERVICE);
+        if (clipboard == null) return;
+        try {
+            clipboard.setPrimaryClip(new ClipData(null, new String[]{"text/plain"}, new ClipData.Item(text)));
+        } catch (RuntimeException e) {
+            // Thrown if the text does not fit in the binder transaction, which MAX_CLIPBOARD_CHARS should prevent.
+            Log.e(EmulatorDebug.LOG_TAG, "Failed to set clipboard text of " + text.length() + " characters", e);
+        }
+    }
+}
@@ -47,15 +47,14 @@ import android.widget.Toast;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.LinkedHashSet;
+import java.text.SimpleDateFormat;
+import java.util.Date;
 import java.util.List;
 import java.util.Locale;
 import java.util.Properties;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -66,6 +65,8 @@ import androidx.viewpager.widget.ViewPager;
 import xeffyr.alpine.term.R;
 import xeffyr.alpine.term.terminal.EmulatorDebug;
 import xeffyr.alpine.term.terminal.TerminalColors;
+import xeffyr.alpine.term.terminal.TerminalInputLatency;
+import xeffyr.alpine.term.terminal.TerminalRecorder;
 import xeffyr.alpine.term.terminal.TerminalSession;
 import xeffyr.alpine.term.terminal.TerminalSession.SessionChangedCallback;
 import xeffyr.alpine.term.terminal.TextStyle;
@@ -93,6 +94,11 @@ public final class TerminalActivity extends Activity implements ServiceConnectio
     private static final int CONTEXTMENU_RESET_TERMINAL_ID = 5;
     private static final int CONTEXTMENU_TOGGLE_BACK_IS_ESCAPE = 6;
     private static final int CONTEXTMENU_TOGGLE_IGNORE_BELL = 7;
+    private static final int CONTEXTMENU_TOGGLE_PERFORMANCE_HUD = 8;
+    private static final int CONTEXTMENU_SEARCH_ID = 9;
+    private static final int CONTEXTMENU_TOGGLE_RECORDING = 10;
+    private static final int CONTEXTMENU_COPY_COMMAND_OUTPUT_ID = 11;
+    private static final int CONTEXTMENU_INPUT_LATENCY_ID = 12;
 
     private static final int REQUESTCODE_PERMISSION_STORAGE = 1234;
 
@@ -129,6 +135,12 @@ public final class TerminalActivity extends Activity implements ServiceConnectio
      */
     Toast mLastToast;
 
+    /**
+     * The text last searched for in {@link #findInTranscript(String, boolean)}, to continue with the next match when
+     * searching for it again.
+     */
+    String mLastSearchText;
+
     /**
      * If between onResume() and onStop(). Note that only one session is in the foreground of the terminal view at the
      * time, so if the session causing a change is not in the foreground it should probably be treated as background.
@@ -149,91 +161,6 @@ public final class TerminalActivity extends Activity implements ServiceConnectio
         }
     };
 
-    @SuppressWarnings("StringBufferReplaceableByString")
-    private static LinkedHashSet<CharSequence> extractUrls(String text) {
-
-        StringBuilder regex_sb = new StringBuilder();
-
-        regex_sb.append("(");                       // Begin first matching group.
-        regex_sb.append("(?:");                     // Begin scheme group.
-        regex_sb.append("dav|");                    // The DAV proto.
-        regex_sb.append("dict|");                   // The DICT proto.
-        regex_sb.append("dns|");                    // The DNS proto.
-        regex_sb.append("file|");                   // File path.
-        regex_sb.append("finger|");                 // The Finger proto.
-        regex_sb.append("ftp(?:s?)|");              // The FTP proto.
-        regex_sb.append("git|");                    // The Git proto.
-        regex_sb.append("gopher|");                 // The Gopher proto.
-        regex_sb.append("http(?:s?)|");             // The HTTP proto.
-        regex_sb.append("imap(?:s?)|");             // The IMAP proto.
-        regex_sb.append("irc(?:[6s]?)|");           // The IRC proto.
-        regex_sb.append("ip[fn]s|");                // The IPFS proto.
-        regex_sb.append("ldap(?:s?)|");             // The LDAP proto.
-        regex_sb.append("pop3(?:s?)|");             // The POP3 proto.
-        regex_sb.append("redis(?:s?)|");            // The Redis proto.
-        regex_sb.append("rsync|");                  // The Rsync proto.
-        regex_sb.append("rtsp(?:[su]?)|");          // The RTSP proto.
-        regex_sb.append("sftp|");                   // The SFTP proto.
-        regex_sb.append("smb(?:s?)|");              // The SAMBA proto.
-        regex_sb.append("smtp(?:s?)|");             // The SMTP proto.
-        regex_sb.append("svn(?:(?:\\+ssh)?)|");     // The Subversion proto.
-        regex_sb.append("tcp|");                    // The TCP proto.
-        regex_sb.append("telnet|");                 // The Telnet proto.
-        regex_sb.append("tftp|");                   // The TFTP proto.
-        regex_sb.append("udp|");                    // The UDP proto.
-        regex_sb.append("vnc|");                    // The VNC proto.
-        regex_sb.append("ws(?:s?)");                // The Websocket proto.
-        regex_sb.append(")://");                    // End scheme group.
-        regex_sb.append(")");                       // End first matching group.
-
-
-        // Begin second matching group.
-        regex_sb.append("(");
-
-        // User name and/or password in format 'user:pass@'.
-        regex_sb.append("(?:\\S+(?::\\S*)?@)?");
-
-        // Begin host group.
-        regex_sb.append("(?:");
-
-        // IP address (from http://www.regular-expressions.info/examples.html).
-        regex_sb.append("(?:(?:25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?)\\.){3}(?:25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?)|");
-
-        // Host name or domain.
-        regex_sb.append("(?:(?:[a-z\\u00a1-\\uffff0-9]-*)*[a-z\\u00a1-\\uffff0-9]+)(?:(?:\\.(?:[a-z\\u00a1-\\uffff0-9]-*)*[a-z\\u00a1-\\uffff0-9]+)*(?:\\.(?:[a-z\\u00a1-\\uffff]{2,})))?|");
-
-        // Just path. Used in case of 'file://' scheme.
-        regex_sb.append("/(?:(?:[a-z\\u00a1-\\uffff0-9]-*)*[a-z\\u00a1-\\uffff0-9]+)");
-
-        // End host group.
-        regex_sb.append(")");
-
-        // Port number.
-        regex_sb.append("(?::\\d{1,5})?");
-
-        // Resource path with optional query string.
-        regex_sb.append("(?:/[a-zA-Z0-9:@%\\-._~!$&()*+,;=?/]*)?");
-
-        // End second matching group.
-        regex_sb.append(")");
-
-        final Pattern urlPattern = Pattern.compile(
-            regex_sb.toString(),
-            Pattern.CASE_INSENSITIVE | Pattern.MULTILINE | Pattern.DOTALL);
-
-        LinkedHashSet<CharSequence> urlSet = new LinkedHashSet<>();
-        Matcher matcher = urlPattern.matcher(text);
-
-        while (matcher.find()) {
-            int matchStart = matcher.start(1);
-            int matchEnd = matcher.end();
-            String url = text.substring(matchStart, matchEnd);
-            urlSet.add(url);
-        }
-
-        return urlSet;
-    }
-
     private void checkForFontAndColors() {
         try {
             File fontFile = new File(getApplicationContext().getFilesDir().getAbsolutePath() + "/console_font.ttf");
@@ -413,6 +340,11 @@ public final class TerminalActivity extends Activity implements ServiceConnectio
 
         registerReceiver(mBroadcastReceiever, new IntentFilter(INTENT_ACTION_RELOAD));
 
+        updateDetachedSessions();
+
+        // Frame rate limit may have been changed in settings.
+        mTerminalView.setMaxFrameRate(TerminalPreferences.getMaxFrameRate(this));
+
         // The current terminal session may have changed while being away, force
         // a refresh of the displayed terminal:
         mTerminalView.onScreenUpdated();
@@ -424,6 +356,7 @@ public final class TerminalActivity extends Activity implements ServiceConnectio
         mIsVisible = false;
         TerminalSession currentSession = getCurrentTermSession();
         if (currentSession != null) TerminalPreferences.storeCurrentSession(this, currentSession);
+        updateDetachedSessions();
         getDrawer().closeDrawers();
         unregisterReceiver(mBroadcastReceiever);
     }
@@ -487,7 +420,23 @@ public final class TerminalActivity extends Activity implements ServiceConnectio
             public void onClipboardText(TerminalSession session, String text) {
                 if (!mIsVisible) return;
                 ClipboardManager clipboard = (ClipboardManager) getSystemService(Context.CLIPBOARD_SERVICE);
-                if (clipboard != null) clipboard.setPrimaryClip(new ClipData(null, new String[]{"text/plain"}, new ClipData.Item(text)));
+                if (clipboard == null) return;
+                try {
+                    clipboard.setPrimaryClip(new ClipData(null, new String[]{"text/plain"}, new ClipData.Item(text)));
+                } catch (RuntimeException e) {
+                    // Thrown if the text does not fit in the binder transaction.
+                    Log.e(EmulatorDebug.LOG_TAG, "Failed to set clipboard text of " + text.length() + " characters", e);
+                }
+            }
+
+            @Override
+            public void onClipboardTextRequested(TerminalSession session) {
+                // Like xterm, do not let the process read the clipboard unless allowed, as it may contain secrets.
+                if (!mIsVisible || session.getEmulator() == null || !TerminalPreferences.isClipboardReadAllowed(TerminalActivity.this)) return;
+                ClipboardManager clipboard = (ClipboardManager) getSystemService(Context.CLIPBOARD_SERVICE);
+                ClipData clipData = (clipboard == null) ? null : clipboard.getPrimaryClip();
+                CharSequence text = (clipData == null || clipData.getItemCount() == 0) ? null : clipData.getItemAt(0).coerceToText(TerminalActivity.this);
+                session.getEmulator().reportClipboardText(text == null ? "" : text.toString());
             }
 
             @Override
@@ -654,10 +603,15 @@ public final class TerminalActivity extends Activity implements ServiceConnectio
         menu.add(Menu.NONE, CONTEXTMENU_SHOW_HELP, Menu.NONE, R.string.menu_show_help);
         menu.add(Menu.NONE, CONTEXTMENU_CONSOLE_STYLE, Menu.NONE, R.string.menu_console_style);
         menu.add(Menu.NONE, CONTEXTMENU_SELECT_URL_ID, Menu.NONE, R.string.menu_select_url);
+        menu.add(Menu.NONE, CONTEXTMENU_SEARCH_ID, Menu.NONE, R.string.menu_search);
+        menu.add(Menu.NONE, CONTEXTMENU_COPY_COMMAND_OUTPUT_ID, Menu.NONE, R.string.menu_copy_command_output);
         menu.add(Menu.NONE, CONTEXTMENU_SHARE_TRANSCRIPT_ID, Menu.NONE, R.string.menu_share_transcript);
         menu.add(Menu.NONE, CONTEXTMENU_RESET_TERMINAL_ID, Menu.NONE, R.string.menu_reset_terminal);
         menu.add(Menu.NONE, CONTEXTMENU_TOGGLE_BACK_IS_ESCAPE, Menu.NONE, R.string.menu_toggle_back_is_escape).setCheckable(true).setChecked(mSettings.isBackEscape());
         menu.add(Menu.NONE, CONTEXTMENU_TOGGLE_IGNORE_BELL, Menu.NONE, R.string.menu_toggle_ignore_bell).setCheckable(true).setChecked(mSettings.isBellIgnored());
+        menu.add(Menu.NONE, CONTEXTMENU_TOGGLE_PERFORMANCE_HUD, Menu.NONE, R.string.menu_toggle_performance_hud).setCheckable(true).setChecked(mTerminalView.isPerformanceHudEnabled());
+        menu.add(Menu.NONE, CONTEXTMENU_INPUT_LATENCY_ID, Menu.NONE, R.string.menu_input_latency);
+        menu.add(Menu.NONE, CONTEXTMENU_TOGGLE_RECORDING, Menu.NONE, R.string.menu_toggle_recording).setCheckable(true).setChecked(currentSession.getRecorder() != null);
     }
 
     /**
@@ -683,24 +637,22 @@ public final class TerminalActivity extends Activity implements ServiceConnectio
             case CONTEXTMENU_SELECT_URL_ID:
                 showUrlSelection();
                 return true;
+            case CONTEXTMENU_SEARCH_ID:
+                DialogUtils.textInput(this, R.string.search_title, mLastSearchText,
+                    R.string.search_older_button, text -> findInTranscript(text, true),
+                    R.string.search_newer_button, text -> findInTranscript(text, false),
+                    R.string.cancel_label, null);
+                return true;
+            case CONTEXTMENU_COPY_COMMAND_OUTPUT_ID:
+                copyCommandOutput();
+                return true;
             case CONTEXTMENU_SHARE_TRANSCRIPT_ID:
                 if (session != null) {
-                    Intent intent = new Intent(Intent.ACTION_SEND);
-                    intent.setType("text/plain");
-                    String transcriptText = session.getEmulator().getScreen().getTranscriptTextWithoutJoinedLines().trim();
-                    // See https://github.com/termux/termux-app/issues/1166.
-                    final int MAX_LENGTH = 100_000;
-                    if (transcriptText.length() > MAX_LENGTH) {
-                        int cutOffIndex = transcriptText.length() - MAX_LENGTH;
-                        int nextNewlineIndex = transcriptText.indexOf('\n', cutOffIndex);
-                        if (nextNewlineIndex != -1 && nextNewlineIndex != transcriptText.length() - 1) {
-                            cutOffIndex = nextNewlineIndex + 1;
-                        }
-                        transcriptText = transcriptText.substring(cutOffIndex).trim();
-                    }
-                    intent.putExtra(Intent.EXTRA_TEXT, transcriptText);
-                    intent.putExtra(Intent.EXTRA_SUBJECT, getString(R.string.share_transcript_file_name));
-                    startActivity(Intent.createChooser(intent, getString(R.string.share_transcript_chooser_title)));
+                    new AlertDialog.Builder(this).setTitle(R.string.share_transcript_format_title)
+                        .setItems(R.array.share_transcript_formats, (dialog, which) -> {
+                            showToast(getResources().getString(R.string.share_transcript_toast_exporting), false);
+                            TranscriptExporter.exportAndShare(this, session.getEmulator(), which);
+                        }).show();
                 }
                 return true;
             case CONTEXTMENU_PASTE_ID:
@@ -729,6 +681,18 @@ public final class TerminalActivity extends Activity implements ServiceConnectio
                 }
                 return true;
             }
+            case CONTEXTMENU_TOGGLE_PERFORMANCE_HUD: {
+                mTerminalView.setPerformanceHudEnabled(!mTerminalView.isPerformanceHudEnabled());
+                return true;
+            }
+            case CONTEXTMENU_TOGGLE_RECORDING: {
+                if (session != null) toggleRecording(session);
+                return true;
+            }
+            case CONTEXTMENU_INPUT_LATENCY_ID: {
+                if (session != null) showInputLatency(session);
+                return true;
+            }
 
             default:
                 return super.onContextItemSelected(item);
@@ -868,6 +832,20 @@ public final class TerminalActivity extends Activity implements ServiceConnectio
             }
 
             updateBackgroundColor();
+            updateDetachedSessions();
+        }
+    }
+
+    /**
+     * Let only the session shown in the terminal view process its output as it arrives. Other sessions just buffer
+     * it until shown, see {@link TerminalSession#setDetached(boolean)}.
+     */
+    private void updateDetachedSessions() {
+        if (mTermService == null) return;
+
+        TerminalSession currentSession = getCurrentTermSession();
+        for (TerminalSession session : mTermService.getSessions()) {
+            session.setDetached(!mIsVisible || session != currentSession);
         }
     }
 
@@ -906,16 +884,106 @@ public final class TerminalActivity extends Activity implements ServiceConnectio
         }
     }
 
+    /**
+     * Start recording the output of the session for later replay, or stop and keep the recording if already recording.
+     */
+    private void toggleRecording(TerminalSession session) {
+        TerminalRecorder recorder = session.getRecorder();
+        if (recorder != null) {
+            session.setRecorder(null);
+            showToast(getResources().getString(R.string.recording_toast_stopped, recorder.getFile().getAbsolutePath()), true);
+            return;
+        }
+
+        File storage = getExternalFilesDir(null);
+        File dir = new File(storage != null ? storage : getFilesDir(), "recordings");
+        String name = (session.mSessionName != null ? session.mSessionName : "session").replaceAll("[^A-Za-z0-9._-]", "_");
+        String timestamp = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date());
+        File file = new File(dir, name + "-" + timestamp + ".rec");
+        try {
+            if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+            session.setRecorder(new TerminalRecorder(file));
+            showToast(getResources().getString(R.string.recording_toast_started, file.getAbsolutePath()), true);
+        } catch (IOException e) {
+            Log.e(EmulatorDebug.LOG_TAG, "Failed to start recording", e);
+            showToast(getResources().getString(R.string.recording_toast_failed), true);
+        }
+    }
+
+    /** Show the percentiles of the latency from key presses until their echo is drawn, by stage. */
+    private void showInputLatency(TerminalSession session) {
+        final TerminalInputLatency latency = session.getInputLatency();
+        final String summary = latency.getSampleCount() == 0 ? getString(R.string.input_latency_no_samples) : latency.getSummary();
+        Log.i(EmulatorDebug.LOG_TAG, "Input latency of session " + session.mHandle + ":\n" + summary);
+
+        final AlertDialog dialog = new AlertDialog.Builder(this).setTitle(R.string.input_latency_title)
+            .setMessage(summary)
+            .setPositiveButton(R.string.ok_label, null)
+            .setNeutralButton(R.string.input_latency_reset_button, (di, which) -> latency.reset())
+            .show();
+        TextView message = dialog.findViewById(android.R.id.message);
+        if (message != null) message.setTypeface(Typeface.MONOSPACE);
+    }
+
+    /**
+     * Search the terminal for text, or move to the next match in the specified direction if searching for the same text
+     * again. Text within slashes is a regular expression, and text with upper case letters is matched case sensitively.
+     * Empty text clears the search.
+     */
+    void findInTranscript(String text, boolean older) {
+        if (text.isEmpty()) {
+            mLastSearchText = null;
+            mTerminalView.clearSearch();
+            return;
+        }
+
+        if (text.equals(mLastSearchText) && mTerminalView.hasSearchMatches()) {
+            if (!mTerminalView.findSearchMatch(older)) {
+                showToast(getResources().getString(R.string.search_toast_no_more_matches), false);
+            }
+            return;
+        }
+
+        mLastSearchText = text;
+        final boolean regex = text.length() > 2 && text.startsWith("/") && text.endsWith("/");
+        final String query = regex ? text.substring(1, text.length() - 1) : text;
+        final boolean caseSensitive = !query.equals(query.toLowerCase(Locale.ROOT));
+
+        try {
+            int matches = mTerminalView.search(query, regex, caseSensitive);
+            if (matches == 0) {
+                showToast(getResources().getString(R.string.search_toast_not_found), false);
+            } else {
+                showToast(getResources().getString(R.string.search_toast_found, matches), false);
+            }
+        } catch (PatternSyntaxException e) {
+            showToast(getResources().getString(R.string.search_toast_invalid_regex, e.getDescription()), true);
+        }
+    }
+
+    /** Copy the output of the command at the top of the terminal, or of the last command, to the clipboard. */
+    public void copyCommandOutput() {
+        String output = mTerminalView.getCommandOutput();
+        if (output == null) {
+            showToast(getResources().getString(R.string.command_output_toast_not_found), true);
+            return;
+        }
+
+        ClipboardManager clipboard = (ClipboardManager) getSystemService(Context.CLIPBOARD_SERVICE);
+        if (clipboard != null) {
+            clipboard.setPrimaryClip(new ClipData(null, new String[]{"text/plain"}, new ClipData.Item(output)));
+            showToast(getResources().getString(R.string.command_output_toast_copied), false);
+        }
+    }
+
     public void showUrlSelection() {
-        String text = getCurrentTermSession().getEmulator().getScreen().getTranscriptText();
-        LinkedHashSet<CharSequence> urlSet = extractUrls(text);
-        if (urlSet.isEmpty()) {
+        List<String> urlList = getCurrentTermSession().getEmulator().getUrls();
+        if (urlList.isEmpty()) {
             showToast(getResources().getString(R.string.select_url_toast_no_found), true);
             return;
         }
 
-        final CharSequence[] urls = urlSet.toArray(new CharSequence[urlSet.size()]);
-        Collections.reverse(Arrays.asList(urls)); // Latest first.
+        final CharSequence[] urls = urlList.toArray(new CharSequence[urlList.size()]);
 
         // Click to copy url to clipboard:
         final AlertDialog dialog = new AlertDialog.Builder(TerminalActivity.this).setItems(urls, (di, which) -> {
@@ -955,6 +1023,26 @@ public final class TerminalActivity extends Activity implements ServiceConnectio
         dialog.show();
     }
 
+    /**
+     * Show the macros defined in the settings and send the chosen one to the current session.
+     */
+    void showMacroSelection() {
+        final TerminalSession session = getCurrentTermSession();
+        if (session == null) return;
+
+        final List<Macro> macros = Macro.getMacros(this);
+        if (macros.isEmpty()) {
+            showToast(getResources().getString(R.string.macro_toast_none), true);
+            return;
+        }
+
+        final CharSequence[] names = new CharSequence[macros.size()];
+        for (int i = 0; i < names.length; i++) names[i] = macros.get(i).mName;
+
+        new AlertDialog.Builder(this).setTitle(R.string.macro_dialog_title)
+            .setItems(names, (dialog, which) -> macros.get(which).send(session)).show();
+    }
+
     private String toToastTitle(TerminalSession session) {
         final int indexOfSession = mTermService.getSessions().indexOf(session);
 
@@ -978,7 +1066,7 @@ public final class TerminalActivity extends Activity implements ServiceConnectio
     /**
      * Show a toast and dismiss the last one if still visible.
      */
-    private void showToast(String text, boolean longDuration) {
+    void showToast(String text, boolean longDuration) {
         if (mLastToast != null) mLastToast.cancel();
         mLastToast = Toast.makeText(TerminalActivity.this, text, longDuration ? Toast.LENGTH_LONG : Toast.LENGTH_SHORT);
         mLastToast.setGravity(Gravity.TOP, 0, 0);
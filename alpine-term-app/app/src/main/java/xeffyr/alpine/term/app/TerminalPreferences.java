@@ -5,8 +5,13 @@ import android.content.SharedPreferences;
 import android.preference.PreferenceManager;
 import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import xeffyr.alpine.term.BuildConfig;
+import xeffyr.alpine.term.R;
 import xeffyr.alpine.term.terminal.EmulatorDebug;
+import xeffyr.alpine.term.terminal.TerminalEmulator;
 import xeffyr.alpine.term.terminal.TerminalSession;
 
 @SuppressWarnings("WeakerAccess")
@@ -44,6 +49,46 @@ final class TerminalPreferences {
         return null;
     }
 
+    /** The frame rate cap for terminal output as set in {@link LauncherPreferences}, or 0 if unlimited. */
+    public static int getMaxFrameRate(Context context) {
+        String value = PreferenceManager.getDefaultSharedPreferences(context).getString(context.getString(R.string.terminal_max_fps_key), "0");
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /** The maximal size in bytes of text copied with OSC 52 as set in {@link LauncherPreferences}, or 0 if disabled. */
+    public static int getClipboardLimit(Context context) {
+        String value = PreferenceManager.getDefaultSharedPreferences(context).getString(context.getString(R.string.terminal_clipboard_limit_key), "");
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return TerminalEmulator.DEFAULT_CLIPBOARD_LIMIT;
+        }
+    }
+
+    /** If processes may read the clipboard with OSC 52 as set in {@link LauncherPreferences}. */
+    public static boolean isClipboardReadAllowed(Context context) {
+        return PreferenceManager.getDefaultSharedPreferences(context).getBoolean(context.getString(R.string.terminal_clipboard_read_key), false);
+    }
+
+    /** The patterns to show notifications for as set in {@link LauncherPreferences}. */
+    public static List<String> getTriggerPatterns(Context context) {
+        return parseTriggerPatterns(PreferenceManager.getDefaultSharedPreferences(context).getString(context.getString(R.string.terminal_triggers_key), ""));
+    }
+
+    /** Split the value of the triggers preference into patterns, one per non-empty line. */
+    public static List<String> parseTriggerPatterns(String value) {
+        List<String> patterns = new ArrayList<>();
+        for (String line : value.split("\n")) {
+            line = line.trim();
+            if (!line.isEmpty()) patterns.add(line);
+        }
+        return patterns;
+    }
+
     public boolean isShowExtraKeys() {
         return mShowExtraKeys;
     }
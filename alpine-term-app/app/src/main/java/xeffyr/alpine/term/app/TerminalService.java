@@ -16,18 +16,25 @@ import android.os.Build;
 import android.os.Environment;
 import android.os.IBinder;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
+import android.text.TextUtils;
 import android.util.Log;
 import android.widget.ArrayAdapter;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.regex.PatternSyntaxException;
 
 import xeffyr.alpine.term.R;
 import xeffyr.alpine.term.terminal.EmulatorDebug;
 import xeffyr.alpine.term.terminal.TerminalSession;
 import xeffyr.alpine.term.terminal.TerminalSession.SessionChangedCallback;
+import xeffyr.alpine.term.terminal.TerminalSessionLogger;
+import xeffyr.alpine.term.terminal.TerminalTriggers;
 
 /**
  * A service holding a list of terminal sessions, {@link #mTerminalSessions}, showing a foreground notification while
@@ -50,6 +57,16 @@ public final class TerminalService extends Service implements SessionChangedCall
     private static final String NOTIFICATION_CHANNEL_ID = "alpine_term_notification_channel";
     private static final int NOTIFICATION_ID = 1338;
 
+    private static final String TRIGGER_NOTIFICATION_CHANNEL_ID = "alpine_term_trigger_channel";
+    /** Trigger notifications use this id with the session handle as tag, so that there is one per session. */
+    private static final int TRIGGER_NOTIFICATION_ID = 2000;
+    /** Do not update the trigger notification of a session more often than this. */
+    private static final long TRIGGER_NOTIFICATION_MIN_INTERVAL_MILLIS = 1000;
+
+    /** Serial console logs are rotated after this compressed size, keeping {@link #SESSION_LOG_MAX_FILES} per console. */
+    private static final long SESSION_LOG_MAX_FILE_SIZE = 8 * 1024 * 1024;
+    private static final int SESSION_LOG_MAX_FILES = 8;
+
     private static final String ACTION_STOP_SERVICE = "xeffyr.alpine.term.service_stop";
     private static final String ACTION_LOCK_WAKE = "xeffyr.alpine.term.service_wake_lock";
     private static final String ACTION_UNLOCK_WAKE = "xeffyr.alpine.term.service_wake_unlock";
@@ -80,6 +97,9 @@ public final class TerminalService extends Service implements SessionChangedCall
     private PowerManager.WakeLock mWakeLock;
     private WifiManager.WifiLock mWifiLock;
 
+    /** The time of the last trigger notification of each session, by session handle. */
+    private final Map<String, Long> mLastTriggerNotificationTimes = new HashMap<>();
+
     @Override
     public void onCreate() {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
@@ -91,6 +111,11 @@ public final class TerminalService extends Service implements SessionChangedCall
             channel.setDescription(channelDescription);
             NotificationManager manager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
             manager.createNotificationChannel(channel);
+
+            NotificationChannel triggerChannel = new NotificationChannel(TRIGGER_NOTIFICATION_CHANNEL_ID,
+                getString(R.string.notification_channel_triggers), NotificationManager.IMPORTANCE_DEFAULT);
+            triggerChannel.setDescription(getString(R.string.notification_channel_triggers_desc));
+            manager.createNotificationChannel(triggerChannel);
         }
 
         startForeground(NOTIFICATION_ID, buildNotification());
@@ -183,6 +208,13 @@ public final class TerminalService extends Service implements SessionChangedCall
         }
     }
 
+    @Override
+    public void onClipboardTextRequested(TerminalSession session) {
+        if (mSessionChangeCallback != null) {
+            mSessionChangeCallback.onClipboardTextRequested(session);
+        }
+    }
+
     @Override
     public void onBell(TerminalSession session) {
         if (mSessionChangeCallback != null) {
@@ -252,15 +284,39 @@ public final class TerminalService extends Service implements SessionChangedCall
 
         String processArgs[] = {execPath + "/libbash.so", execPath + "/libentrypoint.so", String.valueOf(sessionType)};
         TerminalSession session = new TerminalSession(execPath + "/libbash.so", processArgs, environment.toArray(new String[0]), home, this);
+        // Every keystroke on a serial console makes a slow round trip through the emulated machine:
+        if (sessionType == SESSION_TYPE_SERIAL) session.setEchoPredictionEnabled(true);
+        if (sessionType == SESSION_TYPE_SERIAL && prefs.getBoolean(getString(R.string.terminal_log_serial_key), false)) {
+            session.setLogger(new TerminalSessionLogger(getSessionLogsDir(), "ttyS" + sessionNumber,
+                SESSION_LOG_MAX_FILE_SIZE, SESSION_LOG_MAX_FILES));
+        }
+        session.setClipboardLimit(TerminalPreferences.getClipboardLimit(appContext));
+        List<String> triggerPatterns = TerminalPreferences.getTriggerPatterns(appContext);
+        if (!triggerPatterns.isEmpty()) {
+            try {
+                session.setTriggers(new TerminalTriggers(triggerPatterns, (pattern, line) -> notifyTriggered(session, line)));
+            } catch (PatternSyntaxException e) {
+                Log.e(EmulatorDebug.LOG_TAG, "Invalid trigger pattern", e);
+            }
+        }
         mTerminalSessions.add(session);
         updateNotification();
 
         return session;
     }
 
+    /** The directory of serial console logs, on external storage if available so that they are easy to retrieve. */
+    private File getSessionLogsDir() {
+        File storage = getExternalFilesDir(null);
+        return new File(storage != null ? storage : getFilesDir(), "logs");
+    }
+
     public int removeTermSession(TerminalSession sessionToRemove) {
         int indexOfRemoved = mTerminalSessions.indexOf(sessionToRemove);
         mTerminalSessions.remove(indexOfRemoved);
+        if (mLastTriggerNotificationTimes.remove(sessionToRemove.mHandle) != null) {
+            ((NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE)).cancel(sessionToRemove.mHandle, TRIGGER_NOTIFICATION_ID);
+        }
 
         if (mTerminalSessions.isEmpty()) {
             // Finish if there are no sessions left.
@@ -330,6 +386,34 @@ public final class TerminalService extends Service implements SessionChangedCall
         return builder.build();
     }
 
+    /** Show a notification for output of a session which matched a trigger. */
+    private void notifyTriggered(TerminalSession session, String line) {
+        if (!mTerminalSessions.contains(session)) return;
+
+        long now = SystemClock.elapsedRealtime();
+        Long lastTime = mLastTriggerNotificationTimes.get(session.mHandle);
+        if (lastTime != null && now - lastTime < TRIGGER_NOTIFICATION_MIN_INTERVAL_MILLIS) return;
+        mLastTriggerNotificationTimes.put(session.mHandle, now);
+
+        Intent notifyIntent = new Intent(this, TerminalActivity.class);
+        notifyIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+        PendingIntent pendingIntent = PendingIntent.getActivity(this, 0, notifyIntent, 0);
+
+        Notification.Builder builder = new Notification.Builder(this);
+        builder.setContentTitle(TextUtils.isEmpty(session.mSessionName) ? getText(R.string.application_name) : session.mSessionName);
+        builder.setContentText(line.trim());
+        builder.setSmallIcon(R.drawable.ic_service_notification);
+        builder.setContentIntent(pendingIntent);
+        builder.setAutoCancel(true);
+        builder.setColor(0xFF000000);
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            builder.setChannelId(TRIGGER_NOTIFICATION_CHANNEL_ID);
+        }
+
+        ((NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE)).notify(session.mHandle, TRIGGER_NOTIFICATION_ID, builder.build());
+    }
+
     /**
      * Update the shown foreground service notification after making any changes that affect it.
      */
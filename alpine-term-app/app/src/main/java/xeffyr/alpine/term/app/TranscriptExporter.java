@@ -0,0 +1,134 @@
+package xeffyr.alpine.term.app;
+
+import android.app.Activity;
+import android.content.ActivityNotFoundException;
+import android.content.ClipData;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.widget.Toast;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import xeffyr.alpine.term.R;
+import xeffyr.alpine.term.terminal.EmulatorDebug;
+import xeffyr.alpine.term.terminal.TerminalBuffer;
+import xeffyr.alpine.term.terminal.TerminalEmulator;
+import xeffyr.alpine.term.terminal.TerminalRow;
+import xeffyr.alpine.term.terminal.TerminalTranscriptWriter;
+
+/**
+ * Exports the transcript of a terminal to a file in the cache and shares it through {@link TranscriptProvider}.
+ * <p>
+ * The terminal buffer may only be accessed on the main thread, so rows are copied there in small chunks which are
+ * then written on a background thread. This keeps memory use bounded by the chunk size whatever the transcript size,
+ * and the main thread is only busy for the copying of one chunk at a time.
+ */
+final class TranscriptExporter extends Thread {
+
+    /** The number of rows copied from the terminal at a time. */
+    private static final int CHUNK_ROWS = 128;
+
+    private static final String[] FILE_EXTENSIONS = {".txt", ".ansi.txt", ".html"};
+
+    private final Activity mActivity;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final TerminalBuffer mBuffer;
+    private final int mFormat;
+    private final int[] mPalette;
+    /** The number of the last row to export, see {@link TerminalBuffer#getRowNumber(int)}. */
+    private final long mLastRowNumber;
+
+    private final TerminalRow[] mChunk = new TerminalRow[CHUNK_ROWS];
+    private long mNextRowNumber;
+
+    /**
+     * Start exporting the transcript and the screen up to the cursor, then let the user choose where to share it.
+     * Must be called on the main thread.
+     *
+     * @param format one of the TerminalTranscriptWriter.FORMAT_* constants.
+     */
+    static void exportAndShare(Activity activity, TerminalEmulator emulator, int format) {
+        new TranscriptExporter(activity, emulator, format).start();
+    }
+
+    private TranscriptExporter(Activity activity, TerminalEmulator emulator, int format) {
+        mActivity = activity;
+        mBuffer = emulator.getScreen();
+        mFormat = format;
+        mPalette = emulator.mColors.mCurrentColors.clone();
+        mNextRowNumber = mBuffer.getFirstRowNumber();
+        mLastRowNumber = mBuffer.getRowNumber(emulator.getCursorRow());
+    }
+
+    @Override
+    public void run() {
+        final File dir = TranscriptProvider.getTranscriptsDir(mActivity);
+        final String baseName = mActivity.getString(R.string.share_transcript_file_name).replace(".txt", "");
+        final File file = new File(dir, baseName + FILE_EXTENSIONS[mFormat]);
+
+        try {
+            // Only keep the latest export, but leave other files such as copied selections on the clipboard.
+            File[] oldFiles = dir.listFiles((d, name) -> name.startsWith(baseName));
+            if (oldFiles != null) for (File oldFile : oldFiles) //noinspection ResultOfMethodCallIgnored
+                oldFile.delete();
+            if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+
+            try (FileOutputStream stream = new FileOutputStream(file);
+                 Writer out = Channels.newWriter(stream.getChannel(), StandardCharsets.UTF_8.newEncoder(), 16384)) {
+                TerminalTranscriptWriter writer = new TerminalTranscriptWriter(out, mFormat, mPalette);
+                writer.writeHeader();
+                int count;
+                while ((count = copyNextChunk()) > 0) {
+                    for (int i = 0; i < count; i++) writer.writeRow(mChunk[i]);
+                }
+                writer.writeFooter();
+            }
+        } catch (IOException | ExecutionException | InterruptedException e) {
+            Log.e(EmulatorDebug.LOG_TAG, "Failed to export transcript", e);
+            mMainHandler.post(() -> Toast.makeText(mActivity, R.string.share_transcript_toast_failed, Toast.LENGTH_LONG).show());
+            return;
+        }
+
+        mMainHandler.post(() -> share(file));
+    }
+
+    /** Copy the next chunk of rows on the main thread, returning the number of rows copied. */
+    private int copyNextChunk() throws ExecutionException, InterruptedException {
+        FutureTask<Integer> task = new FutureTask<>(() -> {
+            // Rows may have been evicted from the transcript, and output may have scrolled the last row to export.
+            long first = Math.max(mNextRowNumber, mBuffer.getFirstRowNumber());
+            long last = Math.min(mLastRowNumber, mBuffer.getLastRowNumber());
+            int count = (int) Math.max(0, Math.min(CHUNK_ROWS, last - first + 1));
+            mBuffer.copyRows(first, mChunk, count);
+            mNextRowNumber = first + count;
+            return count;
+        });
+        mMainHandler.post(task);
+        return task.get();
+    }
+
+    private void share(File file) {
+        Uri uri = TranscriptProvider.getUriForFile(file);
+        Intent intent = new Intent(Intent.ACTION_SEND);
+        intent.setType(mFormat == TerminalTranscriptWriter.FORMAT_HTML ? "text/html" : "text/plain");
+        intent.putExtra(Intent.EXTRA_STREAM, uri);
+        intent.putExtra(Intent.EXTRA_SUBJECT, file.getName());
+        intent.setClipData(ClipData.newRawUri(null, uri));
+        intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        try {
+            mActivity.startActivity(Intent.createChooser(intent, mActivity.getString(R.string.share_transcript_chooser_title)));
+        } catch (ActivityNotFoundException e) {
+            Log.e(EmulatorDebug.LOG_TAG, "No activity to share transcript with", e);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package xeffyr.alpine.term.app;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.OpenableColumns;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Read only access for other apps to transcripts exported into {@link #getTranscriptsDir(Context)}, so that they can be
+ * shared without passing their content in an intent.
+ */
+public final class TranscriptProvider extends ContentProvider {
+
+    private static final String AUTHORITY = "xeffyr.alpine.term.transcripts";
+
+    /** The directory in the cache where exported transcripts are stored. */
+    static File getTranscriptsDir(Context context) {
+        return new File(context.getCacheDir(), "transcripts");
+    }
+
+    /** Get the content URI for a file in the transcripts directory. */
+    static Uri getUriForFile(File file) {
+        return new Uri.Builder().scheme("content").authority(AUTHORITY).appendPath(file.getName()).build();
+    }
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Nullable
+    @Override
+    public Cursor query(@NonNull Uri uri, @Nullable String[] projection, @Nullable String selection,
+                        @Nullable String[] selectionArgs, @Nullable String sortOrder) {
+        File file = getFile(uri);
+        if (file == null || !file.isFile()) return null;
+
+        if (projection == null) projection = new String[]{OpenableColumns.DISPLAY_NAME, OpenableColumns.SIZE};
+        Object[] row = new Object[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            if (OpenableColumns.DISPLAY_NAME.equals(projection[i])) {
+                row[i] = file.getName();
+            } else if (OpenableColumns.SIZE.equals(projection[i])) {
+                row[i] = file.length();
+            }
+        }
+
+        MatrixCursor cursor = new MatrixCursor(projection, 1);
+        cursor.addRow(row);
+        return cursor;
+    }
+
+    @Nullable
+    @Override
+    public String getType(@NonNull Uri uri) {
+        File file = getFile(uri);
+        if (file == null) return null;
+        return file.getName().endsWith(".html") ? "text/html" : "text/plain";
+    }
+
+    @Nullable
+    @Override
+    public ParcelFileDescriptor openFile(@NonNull Uri uri, @NonNull String mode) throws FileNotFoundException {
+        if (!"r".equals(mode)) throw new SecurityException("Transcripts are read only");
+
+        File file = getFile(uri);
+        if (file == null) throw new FileNotFoundException(uri.toString());
+        return ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+    }
+
+    /** Get the file for an URI, or null if the URI does not refer to a file directly inside the transcripts directory. */
+    @Nullable
+    private File getFile(Uri uri) {
+        String name = uri.getLastPathSegment();
+        if (name == null || uri.getPathSegments().size() != 1 || name.equals("..") || name.indexOf('/') != -1) return null;
+
+        Context context = getContext();
+        return (context == null) ? null : new File(getTranscriptsDir(context), name);
+    }
+
+    @Nullable
+    @Override
+    public Uri insert(@NonNull Uri uri, @Nullable ContentValues values) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int delete(@NonNull Uri uri, @Nullable String selection, @Nullable String[] selectionArgs) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int update(@NonNull Uri uri, @Nullable ContentValues values, @Nullable String selection,
+                      @Nullable String[] selectionArgs) {
+        throw new UnsupportedOperationException();
+    }
+}
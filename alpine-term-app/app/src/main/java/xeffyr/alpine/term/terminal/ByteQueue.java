@@ -12,6 +12,15 @@ final class ByteQueue {
         mBuffer = new byte[size];
     }
 
+    /** The number of bytes written but not yet read. */
+    public synchronized int getStoredBytes() {
+        return mStoredBytes;
+    }
+
+    public int getCapacity() {
+        return mBuffer.length;
+    }
+
     public synchronized void close() {
         mOpen = false;
         notify();
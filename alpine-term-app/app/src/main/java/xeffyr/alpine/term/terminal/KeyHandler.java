@@ -1,5 +1,7 @@
 package xeffyr.alpine.term.terminal;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -60,7 +62,47 @@ public final class KeyHandler {
     public static final int KEYMOD_CTRL = 0x40000000;
     public static final int KEYMOD_SHIFT = 0x20000000;
 
-    private static final Map<String, Integer> TERMCAP_TO_KEYCODE = new HashMap<>();
+    static final Map<String, Integer> TERMCAP_TO_KEYCODE = new HashMap<>();
+
+    /** The key codes handled by {@link #getCode(int, int, boolean, boolean)}. */
+    static final int[] HANDLED_KEYCODES = {
+        KEYCODE_DPAD_CENTER, KEYCODE_DPAD_UP, KEYCODE_DPAD_DOWN, KEYCODE_DPAD_RIGHT, KEYCODE_DPAD_LEFT,
+        KEYCODE_MOVE_HOME, KEYCODE_MOVE_END,
+        KEYCODE_F1, KEYCODE_F2, KEYCODE_F3, KEYCODE_F4, KEYCODE_F5, KEYCODE_F6,
+        KEYCODE_F7, KEYCODE_F8, KEYCODE_F9, KEYCODE_F10, KEYCODE_F11, KEYCODE_F12,
+        KEYCODE_SYSRQ, KEYCODE_BREAK, KEYCODE_ESCAPE, KEYCODE_BACK, KEYCODE_INSERT, KEYCODE_FORWARD_DEL,
+        KEYCODE_PAGE_UP, KEYCODE_PAGE_DOWN, KEYCODE_DEL, KEYCODE_NUM_LOCK, KEYCODE_SPACE, KEYCODE_TAB, KEYCODE_ENTER,
+        KEYCODE_NUMPAD_ENTER, KEYCODE_NUMPAD_MULTIPLY, KEYCODE_NUMPAD_ADD, KEYCODE_NUMPAD_COMMA, KEYCODE_NUMPAD_DOT,
+        KEYCODE_NUMPAD_SUBTRACT, KEYCODE_NUMPAD_DIVIDE, KEYCODE_NUMPAD_0, KEYCODE_NUMPAD_1, KEYCODE_NUMPAD_2,
+        KEYCODE_NUMPAD_3, KEYCODE_NUMPAD_4, KEYCODE_NUMPAD_5, KEYCODE_NUMPAD_6, KEYCODE_NUMPAD_7, KEYCODE_NUMPAD_8,
+        KEYCODE_NUMPAD_9, KEYCODE_NUMPAD_EQUALS
+    };
+
+    /** The modifiers, which are the highest bits of the key mode. */
+    private static final int KEYMOD_MASK = KEYMOD_ALT | KEYMOD_CTRL | KEYMOD_SHIFT;
+    /** The number of codes for each key: one for each combination of modifiers and application modes. */
+    private static final int CODES_PER_KEY = 8 * 4;
+
+    /** The index in {@link #CODES} of the codes of each key code, or -1 if not handled. */
+    private static final int[] KEYCODE_TO_CODES_INDEX;
+    /** The UTF-8 encoded result of {@link #getCode(int, int, boolean, boolean)}, see {@link #getCodeBytes(int, int, boolean, boolean)}. */
+    private static final byte[][] CODES;
+
+    static {
+        int maxKeyCode = 0;
+        for (int keyCode : HANDLED_KEYCODES) maxKeyCode = Math.max(maxKeyCode, keyCode);
+        KEYCODE_TO_CODES_INDEX = new int[maxKeyCode + 1];
+        Arrays.fill(KEYCODE_TO_CODES_INDEX, -1);
+        CODES = new byte[HANDLED_KEYCODES.length * CODES_PER_KEY][];
+        for (int i = 0; i < HANDLED_KEYCODES.length; i++) {
+            final int keyCode = HANDLED_KEYCODES[i];
+            KEYCODE_TO_CODES_INDEX[keyCode] = i * CODES_PER_KEY;
+            for (int j = 0; j < CODES_PER_KEY; j++) {
+                String code = getCode(keyCode, (j >>> 2) << 29, (j & 2) != 0, (j & 1) != 0);
+                if (code != null) CODES[i * CODES_PER_KEY + j] = code.getBytes(StandardCharsets.UTF_8);
+            }
+        }
+    }
 
     static {
         // terminfo: http://pubs.opengroup.org/onlinepubs/7990989799/xcurses/terminfo.html
@@ -148,6 +190,22 @@ public final class KeyHandler {
         return getCode(keyCode, keyMod, cursorKeysApplication, keypadApplication);
     }
 
+    /**
+     * Get the same code as {@link #getCode(int, int, boolean, boolean)} encoded in UTF-8, ready to be written to the
+     * terminal. The codes are computed once, so that a key press does not allocate anything. The returned array is
+     * shared and must not be modified.
+     */
+    public static byte[] getCodeBytes(int keyCode, int keyMode, boolean cursorApp, boolean keypadApplication) {
+        if (keyCode < 0 || keyCode >= KEYCODE_TO_CODES_INDEX.length || KEYCODE_TO_CODES_INDEX[keyCode] < 0) return null;
+        if ((keyMode & ~KEYMOD_MASK) != 0) {
+            // Not one of the modifiers in the table:
+            String code = getCode(keyCode, keyMode, cursorApp, keypadApplication);
+            return (code == null) ? null : code.getBytes(StandardCharsets.UTF_8);
+        }
+        final int index = KEYCODE_TO_CODES_INDEX[keyCode] + ((keyMode >>> 29) << 2) + (cursorApp ? 2 : 0) + (keypadApplication ? 1 : 0);
+        return CODES[index];
+    }
+
     public static String getCode(int keyCode, int keyMode, boolean cursorApp, boolean keypadApplication) {
         switch (keyCode) {
             case KEYCODE_DPAD_CENTER:
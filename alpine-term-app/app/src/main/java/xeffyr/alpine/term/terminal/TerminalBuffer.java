@@ -1,6 +1,11 @@
 package xeffyr.alpine.term.terminal;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * A circular buffer of {@link TerminalRow}:s which keeps notes about what is visible on a logical screen and the scroll
@@ -10,6 +15,20 @@ import java.util.Arrays;
  */
 public final class TerminalBuffer {
 
+    /** Shell integration mark (OSC 133 A) at the start of a prompt. */
+    public static final int MARK_PROMPT = 1;
+    /** Shell integration mark (OSC 133 B) at the end of a prompt, where the command is typed. */
+    public static final int MARK_COMMAND = 1 << 1;
+    /** Shell integration mark (OSC 133 C) at the start of the output of a command. */
+    public static final int MARK_OUTPUT = 1 << 2;
+    /** Shell integration mark (OSC 133 D) where a command has finished. */
+    public static final int MARK_COMMAND_END = 1 << 3;
+    /** The number of MARK_* bits. */
+    static final int MARK_TYPES = 4;
+
+    /** Returned by {@link #findShellMark(int, int, boolean)} when there is no such row. */
+    public static final int NO_ROW = Integer.MIN_VALUE;
+
     TerminalRow[] mLines;
     /** The length of {@link #mLines}. */
     int mTotalRows;
@@ -19,6 +38,16 @@ public final class TerminalBuffer {
     private int mActiveTranscriptRows = 0;
     /** The index in the circular buffer where the visible screen starts. */
     private int mScreenFirstRow = 0;
+    /** The number of rows scrolled into the transcript, used to number rows, see {@link #getRowNumber(int)}. */
+    private long mScrolledRows = 0;
+    /** The screen area changed since the last {@link #clearDamage()}, in columns and screen rows. Right and bottom are exclusive. */
+    private int mDamageLeft, mDamageTop, mDamageRight, mDamageBottom;
+    /** URLs in lines scrolled into the transcript, or null if not indexed. */
+    TerminalUrlIndex mUrlIndex;
+    /** Index of the transcript for {@link #search(String, boolean, boolean, int)}, built on first use. */
+    private TerminalSearchIndex mSearchIndex;
+    /** The rows with shell integration marks. */
+    private final TerminalMarkIndex mMarkIndex = new TerminalMarkIndex();
 
     /**
      * Create a transcript screen.
@@ -38,11 +67,19 @@ public final class TerminalBuffer {
     }
 
     public String getTranscriptText() {
-        return getSelectedText(0, -getActiveTranscriptRows(), mColumns, mScreenRows).trim();
+        return getTranscriptTextView(true).toString();
     }
 
     public String getTranscriptTextWithoutJoinedLines() {
-        return getSelectedText(0, -getActiveTranscriptRows(), mColumns, mScreenRows, false).trim();
+        return getTranscriptTextView(false).toString();
+    }
+
+    /**
+     * Get a view of the whole transcript and screen text with surrounding whitespace trimmed, without copying it. See
+     * {@link TerminalBufferText} for when the view may be used.
+     */
+    public TerminalBufferText getTranscriptTextView(boolean joinBackLines) {
+        return getSelectedTextView(0, -getActiveTranscriptRows(), mColumns, mScreenRows, joinBackLines).trim();
     }
 
     public String getSelectedText(int selX1, int selY1, int selX2, int selY2) {
@@ -50,47 +87,12 @@ public final class TerminalBuffer {
     }
 
     public String getSelectedText(int selX1, int selY1, int selX2, int selY2, boolean joinBackLines) {
-        final StringBuilder builder = new StringBuilder();
-        final int columns = mColumns;
-
-        if (selY1 < -getActiveTranscriptRows()) selY1 = -getActiveTranscriptRows();
-        if (selY2 >= mScreenRows) selY2 = mScreenRows - 1;
-
-        for (int row = selY1; row <= selY2; row++) {
-            int x1 = (row == selY1) ? selX1 : 0;
-            int x2;
-            if (row == selY2) {
-                x2 = selX2 + 1;
-                if (x2 > columns) x2 = columns;
-            } else {
-                x2 = columns;
-            }
-            TerminalRow lineObject = mLines[externalToInternalRow(row)];
-            int x1Index = lineObject.findStartOfColumn(x1);
-            int x2Index = (x2 < mColumns) ? lineObject.findStartOfColumn(x2) : lineObject.getSpaceUsed();
-            if (x2Index == x1Index) {
-                // Selected the start of a wide character.
-                x2Index = lineObject.findStartOfColumn(x2 + 1);
-            }
-            char[] line = lineObject.mText;
-            int lastPrintingCharIndex = -1;
-            int i;
-            boolean rowLineWrap = getLineWrap(row);
-            if (rowLineWrap && x2 == columns) {
-                // If the line was wrapped, we shouldn't lose trailing space:
-                lastPrintingCharIndex = x2Index - 1;
-            } else {
-                for (i = x1Index; i < x2Index; ++i) {
-                    char c = line[i];
-                    if (c != ' ') lastPrintingCharIndex = i;
-                }
-            }
-            if (lastPrintingCharIndex != -1)
-                builder.append(line, x1Index, lastPrintingCharIndex - x1Index + 1);
-            if ((!joinBackLines || !rowLineWrap)
-                && row < selY2 && row < mScreenRows - 1) builder.append('\n');
-        }
-        return builder.toString();
+        return getSelectedTextView(selX1, selY1, selX2, selY2, joinBackLines).toString();
+    }
+
+    /** Get a view of the selected text without copying it. See {@link TerminalBufferText} for when it may be used. */
+    public TerminalBufferText getSelectedTextView(int selX1, int selY1, int selX2, int selY2, boolean joinBackLines) {
+        return new TerminalBufferText(this, selX1, selY1, selX2, selY2, joinBackLines);
     }
 
     public int getActiveTranscriptRows() {
@@ -129,6 +131,57 @@ public final class TerminalBuffer {
         return (internalRow < 0) ? (mTotalRows + internalRow) : (internalRow % mTotalRows);
     }
 
+    /** Note that an area of the screen has changed. Right and bottom are exclusive, and the area is clipped to the screen. */
+    void damage(int left, int top, int right, int bottom) {
+        if (left < 0) left = 0;
+        if (top < 0) top = 0;
+        if (right > mColumns) right = mColumns;
+        if (bottom > mScreenRows) bottom = mScreenRows;
+        if (left >= right || top >= bottom) return;
+
+        if (isDamaged()) {
+            if (left < mDamageLeft) mDamageLeft = left;
+            if (top < mDamageTop) mDamageTop = top;
+            if (right > mDamageRight) mDamageRight = right;
+            if (bottom > mDamageBottom) mDamageBottom = bottom;
+        } else {
+            mDamageLeft = left;
+            mDamageTop = top;
+            mDamageRight = right;
+            mDamageBottom = bottom;
+        }
+    }
+
+    /** Note that the whole screen needs to be redrawn. */
+    public void damageAll() {
+        damage(0, 0, mColumns, mScreenRows);
+    }
+
+    /** If any part of the screen has changed since the last call to {@link #clearDamage()}. */
+    public boolean isDamaged() {
+        return mDamageLeft < mDamageRight && mDamageTop < mDamageBottom;
+    }
+
+    public int getDamageLeft() {
+        return mDamageLeft;
+    }
+
+    public int getDamageTop() {
+        return mDamageTop;
+    }
+
+    public int getDamageRight() {
+        return mDamageRight;
+    }
+
+    public int getDamageBottom() {
+        return mDamageBottom;
+    }
+
+    public void clearDamage() {
+        mDamageLeft = mDamageTop = mDamageRight = mDamageBottom = 0;
+    }
+
     public void setLineWrap(int row) {
         mLines[externalToInternalRow(row)].mLineWrap = true;
     }
@@ -150,6 +203,14 @@ public final class TerminalBuffer {
      * @param cursor     An int[2] containing the (column, row) cursor location.
      */
     public void resize(int newColumns, int newRows, int newTotalRows, int[] cursor, long currentStyle, boolean altScreen) {
+        // Screen rows may end up in the transcript without being scrolled there, so index them now and not again when
+        // scrolled while reflowing:
+        final TerminalUrlIndex urlIndex = mUrlIndex;
+        if (urlIndex != null) urlIndex.addUrls(getSelectedTextView(0, findLineStart(0), mColumns, mScreenRows - 1, true));
+        mUrlIndex = null;
+        // Rows are reflowed, so the search index is rebuilt on the next search:
+        mSearchIndex = null;
+
         // newRows > mTotalRows should not normally happen since mTotalRows is TRANSCRIPT_ROWS (10000):
         if (newColumns == mColumns && newRows <= mTotalRows) {
             // Fast resize where just the rows changed.
@@ -175,6 +236,7 @@ public final class TerminalBuffer {
             }
             mScreenFirstRow += shiftDownOfTopRow;
             mScreenFirstRow = (mScreenFirstRow < 0) ? (mScreenFirstRow + mTotalRows) : (mScreenFirstRow % mTotalRows);
+            mScrolledRows += shiftDownOfTopRow;
             mTotalRows = newTotalRows;
             mActiveTranscriptRows = altScreen ? 0 : Math.max(0, mActiveTranscriptRows + shiftDownOfTopRow);
             cursor[1] -= shiftDownOfTopRow;
@@ -216,7 +278,7 @@ public final class TerminalBuffer {
                 TerminalRow oldLine = oldLines[internalOldRow];
                 boolean cursorAtThisRow = externalOldRow == oldCursorRow;
                 // The cursor may only be on a non-null line, which we should not skip:
-                if (oldLine == null || (!(!newCursorPlaced && cursorAtThisRow)) && oldLine.isBlank()) {
+                if (oldLine == null || (!(!newCursorPlaced && cursorAtThisRow)) && oldLine.isBlank() && oldLine.mShellMarks == 0) {
                     skippedBlankLines++;
                     continue;
                 } else if (skippedBlankLines > 0) {
@@ -247,6 +309,8 @@ public final class TerminalBuffer {
 
                 int currentOldCol = 0;
                 long styleAtCol = 0;
+                // Shell integration marks of the old row not yet moved to the new rows:
+                int marksToMove = oldLine.mShellMarks;
                 for (int i = 0; i < lastNonSpaceIndex; i++) {
                     // Note that looping over java character, not cells.
                     char c = oldLine.mText[i];
@@ -270,8 +334,14 @@ public final class TerminalBuffer {
                     int offsetDueToCombiningChar = ((displayWidth <= 0 && currentOutputExternalColumn > 0) ? 1 : 0);
                     int outputColumn = currentOutputExternalColumn - offsetDueToCombiningChar;
                     setChar(outputColumn, currentOutputExternalRow, codePoint, styleAtCol);
+                    if (displayWidth > 0 && oldLine.getLink(currentOldCol) != 0) {
+                        setLink(outputColumn, currentOutputExternalRow, displayWidth, oldLine.getLink(currentOldCol), oldLine.mLinkTable);
+                    }
 
                     if (displayWidth > 0) {
+                        if (marksToMove != 0) {
+                            marksToMove = moveShellMarks(oldLine, marksToMove, currentOldCol, outputColumn, currentOutputExternalRow);
+                        }
                         if (oldCursorRow == externalOldRow && oldCursorColumn == currentOldCol) {
                             newCursorColumn = currentOutputExternalColumn;
                             newCursorRow = currentOutputExternalRow;
@@ -282,6 +352,10 @@ public final class TerminalBuffer {
                         if (justToCursor && newCursorPlaced) break;
                     }
                 }
+                // Marks after the text of the old row end up after the text in the new rows:
+                if (marksToMove != 0) {
+                    moveShellMarks(oldLine, marksToMove, -1, Math.min(currentOutputExternalColumn, mColumns - 1), currentOutputExternalRow);
+                }
                 // Old row has been copied. Check if we need to insert newline if old line was not wrapping:
                 if (externalOldRow != (oldScreenRows - 1) && !oldLine.mLineWrap) {
                     if (currentOutputExternalRow == mScreenRows - 1) {
@@ -296,10 +370,43 @@ public final class TerminalBuffer {
 
             cursor[0] = newCursorColumn;
             cursor[1] = newCursorRow;
+
+            // The links have been referenced by the new rows:
+            for (TerminalRow oldLine : oldLines) {
+                if (oldLine != null) oldLine.releaseLinks();
+            }
+
+            // Rows have been renumbered:
+            mMarkIndex.clear();
+            for (int row = -mActiveTranscriptRows; row < mScreenRows; row++) {
+                TerminalRow line = mLines[externalToInternalRow(row)];
+                if (line != null && line.mShellMarks != 0) mMarkIndex.add(getRowNumber(row));
+            }
         }
 
         // Handle cursor scrolling off screen:
         if (cursor[0] < 0 || cursor[1] < 0) cursor[0] = cursor[1] = 0;
+
+        clearDamage();
+        damageAll();
+        mUrlIndex = urlIndex;
+    }
+
+    /**
+     * Move the shell integration marks of an old row at a column to a new row while reflowing.
+     *
+     * @param marks     the marks of the old row not yet moved.
+     * @param oldColumn the column in the old row, or -1 to move all remaining marks.
+     * @return the marks still to move.
+     */
+    private int moveShellMarks(TerminalRow oldLine, int marks, int oldColumn, int newColumn, int newRow) {
+        for (int mark = 1; mark < (1 << MARK_TYPES); mark <<= 1) {
+            if ((marks & mark) != 0 && (oldColumn == -1 || oldLine.getShellMarkColumn(mark) <= oldColumn)) {
+                allocateFullLineIfNecessary(externalToInternalRow(newRow)).setShellMark(mark, newColumn);
+                marks &= ~mark;
+            }
+        }
+        return marks;
     }
 
     /**
@@ -342,6 +449,7 @@ public final class TerminalBuffer {
 
         // Update the screen location in the ring buffer:
         mScreenFirstRow = (mScreenFirstRow + 1) % mTotalRows;
+        mScrolledRows++;
         // Note that the history has grown if not already full:
         if (mActiveTranscriptRows < mTotalRows - mScreenRows) mActiveTranscriptRows++;
 
@@ -352,6 +460,158 @@ public final class TerminalBuffer {
         } else {
             mLines[blankRow].clear(style);
         }
+
+        damage(0, topMargin, mColumns, bottomMargin);
+        if (mUrlIndex != null) indexTranscriptLine();
+        if (mSearchIndex != null) {
+            mSearchIndex.addRow(mLines[externalToInternalRow(-1)], mActiveTranscriptRows > 1 && getLineWrap(-2), mActiveTranscriptRows);
+        }
+    }
+
+    /** Scan the line last scrolled into the transcript for URLs, once all rows of the logical line are there. */
+    private void indexTranscriptLine() {
+        if (mActiveTranscriptRows == 0 || getLineWrap(-1)) return;
+
+        mUrlIndex.addUrls(getSelectedTextView(0, findLineStart(-1), mColumns, -1, true));
+    }
+
+    /**
+     * Get a number identifying a row while it is scrolled into and through the transcript, unlike its external row
+     * which changes on every scroll. Numbers are not preserved when the buffer is resized with a changed number of
+     * columns, since rows are then reflowed.
+     */
+    public long getRowNumber(int externalRow) {
+        return mScrolledRows + externalRow;
+    }
+
+    /** Get the number of the oldest row in the transcript, see {@link #getRowNumber(int)}. */
+    public long getFirstRowNumber() {
+        return mScrolledRows - mActiveTranscriptRows;
+    }
+
+    /** Get the number of the last row of the screen, see {@link #getRowNumber(int)}. */
+    public long getLastRowNumber() {
+        return mScrolledRows + mScreenRows - 1;
+    }
+
+    /**
+     * Copy rows into an array, reusing the rows in it where possible. This allows the rows to be processed on another
+     * thread while the buffer keeps changing.
+     *
+     * @param firstRowNumber the number of the first row to copy, see {@link #getRowNumber(int)}, which must be in the
+     *                       transcript or on the screen.
+     * @param rows           the array to copy into, starting at index 0.
+     * @param count          the number of rows to copy, which must not go past the end of the screen.
+     */
+    public void copyRows(long firstRowNumber, TerminalRow[] rows, int count) {
+        final int firstRow = (int) (firstRowNumber - mScrolledRows);
+        for (int i = 0; i < count; i++) {
+            rows[i] = allocateFullLineIfNecessary(externalToInternalRow(firstRow + i)).copyTo(rows[i]);
+        }
+    }
+
+    /** Mark a position with a shell integration mark, one of the MARK_* constants. */
+    void addShellMark(int row, int column, int mark) {
+        allocateFullLineIfNecessary(externalToInternalRow(row)).setShellMark(mark, column);
+        mMarkIndex.add(getRowNumber(row));
+    }
+
+    /**
+     * Find the nearest row before or after a row with any of the specified shell integration marks. Found through an
+     * index, so without scanning the rows in between.
+     *
+     * @param row   the row to start from, which is not included.
+     * @param marks a combination of the MARK_* constants.
+     * @param older if searching for a row before instead of after the row.
+     * @return the external row, or {@link #NO_ROW} if none.
+     */
+    public int findShellMark(int row, int marks, boolean older) {
+        mMarkIndex.dropBefore(getFirstRowNumber());
+        int index = mMarkIndex.indexOf(getRowNumber(older ? row : row + 1));
+        if (older) index--;
+        for (; mMarkIndex.isValidIndex(index); index += older ? -1 : 1) {
+            final int markedRow = (int) (mMarkIndex.get(index) - mScrolledRows);
+            // Rows below the screen have been dropped when it shrunk:
+            if (markedRow >= mScreenRows) {
+                if (older) continue;
+                break;
+            }
+            // Rows may have been cleared or overwritten since they were marked:
+            TerminalRow line = mLines[externalToInternalRow(markedRow)];
+            if (line != null && (line.mShellMarks & marks) != 0 && !line.isBlank()) return markedRow;
+        }
+        return NO_ROW;
+    }
+
+    /**
+     * Get the output of the command whose prompt is at or above a row, as marked by the shell through shell integration
+     * escape sequences. The output of a command still running extends to the end of the screen.
+     *
+     * @return a view of the output, see {@link #getSelectedTextView(int, int, int, int, boolean)}, or null if no
+     * command output is marked.
+     */
+    public TerminalBufferText getCommandOutputView(int row) {
+        final int promptRow = findShellMark(row + 1, MARK_PROMPT, true);
+        int outputRow;
+        if (promptRow == NO_ROW) {
+            outputRow = findShellMark(row + 1, MARK_OUTPUT, true);
+        } else {
+            final TerminalRow promptLine = mLines[externalToInternalRow(promptRow)];
+            outputRow = (findShellMarkColumn(promptLine, MARK_OUTPUT, promptLine.getShellMarkColumn(MARK_PROMPT) + 1) >= 0)
+                ? promptRow : findShellMark(promptRow, MARK_OUTPUT, false);
+            // A command which was never run has no output, not that of the next command:
+            final int nextPromptRow = findShellMark(promptRow, MARK_PROMPT, false);
+            if (nextPromptRow != NO_ROW && outputRow > nextPromptRow) outputRow = NO_ROW;
+        }
+        if (outputRow == NO_ROW) return null;
+
+        final TerminalRow outputLine = mLines[externalToInternalRow(outputRow)];
+        final int outputColumn = outputLine.getShellMarkColumn(MARK_OUTPUT);
+
+        // The output ends where the command is marked as finished or at the next prompt:
+        final int endMarks = MARK_COMMAND_END | MARK_PROMPT;
+        int endRow = outputRow;
+        int endColumn = findShellMarkColumn(outputLine, endMarks, outputColumn);
+        if (endColumn < 0) {
+            endRow = findShellMark(outputRow, endMarks, false);
+            if (endRow == NO_ROW) {
+                endRow = mScreenRows - 1;
+                endColumn = mColumns;
+            } else {
+                endColumn = findShellMarkColumn(mLines[externalToInternalRow(endRow)], endMarks, 0);
+            }
+        }
+
+        if (endRow == outputRow && endColumn <= outputColumn) {
+            return getSelectedTextView(outputColumn, outputRow, outputColumn, outputRow, true).subSequence(0, 0);
+        } else if (endColumn == 0) {
+            // Output ending with a newline:
+            return getSelectedTextView(outputColumn, outputRow, mColumns, endRow - 1, true);
+        }
+        return getSelectedTextView(outputColumn, outputRow, endColumn - 1, endRow, true);
+    }
+
+    /** Get the first column at or after a column with any of the specified marks in a row, or -1 if none. */
+    private static int findShellMarkColumn(TerminalRow line, int marks, int fromColumn) {
+        int result = -1;
+        for (int mark = 1; mark < (1 << MARK_TYPES); mark <<= 1) {
+            if ((line.mShellMarks & marks & mark) == 0) continue;
+            final int column = line.getShellMarkColumn(mark);
+            if (column >= fromColumn && (result < 0 || column < result)) result = column;
+        }
+        return result;
+    }
+
+    /** Find the last row of the logical line, possibly spanning several wrapped rows, containing the specified row. */
+    int findLineEnd(int row) {
+        while (row < mScreenRows - 1 && getLineWrap(row)) row++;
+        return row;
+    }
+
+    /** Find the first row of the logical line, possibly spanning several wrapped rows, containing the specified row. */
+    int findLineStart(int row) {
+        while (row > -mActiveTranscriptRows && getLineWrap(row - 1)) row--;
+        return row;
     }
 
     /**
@@ -376,6 +636,8 @@ public final class TerminalBuffer {
             TerminalRow sourceRow = allocateFullLineIfNecessary(externalToInternalRow(sy + y2));
             allocateFullLineIfNecessary(externalToInternalRow(dy + y2)).copyInterval(sourceRow, sx, sx + w, dx);
         }
+        // Include neighbouring columns as wide characters there may have been cut in half:
+        damage(dx - 1, dy, dx + w + 1, dy + h);
     }
 
     /**
@@ -388,9 +650,12 @@ public final class TerminalBuffer {
             throw new IllegalArgumentException(
                 "Illegal arguments! blockSet(" + sx + ", " + sy + ", " + w + ", " + h + ", " + val + ", " + mColumns + ", " + mScreenRows + ")");
         }
-        for (int y = 0; y < h; y++)
+        for (int y = 0; y < h; y++) {
+            // Release the links of whole rows at once, instead of keeping them until the row is cleared:
+            if (sx == 0 && w == mColumns) allocateFullLineIfNecessary(externalToInternalRow(sy + y)).releaseLinks();
             for (int x = 0; x < w; x++)
                 setChar(sx + x, sy + y, val, style);
+        }
     }
 
     public TerminalRow allocateFullLineIfNecessary(int row) {
@@ -400,10 +665,18 @@ public final class TerminalBuffer {
     public void setChar(int column, int row, int codePoint, long style) {
         if (row >= mScreenRows || column >= mColumns)
             throw new IllegalArgumentException("row=" + row + ", column=" + column + ", mScreenRows=" + mScreenRows + ", mColumns=" + mColumns);
+        // Wide and combining characters may change the neighbouring columns:
+        damage(column - 1, row, column + 2, row + 1);
         row = externalToInternalRow(row);
         allocateFullLineIfNecessary(row).setChar(column, codePoint, style);
     }
 
+    /** Set the hyperlink of the cells of a character, see {@link TerminalLinkTable}. */
+    void setLink(int column, int row, int width, int link, TerminalLinkTable table) {
+        TerminalRow line = allocateFullLineIfNecessary(externalToInternalRow(row));
+        for (int i = 0; i < width && column + i < mColumns; i++) line.setLink(column + i, link, table);
+    }
+
     public long getStyleAt(int externalRow, int column) {
         return allocateFullLineIfNecessary(externalToInternalRow(externalRow)).getStyle(column);
     }
@@ -431,9 +704,14 @@ public final class TerminalBuffer {
                 line.mStyle[x] = TextStyle.encode(foreColor, backColor, effect);
             }
         }
+        damage(0, top, mColumns, bottom);
     }
 
     public void clearTranscript() {
+        for (int row = -mActiveTranscriptRows; row < 0; row++) {
+            TerminalRow line = mLines[externalToInternalRow(row)];
+            if (line != null) line.releaseLinks();
+        }
         if (mScreenFirstRow < mActiveTranscriptRows) {
             Arrays.fill(mLines, mTotalRows + mScreenFirstRow - mActiveTranscriptRows, mTotalRows, null);
             Arrays.fill(mLines, 0, mScreenFirstRow, null);
@@ -441,5 +719,75 @@ public final class TerminalBuffer {
             Arrays.fill(mLines, mScreenFirstRow - mActiveTranscriptRows, mScreenFirstRow, null);
         }
         mActiveTranscriptRows = 0;
+        mMarkIndex.dropBefore(getFirstRowNumber());
+        if (mUrlIndex != null) mUrlIndex.clear();
+        mSearchIndex = null;
+    }
+
+    /**
+     * Find text in the transcript and on the screen. Lines in the transcript are only scanned if they may contain a
+     * literal query according to a trigram index, which is built on the first search and then kept up to date as rows
+     * are scrolled into the transcript.
+     *
+     * @param query         the text to find, or a regular expression.
+     * @param regex         if the query is a regular expression.
+     * @param caseSensitive if the case of letters must match.
+     * @param maxMatches    the maximum number of matches to return, keeping the last ones.
+     * @return the matches in order from the top of the transcript.
+     * @throws java.util.regex.PatternSyntaxException if the regular expression is invalid.
+     */
+    public List<TerminalSearchMatch> search(String query, boolean regex, boolean caseSensitive, int maxMatches) {
+        int flags = caseSensitive ? 0 : (Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+        if (!regex) flags |= Pattern.LITERAL;
+        final Pattern pattern = Pattern.compile(query, flags);
+        final ArrayDeque<TerminalSearchMatch> matches = new ArrayDeque<>();
+
+        int[] candidateLines = null;
+        if (!regex && mTotalRows > mScreenRows) {
+            if (mSearchIndex == null) buildSearchIndex();
+            candidateLines = mSearchIndex.findCandidateLines(query);
+        }
+
+        if (candidateLines == null) {
+            findMatches(pattern, -mActiveTranscriptRows, mScreenRows - 1, matches, maxMatches);
+        } else {
+            // Lines on the screen, including one starting in the transcript, are not indexed and always scanned. The
+            // same goes for the top line if its first rows have been evicted from the transcript.
+            final int screenStart = findLineStart(0);
+            final int topLineEnd = Math.min(findLineEnd(-mActiveTranscriptRows), screenStart - 1);
+            if (topLineEnd >= -mActiveTranscriptRows) findMatches(pattern, -mActiveTranscriptRows, topLineEnd, matches, maxMatches);
+            for (int line : candidateLines) {
+                final int row = line - mSearchIndex.mNextRowNumber;
+                if (row <= topLineEnd) continue;
+                if (row >= screenStart) break;
+                findMatches(pattern, row, findLineEnd(row), matches, maxMatches);
+            }
+            findMatches(pattern, screenStart, mScreenRows - 1, matches, maxMatches);
+        }
+        return new ArrayList<>(matches);
+    }
+
+    private void findMatches(Pattern pattern, int startRow, int endRow, ArrayDeque<TerminalSearchMatch> matches, int maxMatches) {
+        final TerminalBufferText text = getSelectedTextView(0, startRow, mColumns, endRow, true);
+        final Matcher matcher = pattern.matcher(text);
+        while (matcher.find()) {
+            final int start = matcher.start();
+            final int end = matcher.end();
+            if (start == end) continue;
+
+            final int lastCodePoint = Character.codePointBefore(text, end);
+            final int last = end - Character.charCount(lastCodePoint);
+            matches.add(new TerminalSearchMatch(text.getRowAt(start), text.getColumnAt(start), text.getRowAt(last),
+                text.getColumnAt(last) + Math.max(1, WcWidth.width(lastCodePoint)) - 1));
+            if (matches.size() > maxMatches) matches.removeFirst();
+        }
+    }
+
+    private void buildSearchIndex() {
+        mSearchIndex = new TerminalSearchIndex();
+        for (int row = -mActiveTranscriptRows; row < 0; row++) {
+            final boolean continuesLine = row > -mActiveTranscriptRows && getLineWrap(row - 1);
+            mSearchIndex.addRow(mLines[externalToInternalRow(row)], continuesLine, row + mActiveTranscriptRows + 1);
+        }
     }
 }
@@ -0,0 +1,197 @@
+package xeffyr.alpine.term.terminal;
+
+/**
+ * A {@link CharSequence} over text in a {@link TerminalBuffer}, reading characters directly from the rows instead of
+ * copying them. This allows e.g. regular expressions to be matched against the whole transcript without building a
+ * string of it first.
+ * <p>
+ * Only the position and extent of each row is computed when the view is created, the text itself is read on access.
+ * The view is only valid until the buffer is modified, so it must be used and discarded on the thread appending to
+ * the emulator (the main thread) without processing more output in between. Use {@link #toString()} to keep a copy.
+ */
+public final class TerminalBufferText implements CharSequence {
+
+    /** The external row of the first row in this view. */
+    private final int mFirstRow;
+    /** The rows of the text. */
+    private final TerminalRow[] mRows;
+    /** The start and end (exclusive) index into the {@link TerminalRow#mText} of each row. */
+    private final int[] mRowStart, mRowEnd;
+    /** The offset of each row in the text of the whole view, plus the total length as last element. */
+    private final int[] mRowOffsets;
+
+    /** The part of the text exposed by this instance, to make {@link #subSequence(int, int)} share the row data. */
+    private final int mStart, mEnd;
+
+    /** The index of the row last accessed by {@link #charAt(int)}, since access is mostly sequential. */
+    private int mLastRow;
+
+    /**
+     * Create a view of the selected text in the buffer. See {@link TerminalBuffer#getSelectedText(int, int, int, int,
+     * boolean)} for the meaning of the arguments.
+     */
+    TerminalBufferText(TerminalBuffer buffer, int selX1, int selY1, int selX2, int selY2, boolean joinBackLines) {
+        final int columns = buffer.mColumns;
+        final int screenRows = buffer.mScreenRows;
+
+        if (selY1 < -buffer.getActiveTranscriptRows()) selY1 = -buffer.getActiveTranscriptRows();
+        if (selY2 >= screenRows) selY2 = screenRows - 1;
+
+        final int rowCount = Math.max(0, selY2 - selY1 + 1);
+        mFirstRow = selY1;
+        mRows = new TerminalRow[rowCount];
+        mRowStart = new int[rowCount];
+        mRowEnd = new int[rowCount];
+        mRowOffsets = new int[rowCount + 1];
+
+        int offset = 0;
+        for (int i = 0; i < rowCount; i++) {
+            final int row = selY1 + i;
+            int x1 = (row == selY1) ? selX1 : 0;
+            int x2;
+            if (row == selY2) {
+                x2 = selX2 + 1;
+                if (x2 > columns) x2 = columns;
+            } else {
+                x2 = columns;
+            }
+            TerminalRow lineObject = buffer.mLines[buffer.externalToInternalRow(row)];
+            int x1Index = lineObject.findStartOfColumn(x1);
+            int x2Index = (x2 < columns) ? lineObject.findStartOfColumn(x2) : lineObject.getSpaceUsed();
+            if (x2Index == x1Index) {
+                // Selected the start of a wide character.
+                x2Index = lineObject.findStartOfColumn(x2 + 1);
+            }
+            char[] line = lineObject.mText;
+            int lastPrintingCharIndex = -1;
+            boolean rowLineWrap = lineObject.mLineWrap;
+            if (rowLineWrap && x2 == columns) {
+                // If the line was wrapped, we shouldn't lose trailing space:
+                lastPrintingCharIndex = x2Index - 1;
+            } else {
+                for (int j = x1Index; j < x2Index; ++j) {
+                    if (line[j] != ' ') lastPrintingCharIndex = j;
+                }
+            }
+
+            mRows[i] = lineObject;
+            mRowStart[i] = x1Index;
+            mRowEnd[i] = (lastPrintingCharIndex == -1) ? x1Index : lastPrintingCharIndex + 1;
+            mRowOffsets[i] = offset;
+            offset += mRowEnd[i] - mRowStart[i];
+            // A newline is represented as the position just after the row end, see charAt().
+            if ((!joinBackLines || !rowLineWrap) && row < selY2 && row < screenRows - 1) offset++;
+        }
+        mRowOffsets[rowCount] = offset;
+
+        mStart = 0;
+        mEnd = offset;
+    }
+
+    private TerminalBufferText(TerminalBufferText text, int start, int end) {
+        mFirstRow = text.mFirstRow;
+        mRows = text.mRows;
+        mRowStart = text.mRowStart;
+        mRowEnd = text.mRowEnd;
+        mRowOffsets = text.mRowOffsets;
+        mStart = start;
+        mEnd = end;
+        mLastRow = text.mLastRow;
+    }
+
+    @Override
+    public int length() {
+        return mEnd - mStart;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= mEnd - mStart)
+            throw new IndexOutOfBoundsException("index=" + index + ", length=" + (mEnd - mStart));
+
+        final int position = mStart + index;
+        final int row = findRow(position);
+        final int rowIndex = mRowStart[row] + position - mRowOffsets[row];
+        return (rowIndex < mRowEnd[row]) ? mRows[row].mText[rowIndex] : '\n';
+    }
+
+    @Override
+    public TerminalBufferText subSequence(int start, int end) {
+        if (start < 0 || end > mEnd - mStart || start > end)
+            throw new IndexOutOfBoundsException("start=" + start + ", end=" + end + ", length=" + (mEnd - mStart));
+        return new TerminalBufferText(this, mStart + start, mStart + end);
+    }
+
+    /** Get the external row in the buffer of the character at the specified index. */
+    public int getRowAt(int index) {
+        return mFirstRow + findRow(mStart + index);
+    }
+
+    /**
+     * Get the column in the buffer of the character at the specified index. A newline is at the column after the last
+     * character of its row.
+     */
+    public int getColumnAt(int index) {
+        final int position = mStart + index;
+        final int row = findRow(position);
+        final char[] text = mRows[row].mText;
+        final int end = Math.min(mRowStart[row] + position - mRowOffsets[row], mRowEnd[row]);
+
+        int column = 0;
+        for (int i = 0; i < end; i++) {
+            char c = text[i];
+            if (Character.isHighSurrogate(c)) {
+                column += Math.max(0, WcWidth.width(Character.toCodePoint(c, text[++i])));
+            } else {
+                column += Math.max(0, WcWidth.width(c));
+            }
+        }
+        return column;
+    }
+
+    /** Return a view of this text with leading and trailing whitespace removed, like {@link String#trim()}. */
+    public TerminalBufferText trim() {
+        int start = 0;
+        int end = length();
+        while (start < end && charAt(start) <= ' ') start++;
+        while (end > start && charAt(end - 1) <= ' ') end--;
+        return (start == 0 && end == length()) ? this : subSequence(start, end);
+    }
+
+    /** Return the row, as index into the arrays of this view, which contains the specified position. */
+    private int findRow(int position) {
+        int row = mLastRow;
+        if (position >= mRowOffsets[row] && position < mRowOffsets[row + 1]) return row;
+        if (row + 1 < mRows.length && position >= mRowOffsets[row + 1] && position < mRowOffsets[row + 2]) {
+            return mLastRow = row + 1;
+        }
+
+        // Binary search for the last row starting at or before the position, skipping empty rows.
+        int low = 0, high = mRows.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (mRowOffsets[mid] <= position) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return mLastRow = low;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder(length());
+        if (mStart == mEnd) return "";
+
+        for (int row = findRow(mStart); row < mRows.length && mRowOffsets[row] < mEnd; row++) {
+            final int rowOffset = mRowOffsets[row];
+            final int from = Math.max(mStart, rowOffset);
+            final int to = Math.min(mEnd, mRowOffsets[row + 1]);
+            final int textEnd = Math.min(to, rowOffset + mRowEnd[row] - mRowStart[row]);
+            if (textEnd > from) builder.append(mRows[row].mText, mRowStart[row] + from - rowOffset, textEnd - from);
+            if (to > textEnd && to > from) builder.append('\n');
+        }
+        return builder.toString();
+    }
+}
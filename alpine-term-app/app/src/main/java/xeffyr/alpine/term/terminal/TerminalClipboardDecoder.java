@@ -0,0 +1,103 @@
+package xeffyr.alpine.term.terminal;
+
+import java.util.Arrays;
+
+/**
+ * Decodes the base64 data of an OSC 52 sequence as it arrives, so that it is never collected as a string. The decoded
+ * data is limited in size, and the rest of a sequence above the limit is dropped.
+ */
+final class TerminalClipboardDecoder {
+
+    /** The size of the buffer kept between sequences, larger buffers are released once decoded. */
+    private static final int RETAINED_BUFFER_SIZE = 64 * 1024;
+
+    private byte[] mBuffer = new byte[1024];
+    private int mLength;
+    private int mLimit;
+
+    /** The bits decoded but not yet making up a byte, and their number. */
+    private int mBits, mBitCount;
+
+    /** The number of characters received, including ignored ones. */
+    private int mCharCount;
+    private boolean mQuery, mPadded, mInvalid, mOverflowed;
+
+    /** Start decoding the data of a new sequence, of which at most limit bytes are kept. */
+    void start(int limit) {
+        if (mBuffer.length > RETAINED_BUFFER_SIZE) mBuffer = new byte[1024];
+        mLength = 0;
+        mLimit = limit;
+        mBits = mBitCount = mCharCount = 0;
+        mQuery = mPadded = mInvalid = mOverflowed = false;
+    }
+
+    /** Decode a character of the data, which may be a code point outside of the base64 alphabet. */
+    void append(int c) {
+        mCharCount++;
+        if (mInvalid || mOverflowed) return;
+
+        final int value;
+        if (c >= 'A' && c <= 'Z') {
+            value = c - 'A';
+        } else if (c >= 'a' && c <= 'z') {
+            value = c - 'a' + 26;
+        } else if (c >= '0' && c <= '9') {
+            value = c - '0' + 52;
+        } else if (c == '+' || c == '-') {
+            value = 62;
+        } else if (c == '/' || c == '_') {
+            value = 63;
+        } else if (c == '=') {
+            mPadded = true;
+            return;
+        } else if (c == '?' && mCharCount == 1) {
+            mQuery = true;
+            return;
+        } else if (c == ' ' || c == '\t' || c == '\r' || c == '\n') {
+            return;
+        } else {
+            mInvalid = true;
+            return;
+        }
+        if (mPadded || mQuery) {
+            // Data after the padding or the query.
+            mInvalid = true;
+            return;
+        }
+
+        mBits = (mBits << 6) | value;
+        mBitCount += 6;
+        if (mBitCount >= 8) {
+            mBitCount -= 8;
+            if (mLength == mLimit) {
+                mOverflowed = true;
+                return;
+            }
+            if (mLength == mBuffer.length) mBuffer = Arrays.copyOf(mBuffer, Math.min(mLimit, 2 * mBuffer.length));
+            mBuffer[mLength++] = (byte) (mBits >> mBitCount);
+            mBits &= (1 << mBitCount) - 1;
+        }
+    }
+
+    /** If the data was only "?", asking for the clipboard instead of setting it. */
+    boolean isQuery() {
+        return mQuery && !mInvalid;
+    }
+
+    boolean isInvalid() {
+        return mInvalid;
+    }
+
+    /** If the decoded data was above the limit, in which case it is incomplete. */
+    boolean isOverflowed() {
+        return mOverflowed;
+    }
+
+    byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    int getLength() {
+        return mLength;
+    }
+}
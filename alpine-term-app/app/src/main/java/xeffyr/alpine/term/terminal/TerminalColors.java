@@ -12,6 +12,9 @@ public final class TerminalColors {
      */
     public final int[] mCurrentColors = new int[TextStyle.NUM_INDEXED_COLORS];
 
+    /** Incremented each time {@link #mCurrentColors} changes, so that users may cache colors resolved from it. */
+    private int mGeneration;
+
     /** Create a new instance with default colors from the theme. */
     public TerminalColors() {
         reset();
@@ -20,11 +23,18 @@ public final class TerminalColors {
     /** Reset a particular indexed color with the default color from the color theme. */
     public void reset(int index) {
         mCurrentColors[index] = COLOR_SCHEME.mDefaultColors[index];
+        mGeneration++;
     }
 
     /** Reset all indexed colors with the default color from the color theme. */
     public void reset() {
         System.arraycopy(COLOR_SCHEME.mDefaultColors, 0, mCurrentColors, 0, TextStyle.NUM_INDEXED_COLORS);
+        mGeneration++;
+    }
+
+    /** The palette generation, which changes whenever any of the current colors change. */
+    public int getGeneration() {
+        return mGeneration;
     }
 
     /**
@@ -70,7 +80,10 @@ public final class TerminalColors {
     /** Try parse a color from a text parameter and into a specified index. */
     public void tryParseColor(int intoIndex, String textParameter) {
         int c = parse(textParameter);
-        if (c != 0) mCurrentColors[intoIndex] = c;
+        if (c != 0) {
+            mCurrentColors[intoIndex] = c;
+            mGeneration++;
+        }
     }
 
 }
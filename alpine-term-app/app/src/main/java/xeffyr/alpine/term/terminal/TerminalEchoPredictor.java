@@ -0,0 +1,187 @@
+package xeffyr.alpine.term.terminal;
+
+/**
+ * Predicts the echo of printable characters typed into a session with a slow round trip, e.g. a serial console of an
+ * emulated machine, so that they can be shown before the process echoes them, like mosh does.
+ * <p>
+ * Predictions are only kept as an overlay drawn by the view and never change the screen of the emulator. Each one is
+ * checked against the screen after output has been processed: once the cursor has moved away from a predicted cell,
+ * the prediction is confirmed if the cell holds the predicted character and otherwise all predictions are dropped.
+ * <p>
+ * Any other input, such as enter or a cursor key, starts a new epoch in which predictions are not shown until one of
+ * them has been confirmed. As a result nothing is shown for input which is not echoed, e.g. at a password prompt.
+ * Predictions are only made while the main buffer is active with a visible cursor, at the end of the text of the row
+ * and not into the last column, as guessing about line editing or wrapping is too likely to be wrong.
+ * <p>
+ * Only used on the main thread.
+ */
+public final class TerminalEchoPredictor {
+
+    /** How long a prediction may stay unconfirmed before it is dropped and the epoch is considered without echo. */
+    static final long TIMEOUT_MILLIS = 1000;
+    private static final int MAX_PREDICTIONS = 64;
+
+    private final TerminalEmulator mEmulator;
+
+    /** The predicted characters with their cells, in the order typed. */
+    private final int[] mCodePoints = new int[MAX_PREDICTIONS];
+    private final int[] mColumns = new int[MAX_PREDICTIONS];
+    /** The rows as numbers, see {@link TerminalBuffer#getRowNumber(int)}, to follow them when scrolled. */
+    private final long[] mRowNumbers = new long[MAX_PREDICTIONS];
+    private final long[] mTimes = new long[MAX_PREDICTIONS];
+    private int mCount;
+
+    /** If a prediction has been confirmed since the last input other than a printable character. */
+    private boolean mEpochConfirmed;
+    /** Set by other input until the next output, since the cursor of the emulator is not where the process has it. */
+    private boolean mAwaitingOutput;
+
+    TerminalEchoPredictor(TerminalEmulator emulator) {
+        mEmulator = emulator;
+    }
+
+    /** Predict the echo of a printable character typed by the user. */
+    void onCodePointTyped(int codePoint, long now) {
+        if (mAwaitingOutput || mCount == MAX_PREDICTIONS || WcWidth.width(codePoint) != 1
+            || mEmulator.isAlternateBufferActive() || !mEmulator.isShowingCursor()) {
+            onOtherInput();
+            return;
+        }
+
+        final TerminalBuffer screen = mEmulator.getScreen();
+        final int column;
+        final int row;
+        if (mCount == 0) {
+            column = mEmulator.getCursorCol();
+            row = mEmulator.getCursorRow();
+        } else {
+            column = mColumns[mCount - 1] + 1;
+            row = (int) (mRowNumbers[mCount - 1] - screen.getRowNumber(0));
+        }
+        if (row < 0 || row >= mEmulator.mRows || column >= mEmulator.mColumns - 1 || !isBlankFrom(screen, column, row)) {
+            onOtherInput();
+            return;
+        }
+
+        mCodePoints[mCount] = codePoint;
+        mColumns[mCount] = column;
+        mRowNumbers[mCount] = screen.getRowNumber(row);
+        mTimes[mCount] = now;
+        mCount++;
+        if (mEpochConfirmed) damage(mCount - 1);
+    }
+
+    /** Called for any input other than a printable character, starting a new epoch. */
+    void onOtherInput() {
+        clear();
+        mEpochConfirmed = false;
+        mAwaitingOutput = true;
+    }
+
+    /** Check the predictions against the screen after the emulator has processed output. */
+    void onOutputProcessed() {
+        mAwaitingOutput = false;
+        if (mCount == 0) return;
+        if (mEmulator.isAlternateBufferActive()) {
+            onOtherInput();
+            return;
+        }
+
+        final TerminalBuffer screen = mEmulator.getScreen();
+        final long cursorRowNumber = screen.getRowNumber(mEmulator.getCursorRow());
+        final int cursorColumn = mEmulator.getCursorCol();
+        int confirmed = 0;
+        while (confirmed < mCount) {
+            if (mRowNumbers[confirmed] == cursorRowNumber && mColumns[confirmed] == cursorColumn) break; // Not yet echoed.
+            final int row = (int) (mRowNumbers[confirmed] - screen.getRowNumber(0));
+            if (row < -screen.getActiveTranscriptRows() || row >= mEmulator.mRows
+                || getCodePoint(screen, mColumns[confirmed], row) != mCodePoints[confirmed]) {
+                // Something else happened than predicted:
+                clear();
+                mEpochConfirmed = false;
+                return;
+            }
+            confirmed++;
+        }
+
+        if (confirmed > 0) {
+            final boolean wasConfirmed = mEpochConfirmed;
+            mEpochConfirmed = true;
+            removeFirst(confirmed);
+            // Predictions of this epoch typed before the first confirmation are shown from now on:
+            if (!wasConfirmed) for (int i = 0; i < mCount; i++) damage(i);
+        }
+    }
+
+    /**
+     * Drop the predictions if the oldest one has not been confirmed in time.
+     *
+     * @return the time at which to check again, or -1 if there are no predictions left.
+     */
+    long expire(long now) {
+        if (mCount == 0) return -1;
+        if (now - mTimes[0] >= TIMEOUT_MILLIS) {
+            clear();
+            mEpochConfirmed = false;
+            return -1;
+        }
+        return mTimes[0] + TIMEOUT_MILLIS;
+    }
+
+    /** Drop all predictions, e.g. when the terminal is reset or resized. */
+    void clear() {
+        if (mEpochConfirmed) for (int i = 0; i < mCount; i++) damage(i);
+        mCount = 0;
+    }
+
+    /** The number of predictions to show, which is 0 until a prediction has been confirmed in the current epoch. */
+    public int getShownCount() {
+        return mEpochConfirmed ? mCount : 0;
+    }
+
+    public int getCodePoint(int index) {
+        return mCodePoints[index];
+    }
+
+    public int getColumn(int index) {
+        return mColumns[index];
+    }
+
+    /** Get the external row of a prediction, see {@link TerminalBuffer#externalToInternalRow(int)}. */
+    public int getRow(int index) {
+        return (int) (mRowNumbers[index] - mEmulator.getScreen().getRowNumber(0));
+    }
+
+    private void removeFirst(int count) {
+        final int remaining = mCount - count;
+        System.arraycopy(mCodePoints, count, mCodePoints, 0, remaining);
+        System.arraycopy(mColumns, count, mColumns, 0, remaining);
+        System.arraycopy(mRowNumbers, count, mRowNumbers, 0, remaining);
+        System.arraycopy(mTimes, count, mTimes, 0, remaining);
+        mCount = remaining;
+    }
+
+    /** Mark the cell of a prediction and the one after it, where the cursor is drawn, for redrawing. */
+    private void damage(int index) {
+        final int row = getRow(index);
+        if (row >= 0 && row < mEmulator.mRows) {
+            mEmulator.getScreen().damage(mColumns[index], row, Math.min(mColumns[index] + 2, mEmulator.mColumns), row + 1);
+        }
+    }
+
+    private static int getCodePoint(TerminalBuffer screen, int column, int row) {
+        TerminalRow line = screen.allocateFullLineIfNecessary(screen.externalToInternalRow(row));
+        final int index = line.findStartOfColumn(column);
+        return Character.codePointAt(line.mText, index);
+    }
+
+    /** Check if a row holds no text from a column on, so that typing there does not insert into existing text. */
+    private static boolean isBlankFrom(TerminalBuffer screen, int column, int row) {
+        TerminalRow line = screen.allocateFullLineIfNecessary(screen.externalToInternalRow(row));
+        final int spaceUsed = line.getSpaceUsed();
+        for (int i = line.findStartOfColumn(column); i < spaceUsed; i++) {
+            if (line.mText[i] != ' ') return false;
+        }
+        return true;
+    }
+}
@@ -4,7 +4,11 @@ import android.util.Base64;
 import android.util.Log;
 
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Locale;
 import java.util.Objects;
 import java.util.Stack;
@@ -88,9 +92,17 @@ public final class TerminalEmulator {
     /** The number of parameter arguments. This name comes from the ANSI standard for terminal escape codes. */
     private static final int MAX_ESCAPE_PARAMETERS = 16;
 
-    /** Needs to be large enough to contain reasonable OSC 52 pastes. */
+    /** The data of OSC 52 is not collected as a string, see {@link #mClipboardDecoder}. */
     private static final int MAX_OSC_STRING_LENGTH = 8192;
 
+    /**
+     * The largest {@link #mClipboardLimit}. Larger text would not fit in the binder transaction putting it on the
+     * clipboard, like the limit on copied selections.
+     */
+    public static final int MAX_CLIPBOARD_LIMIT = 256 * 1024;
+    /** The default of {@link #mClipboardLimit}. */
+    public static final int DEFAULT_CLIPBOARD_LIMIT = MAX_CLIPBOARD_LIMIT;
+
     /** DECSET 1 - application cursor keys. */
     private static final int DECSET_BIT_APPLICATION_CURSOR_KEYS = 1;
     private static final int DECSET_BIT_REVERSE_VIDEO = 1 << 1;
@@ -126,6 +138,12 @@ public final class TerminalEmulator {
     private static final int DECSET_BIT_LEFTRIGHT_MARGIN_MODE = 1 << 11;
     /** Not really DECSET bit... - http://www.vt100.net/docs/vt510-rm/DECSACE */
     private static final int DECSET_BIT_RECTANGULAR_CHANGEATTRIBUTE = 1 << 12;
+    /** DECSET 1005 - like the X10 mouse protocol, but with coordinates above 95 encoded as UTF-8. */
+    private static final int DECSET_BIT_MOUSE_PROTOCOL_UTF8 = 1 << 13;
+    /** DECSET 1015 - urxvt mouse protocol, like the X10 one but with decimal numbers. */
+    private static final int DECSET_BIT_MOUSE_PROTOCOL_URXVT = 1 << 14;
+    /** DECSET 2026 - synchronized output, see {@link #isSynchronizedOutputActive()}. */
+    private static final int DECSET_BIT_SYNCHRONIZED_OUTPUT = 1 << 15;
 
     private String mTitle;
     private final Stack<String> mTitleStack = new Stack<>();
@@ -153,6 +171,25 @@ public final class TerminalEmulator {
     /** The terminal session this emulator is bound to. */
     private final TerminalOutput mSession;
 
+    /** Patterns to watch the printed text for, or null. */
+    TerminalTriggers mTriggers;
+
+    /** The maximal number of bytes of text set by OSC 52, or 0 to ignore OSC 52. */
+    int mClipboardLimit = DEFAULT_CLIPBOARD_LIMIT;
+    /** Decodes the data of OSC 52 as it arrives while {@link #mDecodingClipboard} is set. */
+    private final TerminalClipboardDecoder mClipboardDecoder = new TerminalClipboardDecoder();
+    private boolean mDecodingClipboard;
+    /** The selection and terminator of the last OSC 52 request, used in the reply. */
+    private String mClipboardRequestSelection = "c", mClipboardRequestTerminator = "\007";
+
+    /** Buffer for encoding mouse events, see {@link #sendMouseEvents(int, int, int, boolean, int)}. */
+    private final byte[] mMouseEventBuffer = new byte[256];
+
+    /** The hyperlinks set by OSC 8 in both buffers. */
+    private final TerminalLinkTable mLinkTable = new TerminalLinkTable();
+    /** The hyperlink of printed characters, a number in {@link #mLinkTable} referenced by the emulator, or 0 for none. */
+    private int mLink;
+
     /** Keeps track of the current argument of the current escape sequence. Ranges from 0 to MAX_ESCAPE_PARAMETERS-1. */
     private int mArgIndex;
     /** Holds the arguments of the current escape sequence. */
@@ -239,6 +276,9 @@ public final class TerminalEmulator {
             } else if (internalBit == DECSET_BIT_MOUSE_TRACKING_BUTTON_EVENT) {
                 setDecsetinternalBit(DECSET_BIT_MOUSE_TRACKING_PRESS_RELEASE, false);
             }
+            // So are the mouse protocols, the last one set is used:
+            final int mouseProtocolBits = DECSET_BIT_MOUSE_PROTOCOL_SGR | DECSET_BIT_MOUSE_PROTOCOL_UTF8 | DECSET_BIT_MOUSE_PROTOCOL_URXVT;
+            if ((internalBit & mouseProtocolBits) != 0) mCurrentDecSetFlags &= ~mouseProtocolBits;
         }
         if (set) {
             mCurrentDecSetFlags |= internalBit;
@@ -269,10 +309,16 @@ public final class TerminalEmulator {
                 return DECSET_BIT_MOUSE_TRACKING_BUTTON_EVENT;
             case 1004:
                 return DECSET_BIT_SEND_FOCUS_EVENTS;
+            case 1005:
+                return DECSET_BIT_MOUSE_PROTOCOL_UTF8;
             case 1006:
                 return DECSET_BIT_MOUSE_PROTOCOL_SGR;
+            case 1015:
+                return DECSET_BIT_MOUSE_PROTOCOL_URXVT;
             case 2004:
                 return DECSET_BIT_BRACKETED_PASTE_MODE;
+            case 2026:
+                return DECSET_BIT_SYNCHRONIZED_OUTPUT;
             default:
                 return -1;
             // throw new IllegalArgumentException("Unsupported decset: " + decsetBit);
@@ -282,6 +328,7 @@ public final class TerminalEmulator {
     public TerminalEmulator(TerminalOutput session, int columns, int rows, int transcriptRows) {
         mSession = session;
         mScreen = mMainBuffer = new TerminalBuffer(columns, transcriptRows, rows);
+        mMainBuffer.mUrlIndex = new TerminalUrlIndex();
         mAltBuffer = new TerminalBuffer(columns, rows, rows);
         mRows = rows;
         mColumns = columns;
@@ -293,6 +340,21 @@ public final class TerminalEmulator {
         return mScreen;
     }
 
+    /**
+     * Get the URLs on the screen and in the transcript, hyperlinks set by OSC 8 first and then the rest most recent
+     * first. Only the screen is scanned on each call, lines in the transcript were indexed when scrolled there.
+     */
+    public List<String> getUrls() {
+        final int screenStart = mScreen.findLineStart(0);
+        List<String> screenUrls = new ArrayList<>(TerminalUrlIndex.findUrls(mScreen.getSelectedTextView(0, screenStart, mColumns, mRows - 1, true)));
+        Collections.reverse(screenUrls);
+
+        LinkedHashSet<String> urls = new LinkedHashSet<>(mLinkTable.getUris());
+        urls.addAll(screenUrls);
+        urls.addAll(mMainBuffer.mUrlIndex.getUrls());
+        return new ArrayList<>(urls);
+    }
+
     public boolean isAlternateBufferActive() {
         return mScreen == mAltBuffer;
     }
@@ -301,24 +363,99 @@ public final class TerminalEmulator {
      * @param mouseButton one of the MOUSE_* constants of this class.
      */
     public void sendMouseEvent(int mouseButton, int column, int row, boolean pressed) {
+        sendMouseEvents(mouseButton, column, row, pressed, 1);
+    }
+
+    /**
+     * Send the same mouse event several times in one write, e.g. for the steps a scroll wheel was turned during a
+     * frame. The events are encoded in the protocol selected by DECSET 1005, 1006 or 1015 (or the X10 one if none)
+     * directly into a reused buffer, so that no objects are allocated while e.g. dragging.
+     */
+    public void sendMouseEvents(int mouseButton, int column, int row, boolean pressed, int count) {
         if (column < 1) column = 1;
         if (column > mColumns) column = mColumns;
         if (row < 1) row = 1;
         if (row > mRows) row = mRows;
 
+        final byte[] buffer = mMouseEventBuffer;
+        int length = 0;
         if (mouseButton == MOUSE_LEFT_BUTTON_MOVED && !isDecsetInternalBitSet(DECSET_BIT_MOUSE_TRACKING_BUTTON_EVENT)) {
             // Do not send tracking.
+            return;
         } else if (isDecsetInternalBitSet(DECSET_BIT_MOUSE_PROTOCOL_SGR)) {
-            mSession.write(String.format("\033[<%d;%d;%d" + (pressed ? 'M' : 'm'), mouseButton, column, row));
+            buffer[length++] = '\033';
+            buffer[length++] = '[';
+            buffer[length++] = '<';
+            length = putDecimal(buffer, length, mouseButton);
+            buffer[length++] = ';';
+            length = putDecimal(buffer, length, column);
+            buffer[length++] = ';';
+            length = putDecimal(buffer, length, row);
+            buffer[length++] = (byte) (pressed ? 'M' : 'm');
+        } else if (isDecsetInternalBitSet(DECSET_BIT_MOUSE_PROTOCOL_URXVT)) {
+            mouseButton = pressed ? mouseButton : 3; // 3 for release of all buttons.
+            buffer[length++] = '\033';
+            buffer[length++] = '[';
+            length = putDecimal(buffer, length, 32 + mouseButton);
+            buffer[length++] = ';';
+            length = putDecimal(buffer, length, column);
+            buffer[length++] = ';';
+            length = putDecimal(buffer, length, row);
+            buffer[length++] = 'M';
+        } else if (isDecsetInternalBitSet(DECSET_BIT_MOUSE_PROTOCOL_UTF8)) {
+            mouseButton = pressed ? mouseButton : 3; // 3 for release of all buttons.
+            // Clip to the limits of two byte UTF-8 sequences.
+            boolean out_of_bounds = column > 2047 - 32 || row > 2047 - 32;
+            if (out_of_bounds) return;
+            buffer[length++] = '\033';
+            buffer[length++] = '[';
+            buffer[length++] = 'M';
+            length = putUtf8(buffer, length, 32 + mouseButton);
+            length = putUtf8(buffer, length, 32 + column);
+            length = putUtf8(buffer, length, 32 + row);
         } else {
             mouseButton = pressed ? mouseButton : 3; // 3 for release of all buttons.
             // Clip to screen, and clip to the limits of 8-bit data.
             boolean out_of_bounds = column > 255 - 32 || row > 255 - 32;
-            if (!out_of_bounds) {
-                byte[] data = {'\033', '[', 'M', (byte) (32 + mouseButton), (byte) (32 + column), (byte) (32 + row)};
-                mSession.write(data, 0, data.length);
-            }
+            if (out_of_bounds) return;
+            buffer[length++] = '\033';
+            buffer[length++] = '[';
+            buffer[length++] = 'M';
+            buffer[length++] = (byte) (32 + mouseButton);
+            buffer[length++] = (byte) (32 + column);
+            buffer[length++] = (byte) (32 + row);
+        }
+
+        // Repeat the event in the buffer, writing as many as fit at a time:
+        final int eventsPerWrite = Math.min(count, buffer.length / length);
+        for (int i = 1; i < eventsPerWrite; i++) System.arraycopy(buffer, 0, buffer, i * length, length);
+        while (count > 0) {
+            final int events = Math.min(count, eventsPerWrite);
+            mSession.write(buffer, 0, events * length);
+            count -= events;
+        }
+    }
+
+    /** Put the decimal digits of a non-negative value into the buffer, returning the position after them. */
+    private static int putDecimal(byte[] buffer, int position, int value) {
+        int digits = 1;
+        for (int rest = value / 10; rest > 0; rest /= 10) digits++;
+        for (int i = position + digits - 1; i >= position; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        return position + digits;
+    }
+
+    /** Put a value below 2048 into the buffer as a UTF-8 sequence, returning the position after it. */
+    private static int putUtf8(byte[] buffer, int position, int value) {
+        if (value < 0x80) {
+            buffer[position++] = (byte) value;
+        } else {
+            buffer[position++] = (byte) (0xC0 | (value >> 6));
+            buffer[position++] = (byte) (0x80 | (value & 0x3F));
         }
+        return position;
     }
 
     public void resize(int columns, int rows) {
@@ -385,6 +522,14 @@ public final class TerminalEmulator {
         return isDecsetInternalBitSet(DECSET_BIT_APPLICATION_CURSOR_KEYS);
     }
 
+    /**
+     * If the process is updating the screen with synchronized output (DECSET 2026), so that the screen should not be
+     * drawn until it is done and the update can be shown at once.
+     */
+    public boolean isSynchronizedOutputActive() {
+        return isDecsetInternalBitSet(DECSET_BIT_SYNCHRONIZED_OUTPUT);
+    }
+
     /** If mouse events are being sent as escape codes to the terminal. */
     public boolean isMouseTrackingActive() {
         return isDecsetInternalBitSet(DECSET_BIT_MOUSE_TRACKING_PRESS_RELEASE) || isDecsetInternalBitSet(DECSET_BIT_MOUSE_TRACKING_BUTTON_EVENT);
@@ -506,9 +651,11 @@ public final class TerminalEmulator {
             case 10: // Line feed (LF, \n).
             case 11: // Vertical tab (VT, \v).
             case 12: // Form feed (FF, \f).
+                if (mTriggers != null) mTriggers.onLineEnd();
                 doLinefeed();
                 break;
             case 13: // Carriage return (CR, \r).
+                if (mTriggers != null) mTriggers.onLineEnd();
                 setCursorCol(mLeftMargin);
                 break;
             case 14: // Shift Out (Ctrl-N, SO) → Switch to Alternate Character Set. This invokes the G1 character set.
@@ -748,7 +895,7 @@ public final class TerminalEmulator {
                                 value = (mScreen == mAltBuffer) ? 1 : 2;
                             } else {
                                 int internalBit = mapDecSetBitToInternalBit(mode);
-                                if (internalBit == -1) {
+                                if (internalBit != -1) {
                                     value = isDecsetInternalBitSet(internalBit) ? 1 : 2; // 1=set, 2=reset.
                                 } else {
                                     Log.e(EmulatorDebug.LOG_TAG, "Got DECRQM for unrecognized private DEC mode=" + mode);
@@ -1037,7 +1184,8 @@ public final class TerminalEmulator {
                 break;
             case 4: // DECSCLM-Scrolling Mode. Ignore.
                 break;
-            case 5: // Reverse video. No action.
+            case 5: // Reverse video. Just redraw, renderer will check with isReverseVideo().
+                mScreen.damageAll();
                 break;
             case 6: // Set: Origin Mode. Reset: Normal Cursor Mode. Ansi name: DECOM.
                 if (setting) setCursorPosition(0, 0);
@@ -1062,9 +1210,9 @@ public final class TerminalEmulator {
             case 1002:
             case 1003:
             case 1004:
-            case 1005: // UTF-8 mouse mode, ignore.
+            case 1005: // UTF-8 mouse mode.
             case 1006: // SGR Mouse Mode
-            case 1015:
+            case 1015: // urxvt mouse mode.
             case 1034: // Interpret "meta" key, sets eighth bit.
                 break;
             case 1048: // Set: Save cursor as in DECSC. Reset: Restore cursor as in DECRC.
@@ -1083,6 +1231,7 @@ public final class TerminalEmulator {
                     boolean resized = !(newScreen.mColumns == mColumns && newScreen.mScreenRows == mRows);
                     if (setting) saveCursor();
                     mScreen = newScreen;
+                    mScreen.damageAll();
                     if (!setting) {
                         int col = mSavedStateMain.mSavedCursorCol;
                         int row = mSavedStateMain.mSavedCursorRow;
@@ -1104,6 +1253,9 @@ public final class TerminalEmulator {
             case 2004:
                 // Bracketed paste mode - setting bit is enough.
                 break;
+            case 2026:
+                // Synchronized output - setting bit is enough, the session checks isSynchronizedOutputActive().
+                break;
             default:
                 unknownParameter(externalBit);
                 break;
@@ -1308,6 +1460,7 @@ public final class TerminalEmulator {
                 break;
             case ']': // OSC
                 mOSCOrDeviceControlArgs.setLength(0);
+                mDecodingClipboard = false;
                 continueSequence(ESC_OSC);
                 break;
             case '>': // DECKPNM
@@ -1806,6 +1959,13 @@ public final class TerminalEmulator {
 
     /** An Operating System Controls (OSC) Set Text Parameters. May come here from BEL or ST. */
     private void doOscSetTextParameters(String bellOrStringTerminator) {
+        if (mDecodingClipboard) {
+            mDecodingClipboard = false;
+            doOscClipboard(bellOrStringTerminator);
+            finishSequence();
+            return;
+        }
+
         int value = -1;
         String textParameter = "";
         // Extract initial $value from initial "$value;..." string.
@@ -1850,7 +2010,7 @@ public final class TerminalEmulator {
                                 return;
                             } else {
                                 mColors.tryParseColor(colorIndex, textParameter.substring(parsingPairStart, i));
-                                mSession.onColorsChanged();
+                                notifyColorsChanged();
                                 colorIndex = -1;
                                 parsingPairStart = -1;
                             }
@@ -1886,7 +2046,7 @@ public final class TerminalEmulator {
                                     + String.format(Locale.US, "%04x", b) + bellOrStringTerminator);
                             } else {
                                 mColors.tryParseColor(specialIndex, colorSpec);
-                                mSession.onColorsChanged();
+                                notifyColorsChanged();
                             }
                             specialIndex++;
                             if (endOfInput || (specialIndex > TextStyle.COLOR_INDEX_CURSOR) || ++charIndex >= textParameter.length())
@@ -1898,13 +2058,37 @@ public final class TerminalEmulator {
                     }
                 }
                 break;
-            case 52: // Manipulate Selection Data. Skip the optional first selection parameter(s).
-                int startIndex = textParameter.indexOf(";") + 1;
-                try {
-                    String clipboardText = new String(Base64.decode(textParameter.substring(startIndex), 0), StandardCharsets.UTF_8);
-                    mSession.clipboardText(clipboardText);
-                } catch (Exception e) {
-                    Log.e(EmulatorDebug.LOG_TAG, "OSC Manipulate selection, invalid string '" + textParameter + "");
+            case 8: // Hyperlink: "8;params;URI" starts a link, with "id=..." in the colon separated params, "8;;" ends it.
+                int paramsEnd = textParameter.indexOf(';');
+                if (paramsEnd < 0) {
+                    unknownSequence(';');
+                    return;
+                }
+                String uri = textParameter.substring(paramsEnd + 1);
+                String id = "";
+                for (String param : textParameter.substring(0, paramsEnd).split(":")) {
+                    if (param.startsWith("id=")) id = param.substring(3);
+                }
+                setLink(uri.isEmpty() ? 0 : mLinkTable.intern(uri, id));
+                break;
+            case 52: // Manipulate Selection Data without data, which is otherwise handled by doOscClipboard().
+                break;
+            case 133: // Shell integration: "133;A" to "133;D[;exit status]" mark the prompt, command and output.
+                if (!textParameter.isEmpty() && mScreen == mMainBuffer) {
+                    switch (textParameter.charAt(0)) {
+                        case 'A':
+                            mMainBuffer.addShellMark(mCursorRow, mCursorCol, TerminalBuffer.MARK_PROMPT);
+                            break;
+                        case 'B':
+                            mMainBuffer.addShellMark(mCursorRow, mCursorCol, TerminalBuffer.MARK_COMMAND);
+                            break;
+                        case 'C':
+                            mMainBuffer.addShellMark(mCursorRow, mCursorCol, TerminalBuffer.MARK_OUTPUT);
+                            break;
+                        case 'D':
+                            mMainBuffer.addShellMark(mCursorRow, mCursorCol, TerminalBuffer.MARK_COMMAND_END);
+                            break;
+                    }
                 }
                 break;
             case 104:
@@ -1914,7 +2098,7 @@ public final class TerminalEmulator {
                 // parameters are given, the entire table will be reset.
                 if (textParameter.isEmpty()) {
                     mColors.reset();
-                    mSession.onColorsChanged();
+                    notifyColorsChanged();
                 } else {
                     int lastIndex = 0;
                     for (int charIndex = 0; ; charIndex++) {
@@ -1923,7 +2107,7 @@ public final class TerminalEmulator {
                             try {
                                 int colorToReset = Integer.parseInt(textParameter.substring(lastIndex, charIndex));
                                 mColors.reset(colorToReset);
-                                mSession.onColorsChanged();
+                                notifyColorsChanged();
                                 if (endOfInput) break;
                                 charIndex++;
                                 lastIndex = charIndex;
@@ -1938,7 +2122,7 @@ public final class TerminalEmulator {
             case 111: // Reset background color.
             case 112: // Reset cursor color.
                 mColors.reset(TextStyle.COLOR_INDEX_FOREGROUND + (value - 110));
-                mSession.onColorsChanged();
+                notifyColorsChanged();
                 break;
             case 119: // Reset highlight color.
                 break;
@@ -1949,6 +2133,43 @@ public final class TerminalEmulator {
         finishSequence();
     }
 
+    /**
+     * Finish OSC 52 (manipulate selection data) after its data has been decoded: set the clipboard to the decoded text
+     * or, if the data is "?", ask the client for the clipboard text to reply with.
+     */
+    private void doOscClipboard(String bellOrStringTerminator) {
+        final TerminalClipboardDecoder decoder = mClipboardDecoder;
+        if (mClipboardLimit <= 0) {
+            return;
+        } else if (decoder.isInvalid()) {
+            logError("OSC Manipulate selection, invalid data");
+        } else if (decoder.isQuery()) {
+            // The selection parameter is between "52;" and the last ";":
+            String selection = mOSCOrDeviceControlArgs.substring(3, mOSCOrDeviceControlArgs.length() - 1);
+            mClipboardRequestSelection = selection.isEmpty() ? "c" : selection;
+            mClipboardRequestTerminator = bellOrStringTerminator;
+            mSession.clipboardTextRequested();
+        } else if (decoder.isOverflowed()) {
+            Log.w(EmulatorDebug.LOG_TAG, "OSC Manipulate selection, text above the limit of " + mClipboardLimit + " bytes ignored");
+        } else {
+            mSession.clipboardText(new String(decoder.getBuffer(), 0, decoder.getLength(), StandardCharsets.UTF_8));
+        }
+    }
+
+    /** Reply to a request for the clipboard text by OSC 52, see {@link TerminalOutput#clipboardTextRequested()}. */
+    public void reportClipboardText(String text) {
+        String data = Base64.encodeToString(text.getBytes(StandardCharsets.UTF_8), Base64.NO_WRAP);
+        mSession.write("\033]52;" + mClipboardRequestSelection + ";" + data + mClipboardRequestTerminator);
+    }
+
+    /** Set the hyperlink of characters printed from now on, moving the reference of the emulator to it. */
+    private void setLink(int link) {
+        if (link == mLink) return;
+        if (link != 0) mLinkTable.retain(link);
+        if (mLink != 0) mLinkTable.release(mLink);
+        mLink = link;
+    }
+
     private void blockClear(int sx, int sy, int w) {
         blockClear(sx, sy, w, 1);
     }
@@ -2051,9 +2272,18 @@ public final class TerminalEmulator {
     }
 
     private void collectOSCArgs(int b) {
-        if (mOSCOrDeviceControlArgs.length() < MAX_OSC_STRING_LENGTH) {
+        if (mDecodingClipboard) {
+            mClipboardDecoder.append(b);
+            continueSequence(mEscapeState);
+        } else if (mOSCOrDeviceControlArgs.length() < MAX_OSC_STRING_LENGTH) {
             mOSCOrDeviceControlArgs.appendCodePoint(b);
             continueSequence(mEscapeState);
+            // Decode the data of "52;$selection;$data" as it arrives, since it may be large:
+            if (b == ';' && mOSCOrDeviceControlArgs.length() > 3 && mOSCOrDeviceControlArgs.indexOf("52;") == 0
+                && mOSCOrDeviceControlArgs.indexOf(";", 3) == mOSCOrDeviceControlArgs.length() - 1) {
+                mDecodingClipboard = true;
+                mClipboardDecoder.start(mClipboardLimit);
+            }
         } else {
             unknownSequence(b);
         }
@@ -2115,6 +2345,7 @@ public final class TerminalEmulator {
      */
     private void emitCodePoint(int codePoint) {
         mLastEmittedCodePoint = codePoint;
+        if (mTriggers != null) mTriggers.onCodePoint(codePoint);
         if (mUseLineDrawingUsesG0 ? mUseLineDrawingG0 : mUseLineDrawingG1) {
             // http://www.vt100.net/docs/vt102-ug/table5-15.html.
             switch (codePoint) {
@@ -2248,7 +2479,13 @@ public final class TerminalEmulator {
         }
 
         int offsetDueToCombiningChar = ((displayWidth <= 0 && mCursorCol > 0 && !mAboutToAutoWrap) ? 1 : 0);
-        mScreen.setChar(mCursorCol - offsetDueToCombiningChar, mCursorRow, codePoint, getStyle());
+        if (mLink == 0) {
+            mScreen.setChar(mCursorCol - offsetDueToCombiningChar, mCursorRow, codePoint, getStyle());
+        } else {
+            // Underline hyperlinks so that they can be told apart from other text:
+            mScreen.setChar(mCursorCol - offsetDueToCombiningChar, mCursorRow, codePoint, getStyle() | TextStyle.CHARACTER_ATTRIBUTE_UNDERLINE);
+            if (displayWidth > 0) mScreen.setLink(mCursorCol, mCursorRow, displayWidth, mLink, mLinkTable);
+        }
 
         if (autoWrap && displayWidth > 0)
             mAboutToAutoWrap = (mCursorCol == mRightMargin - displayWidth);
@@ -2292,6 +2529,7 @@ public final class TerminalEmulator {
         mArgIndex = 0;
         mContinueSequence = false;
         mEscapeState = ESC_NONE;
+        mDecodingClipboard = false;
         mInsertMode = false;
         mTopMargin = mLeftMargin = 0;
         mBottomMargin = mRows;
@@ -2302,6 +2540,7 @@ public final class TerminalEmulator {
         setDefaultTabStops();
 
         mUseLineDrawingG0 = mUseLineDrawingG1 = false;
+        setLink(0);
         mUseLineDrawingUsesG0 = true;
 
         mSavedStateMain.mSavedCursorRow = mSavedStateMain.mSavedCursorCol = mSavedStateMain.mSavedEffect = mSavedStateMain.mSavedDecFlags = 0;
@@ -2316,6 +2555,12 @@ public final class TerminalEmulator {
         mUtf8Index = mUtf8ToFollow = 0;
 
         mColors.reset();
+        notifyColorsChanged();
+    }
+
+    /** Redraw the screen with the changed palette and let the session know about it. */
+    private void notifyColorsChanged() {
+        mScreen.damageAll();
         mSession.onColorsChanged();
     }
 
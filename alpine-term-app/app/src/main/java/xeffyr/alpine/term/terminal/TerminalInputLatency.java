@@ -0,0 +1,219 @@
+package xeffyr.alpine.term.terminal;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures the latency from a key press until its echo has been drawn, for sampled keystrokes of a
+ * {@link TerminalSession}, split into the stages:
+ * <ul>
+ * <li>queue: from the input event until the input is written to the queue of the session,</li>
+ * <li>write: until the writer thread has written it to the pty,</li>
+ * <li>echo: until the reader thread reads the next output from the pty, i.e. the time taken by the process,</li>
+ * <li>process: until the emulator on the main thread has processed that output,</li>
+ * <li>draw: until the next frame of the view has been drawn.</li>
+ * </ul>
+ * Only one keystroke is followed at a time, so while typing fast only some keystrokes are sampled. Stages are matched
+ * up by counting bytes through the queues, so that e.g. the process stage ends when the output read has been processed
+ * and not at the processing of earlier output. Samples taking longer than {@link #TIMEOUT_NANOS}, e.g. for a key
+ * without echo, are dropped.
+ * <p>
+ * The times are kept in histograms with exponentially growing buckets, giving percentiles within about 6%.
+ */
+public final class TerminalInputLatency {
+
+    public static final int STAGE_QUEUE = 0;
+    public static final int STAGE_WRITE = 1;
+    public static final int STAGE_ECHO = 2;
+    public static final int STAGE_PROCESS = 3;
+    public static final int STAGE_DRAW = 4;
+    /** The time of all stages together. */
+    public static final int STAGE_TOTAL = 5;
+    public static final int STAGE_COUNT = 6;
+
+    private static final String[] STAGE_NAMES = {"queue", "write", "echo", "process", "draw", "total"};
+
+    private static final long TIMEOUT_NANOS = 5_000_000_000L;
+
+    /** The states of the sample in flight, also indices into {@link #mTimes}. */
+    private static final int STATE_IDLE = 0;
+    private static final int STATE_KEY = 1;
+    private static final int STATE_QUEUED = 2;
+    private static final int STATE_WRITTEN = 3;
+    private static final int STATE_READ = 4;
+    private static final int STATE_PROCESSED = 5;
+
+    /**
+     * A histogram of durations in microseconds. Values below 8 have their own bucket, above that there are 8 buckets
+     * per power of two.
+     */
+    private static final class Histogram {
+        private static final int BUCKET_COUNT = (64 - 2) * 8;
+        private final long[] mCounts = new long[BUCKET_COUNT];
+        private long mTotalCount;
+
+        void record(long micros) {
+            mCounts[getBucket(Math.max(0, micros))]++;
+            mTotalCount++;
+        }
+
+        /** Get the percentile in microseconds as the middle of its bucket, or -1 if empty. */
+        long getPercentile(double percentile) {
+            if (mTotalCount == 0) return -1;
+            final long rank = Math.max(1, (long) Math.ceil(percentile / 100 * mTotalCount));
+            long count = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                count += mCounts[i];
+                if (count >= rank) return getBucketMiddle(i);
+            }
+            return -1;
+        }
+
+        void clear() {
+            Arrays.fill(mCounts, 0);
+            mTotalCount = 0;
+        }
+
+        private static int getBucket(long value) {
+            if (value < 8) return (int) value;
+            final int exponent = 63 - Long.numberOfLeadingZeros(value);
+            return (exponent - 2) * 8 + (int) ((value >>> (exponent - 3)) & 7);
+        }
+
+        private static long getBucketMiddle(int bucket) {
+            if (bucket < 8) return bucket;
+            final int shift = bucket / 8 - 1;
+            final long start = (long) (8 + bucket % 8) << shift;
+            return start + ((1L << shift) >> 1);
+        }
+    }
+
+    private final AtomicInteger mState = new AtomicInteger(STATE_IDLE);
+    /**
+     * The times at which the current sample entered each state, indexed by state. Written by the thread advancing the
+     * state before it does so.
+     */
+    private final long[] mTimes = new long[STATE_PROCESSED + 1];
+
+    /** Bytes written to the input queue and processed from the output queue. Only accessed from the main thread. */
+    private long mQueuedBytes, mProcessedBytes;
+    /** Bytes written to the pty by the writer thread. */
+    private long mWrittenBytes;
+    /** The byte counts ending the write and process stages of the current sample. */
+    private long mWrittenTarget, mProcessedTarget;
+
+    private final Histogram[] mHistograms = new Histogram[STAGE_COUNT];
+    private int mSampleCount;
+
+    TerminalInputLatency() {
+        for (int i = 0; i < STAGE_COUNT; i++) mHistograms[i] = new Histogram();
+    }
+
+    /**
+     * Called by the view on the main thread when receiving a key or text input, starting a sample unless one is in
+     * flight.
+     */
+    public void onInputEvent() {
+        final long now = System.nanoTime();
+        final int state = mState.get();
+        if (state > STATE_KEY && now - mTimes[STATE_KEY] < TIMEOUT_NANOS) return;
+        mTimes[STATE_KEY] = now;
+        mState.set(STATE_KEY);
+    }
+
+    /** Called on the main thread when input has been written to the input queue. */
+    void onInputQueued(int count) {
+        mQueuedBytes += count;
+        if (mState.get() == STATE_KEY) {
+            mWrittenTarget = mQueuedBytes;
+            mTimes[STATE_QUEUED] = System.nanoTime();
+            mState.compareAndSet(STATE_KEY, STATE_QUEUED);
+        }
+    }
+
+    /** Called by the writer thread after writing input to the pty. */
+    void onInputWritten(int count) {
+        mWrittenBytes += count;
+        if (mState.get() == STATE_QUEUED && mWrittenBytes >= mWrittenTarget) {
+            mTimes[STATE_WRITTEN] = System.nanoTime();
+            mState.compareAndSet(STATE_QUEUED, STATE_WRITTEN);
+        }
+    }
+
+    /**
+     * Called by the reader thread after reading output from the pty.
+     *
+     * @param totalBytesRead the bytes read from the pty so far, including this read.
+     */
+    void onOutputRead(long totalBytesRead) {
+        if (mState.get() == STATE_WRITTEN) {
+            mProcessedTarget = totalBytesRead;
+            mTimes[STATE_READ] = System.nanoTime();
+            mState.compareAndSet(STATE_WRITTEN, STATE_READ);
+        }
+    }
+
+    /** Called on the main thread after output has been taken from the output queue and processed. */
+    void onOutputProcessed(int count) {
+        mProcessedBytes += count;
+        if (mState.get() == STATE_READ && mProcessedBytes >= mProcessedTarget) {
+            mTimes[STATE_PROCESSED] = System.nanoTime();
+            mState.compareAndSet(STATE_READ, STATE_PROCESSED);
+        }
+    }
+
+    /** Called by the view on the main thread after drawing, completing the sample in flight if its echo was processed. */
+    public void onDrawn() {
+        if (mState.get() != STATE_PROCESSED) return;
+        final long now = System.nanoTime();
+        mState.set(STATE_IDLE);
+        if (now - mTimes[STATE_KEY] > TIMEOUT_NANOS) return;
+
+        for (int stage = STAGE_QUEUE; stage < STAGE_DRAW; stage++) {
+            mHistograms[stage].record((mTimes[stage + 2] - mTimes[stage + 1]) / 1000);
+        }
+        mHistograms[STAGE_DRAW].record((now - mTimes[STATE_PROCESSED]) / 1000);
+        mHistograms[STAGE_TOTAL].record((now - mTimes[STATE_KEY]) / 1000);
+        mSampleCount++;
+    }
+
+    /** The number of keystrokes sampled. Only call on the main thread. */
+    public int getSampleCount() {
+        return mSampleCount;
+    }
+
+    public static String getStageName(int stage) {
+        return STAGE_NAMES[stage];
+    }
+
+    /**
+     * Get a percentile of the time taken by a stage in microseconds, or -1 if nothing has been sampled. Only call on the
+     * main thread.
+     *
+     * @param stage      one of the STAGE_* constants.
+     * @param percentile the percentile, e.g. 99 for the time which 99% of the samples took at most.
+     */
+    public long getPercentileMicros(int stage, double percentile) {
+        return mHistograms[stage].getPercentile(percentile);
+    }
+
+    /** Get a table of the 50th, 95th and 99th percentiles in milliseconds of all stages. Only call on the main thread. */
+    public String getSummary() {
+        StringBuilder summary = new StringBuilder();
+        summary.append(String.format(Locale.US, "samples: %d\n%-8s %8s %8s %8s", mSampleCount, "ms", "p50", "p95", "p99"));
+        for (int stage = 0; stage < STAGE_COUNT; stage++) {
+            summary.append(String.format(Locale.US, "\n%-8s %8.2f %8.2f %8.2f", STAGE_NAMES[stage],
+                getPercentileMicros(stage, 50) / 1000.0, getPercentileMicros(stage, 95) / 1000.0,
+                getPercentileMicros(stage, 99) / 1000.0));
+        }
+        return summary.toString();
+    }
+
+    /** Forget all samples. Only call on the main thread. */
+    public void reset() {
+        for (Histogram histogram : mHistograms) histogram.clear();
+        mSampleCount = 0;
+        mState.set(STATE_IDLE);
+    }
+}
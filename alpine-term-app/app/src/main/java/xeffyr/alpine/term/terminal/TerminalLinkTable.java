@@ -0,0 +1,94 @@
+package xeffyr.alpine.term.terminal;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * The hyperlinks set by OSC 8 escape sequences in a {@link TerminalEmulator}, shared by its main and alternate buffers.
+ * <p>
+ * Cells refer to a link by a number, see {@link TerminalRow#mLinks}, so that the URI of a link printed over many cells
+ * is only stored once. Links are interned by their URI and id parameter and counted by the rows referring to them, so a
+ * link is dropped once the last row referring to it has been cleared, for example when evicted from the transcript.
+ * Numbers are assigned in increasing order and only reused after wrapping around, skipping those still in use, so that a
+ * stale number in a copy of a row is unlikely to resolve to another link.
+ * <p>
+ * Only used on the thread of the emulator.
+ */
+final class TerminalLinkTable {
+
+    private static final class Link {
+        final int mNumber;
+        final String mKey;
+        final String mUri;
+        int mReferences;
+
+        Link(int number, String key, String uri) {
+            mNumber = number;
+            mKey = key;
+            mUri = uri;
+        }
+    }
+
+    private final HashMap<String, Link> mLinksByKey = new HashMap<>();
+    /** The links by number, in order of creation. */
+    private final LinkedHashMap<Integer, Link> mLinksByNumber = new LinkedHashMap<>();
+    private int mNextNumber = 1;
+
+    /**
+     * Get the number of a link, adding it if not present. A new link has no references, so the caller should take one
+     * with {@link #retain(int)}.
+     *
+     * @param id the id parameter of the link, or the empty string if none.
+     */
+    int intern(String uri, String id) {
+        final String key = id + '\n' + uri;
+        Link link = mLinksByKey.get(key);
+        if (link == null) {
+            int number;
+            do {
+                number = mNextNumber;
+                mNextNumber = (mNextNumber == Integer.MAX_VALUE) ? 1 : mNextNumber + 1;
+            } while (mLinksByNumber.containsKey(number));
+            link = new Link(number, key, uri);
+            mLinksByKey.put(key, link);
+            mLinksByNumber.put(link.mNumber, link);
+        }
+        return link.mNumber;
+    }
+
+    void retain(int number) {
+        Link link = mLinksByNumber.get(number);
+        if (link != null) link.mReferences++;
+    }
+
+    void release(int number) {
+        Link link = mLinksByNumber.get(number);
+        if (link != null && --link.mReferences <= 0) {
+            mLinksByNumber.remove(number);
+            mLinksByKey.remove(link.mKey);
+        }
+    }
+
+    /** Get the URI of a link, or null if the number is 0 or the link has been dropped. */
+    String getUri(int number) {
+        if (number == 0) return null;
+        Link link = mLinksByNumber.get(number);
+        return (link == null) ? null : link.mUri;
+    }
+
+    /** The number of links in the table. */
+    int size() {
+        return mLinksByNumber.size();
+    }
+
+    /** Get the URIs of the links in the table without duplicates, most recently created first. */
+    List<String> getUris() {
+        List<Link> links = new ArrayList<>(mLinksByNumber.values());
+        LinkedHashSet<String> uris = new LinkedHashSet<>();
+        for (int i = links.size() - 1; i >= 0; i--) uris.add(links.get(i).mUri);
+        return new ArrayList<>(uris);
+    }
+}
@@ -0,0 +1,75 @@
+package xeffyr.alpine.term.terminal;
+
+import java.util.Arrays;
+
+/**
+ * The numbers of the rows of a {@link TerminalBuffer} with shell integration marks, in increasing order, so that the
+ * marked rows before or after a row are found without scanning the transcript. See
+ * {@link TerminalBuffer#getRowNumber(int)} for the row numbers.
+ * <p>
+ * The marks themselves are stored in the rows, which the index only points at: rows may have been cleared or
+ * overwritten since they were marked, so a marked row found through the index must be checked to still be marked.
+ */
+final class TerminalMarkIndex {
+
+    private long[] mRowNumbers = new long[64];
+    /** The used part of {@link #mRowNumbers}, which starts after the rows dropped from the transcript. */
+    private int mStart, mEnd;
+
+    /** Add a marked row. */
+    void add(long rowNumber) {
+        // Rows are mostly marked in order, but the cursor may have been moved up before marking:
+        int index = mEnd;
+        while (index > mStart && mRowNumbers[index - 1] >= rowNumber) {
+            if (mRowNumbers[index - 1] == rowNumber) return;
+            index--;
+        }
+
+        if (mEnd == mRowNumbers.length) {
+            final int size = mEnd - mStart;
+            if (mStart > 0 && size < mRowNumbers.length / 2) {
+                // Reclaim the space of dropped rows instead of growing.
+                System.arraycopy(mRowNumbers, mStart, mRowNumbers, 0, size);
+            } else {
+                mRowNumbers = Arrays.copyOfRange(mRowNumbers, mStart, mStart + mRowNumbers.length * 2);
+            }
+            index -= mStart;
+            mStart = 0;
+            mEnd = size;
+        }
+        System.arraycopy(mRowNumbers, index, mRowNumbers, index + 1, mEnd - index);
+        mRowNumbers[index] = rowNumber;
+        mEnd++;
+    }
+
+    /** Drop the rows before the specified one, which have left the transcript. */
+    void dropBefore(long rowNumber) {
+        while (mStart < mEnd && mRowNumbers[mStart] < rowNumber) mStart++;
+    }
+
+    void clear() {
+        mStart = mEnd = 0;
+    }
+
+    /** Get the index of the first marked row with a number greater than or equal to the specified one. */
+    int indexOf(long rowNumber) {
+        int low = mStart, high = mEnd;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (mRowNumbers[middle] < rowNumber) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    boolean isValidIndex(int index) {
+        return index >= mStart && index < mEnd;
+    }
+
+    long get(int index) {
+        return mRowNumbers[index];
+    }
+}
@@ -0,0 +1,51 @@
+package xeffyr.alpine.term.terminal;
+
+/**
+ * Low overhead counters describing how a {@link TerminalSession} keeps up with the output of its process, for display
+ * in a performance overlay.
+ * <p>
+ * Counters are only ever incremented and it is up to the reader to compute rates from the difference between two
+ * samples.
+ */
+public final class TerminalMetrics {
+
+    private final ByteQueue mQueue;
+
+    /** Bytes read from the process. Only written by the input reader thread. */
+    private volatile long mBytesReceived;
+    /** Time spent in {@link TerminalEmulator#append(byte[], int)}. Only accessed from the main thread. */
+    private long mAppendNanos;
+
+    TerminalMetrics(ByteQueue queue) {
+        mQueue = queue;
+    }
+
+    @SuppressWarnings("NonAtomicOperationOnVolatileField")
+    void addBytesReceived(int count) {
+        // Only called by a single thread, so there are no lost updates.
+        mBytesReceived += count;
+    }
+
+    void addAppendNanos(long nanos) {
+        mAppendNanos += nanos;
+    }
+
+    /** Total number of bytes read from the process. */
+    public long getBytesReceived() {
+        return mBytesReceived;
+    }
+
+    /** Total time in nanoseconds spent by the emulator processing process output. */
+    public long getAppendNanos() {
+        return mAppendNanos;
+    }
+
+    /** The number of bytes read from the process but not yet processed by the emulator. */
+    public int getQueuedBytes() {
+        return mQueue.getStoredBytes();
+    }
+
+    public int getQueueCapacity() {
+        return mQueue.getCapacity();
+    }
+}
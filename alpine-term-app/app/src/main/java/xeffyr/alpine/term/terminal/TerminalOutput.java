@@ -20,6 +20,12 @@ public abstract class TerminalOutput {
     /** Notify the terminal client that the terminal title has changed. */
     public abstract void clipboardText(String text);
 
+    /**
+     * Notify the terminal client that the clipboard text has been requested with OSC 52, to be answered with
+     * {@link TerminalEmulator#reportClipboardText(String)}.
+     */
+    public abstract void clipboardTextRequested();
+
     /** Notify the terminal client that a bell character (ASCII 7, bell, BEL, \a, ^G)) has been received. */
     public abstract void onBell();
 
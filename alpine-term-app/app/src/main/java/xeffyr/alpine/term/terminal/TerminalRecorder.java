@@ -0,0 +1,145 @@
+package xeffyr.alpine.term.terminal;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Records the output of a {@link TerminalSession} process and the resizes of its terminal with their timing, so that
+ * a session can be replayed by {@link TerminalRecordingPlayer}, see {@link TerminalSession#setRecorder(TerminalRecorder)}.
+ * <p>
+ * The recording is written to a memory mapped file, so that recording output on the thread reading from the process
+ * only costs a copy. The file starts with {@link #MAGIC} and a version byte followed by the events, each consisting of
+ * a type byte, the time since the previous event in nanoseconds as a variable length integer, and then:
+ * <ul>
+ * <li>{@link #EVENT_OUTPUT}: the number of bytes as a variable length integer followed by the bytes.</li>
+ * <li>{@link #EVENT_RESIZE}: the columns and rows as variable length integers.</li>
+ * </ul>
+ * The recording ends at the end of the file, or at a zero type byte which is what follows the last event if the
+ * recording was never closed.
+ */
+public final class TerminalRecorder {
+
+    static final byte[] MAGIC = {'A', 'T', 'R', 'C'};
+    static final int VERSION = 1;
+
+    static final int EVENT_END = 0;
+    static final int EVENT_OUTPUT = 1;
+    static final int EVENT_RESIZE = 2;
+
+    /** The size of the regions of the file mapped at a time. */
+    private static final int REGION_SIZE = 1024 * 1024;
+
+    private final File mFile;
+    private final RandomAccessFile mRandomAccessFile;
+    private final FileChannel mChannel;
+    private MappedByteBuffer mRegion;
+    private long mRegionStart;
+    private long mLastEventNanos;
+    private boolean mClosed;
+
+    /** Create a recorder writing to the specified file, which is replaced if it exists. */
+    public TerminalRecorder(File file) throws IOException {
+        mFile = file;
+        mRandomAccessFile = new RandomAccessFile(file, "rw");
+        mRandomAccessFile.setLength(0);
+        mChannel = mRandomAccessFile.getChannel();
+        mRegion = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, REGION_SIZE);
+        mRegion.put(MAGIC).put((byte) VERSION);
+        mLastEventNanos = System.nanoTime();
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /** Record output of the process. Called by the thread reading from the process. */
+    synchronized void recordOutput(byte[] data, int offset, int count) {
+        if (!startEvent(EVENT_OUTPUT)) return;
+        try {
+            putVarLong(count);
+            while (count > 0) {
+                if (!mRegion.hasRemaining()) mapNextRegion();
+                int bytesToCopy = Math.min(count, mRegion.remaining());
+                mRegion.put(data, offset, bytesToCopy);
+                offset += bytesToCopy;
+                count -= bytesToCopy;
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /** Record a resize of the terminal. */
+    synchronized void recordResize(int columns, int rows) {
+        if (!startEvent(EVENT_RESIZE)) return;
+        try {
+            putVarLong(columns);
+            putVarLong(rows);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private boolean startEvent(int type) {
+        if (mClosed) return false;
+        final long now = System.nanoTime();
+        try {
+            putByte(type);
+            putVarLong(now - mLastEventNanos);
+        } catch (IOException e) {
+            fail(e);
+            return false;
+        }
+        mLastEventNanos = now;
+        return true;
+    }
+
+    private void putByte(int value) throws IOException {
+        if (!mRegion.hasRemaining()) mapNextRegion();
+        mRegion.put((byte) value);
+    }
+
+    /** Write an unsigned value in 7 bit groups, least significant first, with the high bit set on all but the last. */
+    private void putVarLong(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            putByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        putByte((int) value);
+    }
+
+    private void mapNextRegion() throws IOException {
+        mRegionStart += mRegion.capacity();
+        mRegion = mChannel.map(FileChannel.MapMode.READ_WRITE, mRegionStart, REGION_SIZE);
+    }
+
+    /** Give up recording after an error, keeping what has been recorded so far. */
+    private void fail(IOException e) {
+        Log.e(EmulatorDebug.LOG_TAG, "Failed recording to " + mFile, e);
+        close();
+    }
+
+    /** Stop recording, truncating the file to the recorded events. */
+    public synchronized void close() {
+        if (mClosed) return;
+        mClosed = true;
+
+        final long length = mRegionStart + mRegion.position();
+        try {
+            mRegion.force();
+            mChannel.truncate(length);
+        } catch (IOException e) {
+            Log.e(EmulatorDebug.LOG_TAG, "Failed closing recording " + mFile, e);
+        }
+        try {
+            mRandomAccessFile.close();
+        } catch (IOException e) {
+            // Ignore.
+        }
+    }
+}
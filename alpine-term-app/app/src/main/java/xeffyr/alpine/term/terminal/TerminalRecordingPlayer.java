@@ -0,0 +1,167 @@
+package xeffyr.alpine.term.terminal;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Replays a recording made by {@link TerminalRecorder} into a {@link TerminalEmulator}, either as fast as possible with
+ * {@link #playAll(TerminalEmulator)} to measure the emulator, or in real time with
+ * {@link #playInRealTime(TerminalEmulator, Handler, Runnable)} to watch or measure rendering.
+ * <p>
+ * Resize events resize the emulator, so the emulator should be created with the size of the first resize event.
+ */
+public final class TerminalRecordingPlayer implements Runnable {
+
+    private final MappedByteBuffer mRecording;
+    private final int mStart;
+    private byte[] mOutput = new byte[4096];
+
+    /** The time of the next event since the start of the recording, or -1 if there are no more events. */
+    private long mNextEventNanos;
+    private int mNextEventType;
+    private long mElapsedNanos;
+
+    private TerminalEmulator mRealTimeEmulator;
+    private Handler mHandler;
+    private Runnable mOnUpdate;
+    private long mRealTimeStartMillis;
+
+    public TerminalRecordingPlayer(File file) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            mRecording = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length());
+        }
+        byte[] magic = new byte[TerminalRecorder.MAGIC.length];
+        if (mRecording.remaining() <= magic.length) throw new IOException("Not a terminal recording: " + file);
+        mRecording.get(magic);
+        if (!Arrays.equals(magic, TerminalRecorder.MAGIC)) throw new IOException("Not a terminal recording: " + file);
+        int version = mRecording.get();
+        if (version != TerminalRecorder.VERSION) throw new IOException("Unsupported recording version " + version);
+        mStart = mRecording.position();
+        rewind();
+    }
+
+    /** Go back to the start of the recording. */
+    public void rewind() {
+        mRecording.position(mStart);
+        mElapsedNanos = 0;
+        readEventTime();
+    }
+
+    public boolean hasNext() {
+        return mNextEventNanos >= 0;
+    }
+
+    /** The time of the next event since the start of the recording, or -1 if there are no more events. */
+    public long getNextEventNanos() {
+        return mNextEventNanos;
+    }
+
+    /** Apply the next event to the emulator. Returns false if there are no more events. */
+    public boolean playNext(TerminalEmulator emulator) {
+        if (mNextEventNanos < 0) return false;
+        try {
+            if (mNextEventType == TerminalRecorder.EVENT_OUTPUT) {
+                final long length = getVarLong();
+                if (length > mRecording.remaining()) throw new BufferUnderflowException();
+                if (length > mOutput.length) mOutput = new byte[Math.max((int) length, 2 * mOutput.length)];
+                mRecording.get(mOutput, 0, (int) length);
+                emulator.append(mOutput, (int) length);
+            } else {
+                final int columns = (int) getVarLong();
+                final int rows = (int) getVarLong();
+                emulator.resize(columns, rows);
+            }
+        } catch (BufferUnderflowException e) {
+            // The recording was cut off in the middle of the event.
+            mNextEventNanos = -1;
+            return false;
+        }
+        readEventTime();
+        return true;
+    }
+
+    /** Apply all remaining events to the emulator without delay, returning the number of events applied. */
+    public int playAll(TerminalEmulator emulator) {
+        int count = 0;
+        while (playNext(emulator)) count++;
+        return count;
+    }
+
+    /**
+     * Apply the remaining events to the emulator at the time they were recorded, until done or {@link #stop()} is
+     * called.
+     *
+     * @param handler  the handler of the thread the emulator is used on.
+     * @param onUpdate called after events have been applied, for example to update a view.
+     */
+    public void playInRealTime(TerminalEmulator emulator, Handler handler, Runnable onUpdate) {
+        stop();
+        mRealTimeEmulator = emulator;
+        mHandler = handler;
+        mOnUpdate = onUpdate;
+        mRealTimeStartMillis = SystemClock.uptimeMillis() - Math.max(0, mNextEventNanos) / 1000000;
+        handler.post(this);
+    }
+
+    /** Stop playing in real time. */
+    public void stop() {
+        if (mHandler != null) mHandler.removeCallbacks(this);
+        mHandler = null;
+        mRealTimeEmulator = null;
+        mOnUpdate = null;
+    }
+
+    @Override
+    public void run() {
+        if (mHandler == null) return;
+        final long nowNanos = (SystemClock.uptimeMillis() - mRealTimeStartMillis) * 1000000;
+        boolean played = false;
+        while (mNextEventNanos >= 0 && mNextEventNanos <= nowNanos) {
+            playNext(mRealTimeEmulator);
+            played = true;
+        }
+        if (played && mOnUpdate != null) mOnUpdate.run();
+
+        if (mNextEventNanos >= 0) {
+            mHandler.postAtTime(this, mRealTimeStartMillis + mNextEventNanos / 1000000);
+        } else {
+            stop();
+        }
+    }
+
+    /** Read the type and time of the next event, leaving the position after them. */
+    private void readEventTime() {
+        try {
+            final int type = mRecording.hasRemaining() ? mRecording.get() : TerminalRecorder.EVENT_END;
+            if (type != TerminalRecorder.EVENT_OUTPUT && type != TerminalRecorder.EVENT_RESIZE) {
+                mNextEventNanos = -1;
+                return;
+            }
+            mNextEventType = type;
+            mElapsedNanos += getVarLong();
+            mNextEventNanos = mElapsedNanos;
+        } catch (BufferUnderflowException e) {
+            mNextEventNanos = -1;
+        }
+    }
+
+    private long getVarLong() {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = mRecording.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
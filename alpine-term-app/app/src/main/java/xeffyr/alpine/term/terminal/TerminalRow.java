@@ -23,6 +23,17 @@ public final class TerminalRow {
     final long[] mStyle;
     /** If this row might contain chars with width != 1, used for deactivating fast path */
     boolean mHasNonOneWidthOrSurrogateChars;
+    /** The shell integration marks in this row, a combination of the TerminalBuffer.MARK_* bits. */
+    int mShellMarks;
+    /** The column of each mark in {@link #mShellMarks}, indexed by bit position. Only allocated once marked. */
+    private short[] mShellMarkColumns;
+    /** The hyperlink of each cell as a number in a {@link TerminalLinkTable}, 0 for none, or null if never linked. */
+    int[] mLinks;
+    /** The distinct links set in {@link #mLinks}, each holding one reference in {@link #mLinkTable}. */
+    private int[] mLinkReferences;
+    private int mLinkReferenceCount;
+    /** The table of the links in {@link #mLinks}, set when the first link is. */
+    TerminalLinkTable mLinkTable;
 
     /** Construct a blank row (containing only whitespace, ' ') with a specified style. */
     public TerminalRow(int columns, long style) {
@@ -39,6 +50,7 @@ public final class TerminalRow {
         final int x2 = line.findStartOfColumn(sourceX2);
         boolean startingFromSecondHalfOfWideChar = (sourceX1 > 0 && line.wideDisplayCharacterStartingAt(sourceX1 - 1));
         final char[] sourceChars = (this == line) ? Arrays.copyOf(line.mText, line.mText.length) : line.mText;
+        final int[] sourceLinks = (this == line && line.mLinks != null) ? line.mLinks.clone() : line.mLinks;
         int latestNonCombiningWidth = 0;
         for (int i = x1; i < x2; i++) {
             char sourceChar = sourceChars[i];
@@ -55,9 +67,93 @@ public final class TerminalRow {
                 latestNonCombiningWidth = w;
             }
             setChar(destinationX, codePoint, line.getStyle(sourceX1));
+            if (sourceLinks != null && sourceLinks[sourceX1] != 0) setLink(destinationX, sourceLinks[sourceX1], line.mLinkTable);
         }
     }
 
+    /**
+     * Copy this row into another one, reusing it if it has the same number of columns.
+     *
+     * @return the row copied into, which is new if the given one was null or had another number of columns.
+     */
+    TerminalRow copyTo(TerminalRow row) {
+        if (row == null || row.mColumns != mColumns) row = new TerminalRow(mColumns, TextStyle.NORMAL);
+        if (row.mText.length < mSpaceUsed) row.mText = new char[mText.length];
+        System.arraycopy(mText, 0, row.mText, 0, mSpaceUsed);
+        System.arraycopy(mStyle, 0, row.mStyle, 0, mColumns);
+        row.mSpaceUsed = mSpaceUsed;
+        row.mLineWrap = mLineWrap;
+        row.mHasNonOneWidthOrSurrogateChars = mHasNonOneWidthOrSurrogateChars;
+        row.mShellMarks = mShellMarks;
+        if (mShellMarkColumns != null) row.mShellMarkColumns = mShellMarkColumns.clone();
+        // The copy does not hold references to the links, see TerminalLinkTable:
+        if (mLinks == null) {
+            row.mLinks = null;
+        } else {
+            if (row.mLinks == null) row.mLinks = new int[mColumns];
+            System.arraycopy(mLinks, 0, row.mLinks, 0, mColumns);
+        }
+        return row;
+    }
+
+    /** Set the hyperlink of a cell, taking a reference to the link the first time it is set in this row. */
+    void setLink(int column, int link, TerminalLinkTable table) {
+        if (mLinks == null) mLinks = new int[mColumns];
+        mLinks[column] = link;
+        // Most cells are set to the last link added:
+        for (int i = mLinkReferenceCount - 1; i >= 0; i--) if (mLinkReferences[i] == link) return;
+
+        if (mLinkReferences == null) {
+            mLinkReferences = new int[4];
+        } else if (mLinkReferenceCount == mLinkReferences.length) {
+            // Links overwritten in the row are only released here, to bound the references kept by a row:
+            if (mLinkReferenceCount >= mColumns) releaseOverwrittenLinks();
+            if (mLinkReferenceCount == mLinkReferences.length) mLinkReferences = Arrays.copyOf(mLinkReferences, 2 * mLinkReferenceCount);
+        }
+        mLinkReferences[mLinkReferenceCount++] = link;
+        mLinkTable = table;
+        table.retain(link);
+    }
+
+    /** Get the hyperlink of a cell, or 0 if none. */
+    int getLink(int column) {
+        return (mLinks == null) ? 0 : mLinks[column];
+    }
+
+    private void releaseOverwrittenLinks() {
+        int kept = 0;
+        for (int i = 0; i < mLinkReferenceCount; i++) {
+            final int link = mLinkReferences[i];
+            boolean used = false;
+            for (int column = 0; column < mColumns && !used; column++) used = mLinks[column] == link;
+            if (used) {
+                mLinkReferences[kept++] = link;
+            } else {
+                mLinkTable.release(link);
+            }
+        }
+        mLinkReferenceCount = kept;
+    }
+
+    /** Remove all hyperlinks from the row, releasing its references to them. Called before the row is discarded. */
+    void releaseLinks() {
+        for (int i = 0; i < mLinkReferenceCount; i++) mLinkTable.release(mLinkReferences[i]);
+        mLinkReferenceCount = 0;
+        if (mLinks != null) Arrays.fill(mLinks, 0);
+    }
+
+    /** Set a shell integration mark, one of the TerminalBuffer.MARK_* bits, at a column. */
+    void setShellMark(int mark, int column) {
+        if (mShellMarkColumns == null) mShellMarkColumns = new short[TerminalBuffer.MARK_TYPES];
+        mShellMarks |= mark;
+        mShellMarkColumns[Integer.numberOfTrailingZeros(mark)] = (short) column;
+    }
+
+    /** Get the column of a shell integration mark set in this row. */
+    int getShellMarkColumn(int mark) {
+        return mShellMarkColumns[Integer.numberOfTrailingZeros(mark)];
+    }
+
     public int getSpaceUsed() {
         return mSpaceUsed;
     }
@@ -120,6 +216,8 @@ public final class TerminalRow {
         Arrays.fill(mStyle, style);
         mSpaceUsed = (short) mColumns;
         mHasNonOneWidthOrSurrogateChars = false;
+        mShellMarks = 0;
+        if (mLinks != null) releaseLinks();
     }
 
     // https://github.com/steven676/Android-Terminal-Emulator/commit/9a47042620bec87617f0b4f5d50568535668fe26
@@ -127,6 +225,8 @@ public final class TerminalRow {
         mStyle[columnToSet] = style;
 
         final int newCodePointDisplayWidth = WcWidth.width(codePoint);
+        // Combining characters modify the character in the cell and keep its link:
+        if (mLinks != null && newCodePointDisplayWidth > 0) mLinks[columnToSet] = 0;
 
         // Fast path when we don't have any chars with width != 1
         if (!mHasNonOneWidthOrSurrogateChars) {
@@ -0,0 +1,228 @@
+package xeffyr.alpine.term.terminal;
+
+import java.util.Arrays;
+
+/**
+ * A trigram index of the lines in the transcript of a {@link TerminalBuffer}, used to find the lines which may contain
+ * a literal search string without scanning the whole transcript.
+ * <p>
+ * Rows are added as they are scrolled into the transcript and numbered in order, so that the external row of an
+ * indexed row is its number minus {@link #mNextRowNumber}. A logical line, which may span several wrapped rows, is
+ * identified by the number of its first row. Lines whose first row has left the transcript are dropped from the
+ * posting lists lazily.
+ * <p>
+ * Characters are indexed in lower case, so that the index may be used for case insensitive searches as well.
+ */
+final class TerminalSearchIndex {
+
+    /** Sweep dead entries out of all posting lists after this many rows have been evicted, at the least. */
+    private static final int MIN_ROWS_BETWEEN_SWEEPS = 4096;
+
+    /** Bit marking a used slot in {@link #mKeys}, since a trigram of three NUL chars would otherwise be 0. */
+    private static final long KEY_USED = 1L << 48;
+
+    /** Open addressing hash table from trigram to posting list of line numbers, in increasing order. */
+    private long[] mKeys = new long[1024];
+    private int[][] mPostings = new int[1024][];
+    private int[] mPostingStarts = new int[1024];
+    private int[] mPostingEnds = new int[1024];
+    private int mUsedSlots;
+
+    /** The number which will be given to the next row added. */
+    int mNextRowNumber;
+    /** The number of the oldest row still in the transcript. */
+    private int mOldestRowNumber;
+    private int mRowsEvictedSinceSweep;
+
+    /** The line which the next row continues, if the last row added was wrapped. */
+    private int mCurrentLine;
+    /** The last two characters of the current line, for trigrams spanning a row boundary. */
+    private char mPrevious1, mPrevious2;
+    private int mPreviousCount;
+
+    /**
+     * Add a row scrolled into the transcript.
+     *
+     * @param row             the row, which must not be modified after being added.
+     * @param continuesLine   if the previous row was wrapped and this row is part of the same logical line.
+     * @param transcriptRows  the number of rows in the transcript after the row was added, to evict older rows.
+     */
+    void addRow(TerminalRow row, boolean continuesLine, int transcriptRows) {
+        final int rowNumber = mNextRowNumber++;
+        if (!continuesLine) {
+            mCurrentLine = rowNumber;
+            mPreviousCount = 0;
+        }
+
+        final char[] text = row.mText;
+        int end = row.getSpaceUsed();
+        // Trailing space is not part of the text unless the row is wrapped, see TerminalBufferText.
+        if (!row.mLineWrap) while (end > 0 && text[end - 1] == ' ') end--;
+
+        char c1 = mPrevious1, c2 = mPrevious2;
+        int count = mPreviousCount;
+        for (int i = 0; i < end; i++) {
+            final char c = Character.toLowerCase(text[i]);
+            if (++count >= 3) addTrigram(trigram(c1, c2, c), mCurrentLine);
+            c1 = c2;
+            c2 = c;
+        }
+        mPrevious1 = c1;
+        mPrevious2 = c2;
+        mPreviousCount = count;
+
+        final int oldest = mNextRowNumber - transcriptRows;
+        if (oldest > mOldestRowNumber) {
+            mRowsEvictedSinceSweep += oldest - mOldestRowNumber;
+            mOldestRowNumber = oldest;
+            if (mRowsEvictedSinceSweep >= Math.max(MIN_ROWS_BETWEEN_SWEEPS, transcriptRows)) sweep();
+        }
+    }
+
+    /**
+     * Find the lines which may contain the specified text, ignoring case.
+     *
+     * @return the numbers of the first rows of the candidate lines in increasing order, or null if the text is too
+     * short to use the index and all lines are candidates.
+     */
+    int[] findCandidateLines(String text) {
+        if (text.length() < 3) return null;
+
+        // Look up the posting lists of all trigrams in the text, and start intersecting from the shortest one.
+        final int trigramCount = text.length() - 2;
+        final int[] slots = new int[trigramCount];
+        int shortest = 0;
+        for (int i = 0; i < trigramCount; i++) {
+            long key = trigram(Character.toLowerCase(text.charAt(i)), Character.toLowerCase(text.charAt(i + 1)),
+                Character.toLowerCase(text.charAt(i + 2)));
+            int slot = findSlot(key);
+            if (mKeys[slot] == 0) return new int[0];
+            trimPosting(slot);
+            slots[i] = slot;
+            if (postingSize(slot) < postingSize(slots[shortest])) shortest = i;
+        }
+
+        final int first = slots[shortest];
+        int[] result = Arrays.copyOfRange(mPostings[first], mPostingStarts[first], mPostingEnds[first]);
+        int resultLength = result.length;
+        for (int i = 0; i < trigramCount && resultLength > 0; i++) {
+            final int slot = slots[i];
+            if (slot != first) resultLength = intersect(result, resultLength, mPostings[slot], mPostingStarts[slot], mPostingEnds[slot]);
+        }
+        return (resultLength == result.length) ? result : Arrays.copyOf(result, resultLength);
+    }
+
+    private int postingSize(int slot) {
+        return mPostingEnds[slot] - mPostingStarts[slot];
+    }
+
+    /** Intersect the sorted list in place with another sorted list, returning the new length. */
+    private static int intersect(int[] result, int resultLength, int[] other, int otherStart, int otherEnd) {
+        int length = 0;
+        int j = otherStart;
+        for (int i = 0; i < resultLength && j < otherEnd; i++) {
+            final int value = result[i];
+            while (j < otherEnd && other[j] < value) j++;
+            if (j < otherEnd && other[j] == value) result[length++] = value;
+        }
+        return length;
+    }
+
+    private static long trigram(char c1, char c2, char c3) {
+        return KEY_USED | ((long) c1 << 32) | ((long) c2 << 16) | c3;
+    }
+
+    private void addTrigram(long key, int line) {
+        int slot = findSlot(key);
+        if (mKeys[slot] == 0) {
+            if ((mUsedSlots + 1) * 4 > mKeys.length * 3) {
+                rehash(mKeys.length * 2);
+                slot = findSlot(key);
+            }
+            mKeys[slot] = key;
+            mPostings[slot] = new int[4];
+            mPostingStarts[slot] = mPostingEnds[slot] = 0;
+            mUsedSlots++;
+        }
+
+        int[] posting = mPostings[slot];
+        int end = mPostingEnds[slot];
+        // Lines are added in increasing order, so a line already in the list is the last element:
+        if (end > mPostingStarts[slot] && posting[end - 1] == line) return;
+
+        if (end == posting.length) {
+            trimPosting(slot);
+            final int start = mPostingStarts[slot];
+            final int size = end - start;
+            if (start > 0 && size < posting.length / 2) {
+                // Reclaim the space of evicted lines instead of growing.
+                System.arraycopy(posting, start, posting, 0, size);
+            } else {
+                posting = mPostings[slot] = Arrays.copyOfRange(posting, start, start + Math.max(4, posting.length * 2));
+            }
+            mPostingStarts[slot] = 0;
+            end = size;
+        }
+        posting[end] = line;
+        mPostingEnds[slot] = end + 1;
+    }
+
+    /** Skip over lines in a posting list which have left the transcript. */
+    private void trimPosting(int slot) {
+        final int[] posting = mPostings[slot];
+        int start = mPostingStarts[slot];
+        final int end = mPostingEnds[slot];
+        while (start < end && posting[start] < mOldestRowNumber) start++;
+        mPostingStarts[slot] = start;
+    }
+
+    private int findSlot(long key) {
+        final int mask = mKeys.length - 1;
+        int slot = (int) (key ^ (key >>> 17) ^ (key >>> 31)) * 0x9E3779B9 >>> 7 & mask;
+        while (mKeys[slot] != 0 && mKeys[slot] != key) slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    /** Drop evicted lines from all posting lists, and trigrams which no longer occur in any line. */
+    private void sweep() {
+        mRowsEvictedSinceSweep = 0;
+        int capacity = mKeys.length;
+        // Shrink the table if mostly unused after dropping empty posting lists:
+        int live = 0;
+        for (int slot = 0; slot < mKeys.length; slot++) {
+            if (mKeys[slot] == 0) continue;
+            trimPosting(slot);
+            if (mPostingStarts[slot] == mPostingEnds[slot]) {
+                mPostings[slot] = null;
+            } else {
+                live++;
+            }
+        }
+        while (capacity > 1024 && live * 4 < capacity) capacity /= 2;
+        rehash(capacity);
+    }
+
+    /** Rebuild the hash table with the specified capacity, which must be a power of two, dropping empty lists. */
+    private void rehash(int capacity) {
+        final long[] oldKeys = mKeys;
+        final int[][] oldPostings = mPostings;
+        final int[] oldStarts = mPostingStarts;
+        final int[] oldEnds = mPostingEnds;
+
+        mKeys = new long[capacity];
+        mPostings = new int[capacity][];
+        mPostingStarts = new int[capacity];
+        mPostingEnds = new int[capacity];
+        mUsedSlots = 0;
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == 0 || oldPostings[i] == null || oldStarts[i] == oldEnds[i]) continue;
+            final int slot = findSlot(oldKeys[i]);
+            mKeys[slot] = oldKeys[i];
+            mPostings[slot] = oldPostings[i];
+            mPostingStarts[slot] = oldStarts[i];
+            mPostingEnds[slot] = oldEnds[i];
+            mUsedSlots++;
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package xeffyr.alpine.term.terminal;
+
+/**
+ * The position of text found by {@link TerminalBuffer#search(String, boolean, boolean, int)}, in external rows and
+ * columns. The end column is inclusive, as for a selection.
+ */
+public final class TerminalSearchMatch {
+
+    public final int mStartRow, mStartColumn, mEndRow, mEndColumn;
+
+    TerminalSearchMatch(int startRow, int startColumn, int endRow, int endColumn) {
+        mStartRow = startRow;
+        mStartColumn = startColumn;
+        mEndRow = endRow;
+        mEndColumn = endColumn;
+    }
+}
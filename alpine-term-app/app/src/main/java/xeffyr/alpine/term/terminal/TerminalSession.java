@@ -3,6 +3,7 @@ package xeffyr.alpine.term.terminal;
 import android.annotation.SuppressLint;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.system.ErrnoException;
 import android.system.Os;
 import android.system.OsConstants;
@@ -40,6 +41,8 @@ public final class TerminalSession extends TerminalOutput {
 
         void onClipboardText(TerminalSession session, String text);
 
+        void onClipboardTextRequested(TerminalSession session);
+
         void onBell(TerminalSession session);
 
         void onColorsChanged(TerminalSession session);
@@ -67,6 +70,20 @@ public final class TerminalSession extends TerminalOutput {
 
     private static final int MSG_NEW_INPUT = 1;
     private static final int MSG_PROCESS_EXITED = 4;
+    private static final int MSG_FLUSH_DETACHED_OUTPUT = 5;
+    private static final int MSG_EXPIRE_PREDICTIONS = 6;
+    private static final int MSG_CLIPBOARD_TEXT = 7;
+    private static final int MSG_CLIPBOARD_TEXT_REQUESTED = 8;
+    private static final int MSG_SYNCHRONIZED_OUTPUT_TIMEOUT = 9;
+
+    /** How long the screen is not updated while the process uses synchronized output before it is updated anyway. */
+    private static final int SYNCHRONIZED_OUTPUT_TIMEOUT_MILLIS = 150;
+
+    /** How long output may be buffered while detached before being processed anyway when triggers are set. */
+    private static final int DETACHED_OUTPUT_TRIGGER_DELAY_MILLIS = 1000;
+
+    /** The amount of output buffered while detached at which it is processed anyway, to bound memory usage. */
+    private static final int DETACHED_OUTPUT_THRESHOLD = 256 * 1024;
 
     public final String mHandle = UUID.randomUUID().toString();
 
@@ -82,8 +99,32 @@ public final class TerminalSession extends TerminalOutput {
      * writing to the {@link #mTerminalFileDescriptor}.
      */
     final ByteQueue mTerminalToProcessIOQueue = new ByteQueue(4096);
-    /** Buffer to write translate code points into utf8 before writing to mTerminalToProcessIOQueue */
-    private final byte[] mUtf8InputBuffer = new byte[5];
+    /** Counters for the performance overlay. */
+    final TerminalMetrics mMetrics = new TerminalMetrics(mProcessToTerminalIOQueue);
+    /** Latency of sampled keystrokes until their echo is drawn. */
+    final TerminalInputLatency mInputLatency = new TerminalInputLatency();
+    /** Logs process output if set, see {@link #setLogger(TerminalSessionLogger)}. */
+    private volatile TerminalSessionLogger mLogger;
+    /** Records process output and resizes if set, see {@link #setRecorder(TerminalRecorder)}. */
+    private volatile TerminalRecorder mRecorder;
+    /** Predicts the echo of typed characters if enabled, see {@link #setEchoPredictionEnabled(boolean)}. */
+    private boolean mEchoPredictionEnabled;
+    private TerminalEchoPredictor mEchoPredictor;
+    /** Set while the emulator processes output, so that its replies are not taken as user input. */
+    private boolean mAppending;
+    /** Watches the printed text if set, see {@link #setTriggers(TerminalTriggers)}. */
+    private TerminalTriggers mTriggers;
+    /** See {@link #setClipboardLimit(int)}. */
+    private int mClipboardLimit = TerminalEmulator.DEFAULT_CLIPBOARD_LIMIT;
+    /** If synchronized output has been active for too long, so that the screen is drawn once anyway. */
+    private boolean mSynchronizedOutputTimedOut;
+    /**
+     * Buffer to translate code points into utf8 before writing to mTerminalToProcessIOQueue, so that text typed at
+     * once is written at once, see {@link #appendCodePoint(boolean, int)}.
+     */
+    private final byte[] mUtf8InputBuffer = new byte[4096];
+    /** The number of bytes in {@link #mUtf8InputBuffer} not yet written, see {@link #flushInput()}. */
+    private int mUtf8InputLength;
 
     /** Callback which gets notified when a session finishes or changes title. */
     final SessionChangedCallback mChangeCallback;
@@ -103,6 +144,12 @@ public final class TerminalSession extends TerminalOutput {
     /** Set by the application for user identification of session, not by terminal. */
     public String mSessionName;
 
+    /** If the session is not displayed, in which case process output is only buffered. See {@link #setDetached(boolean)}. */
+    private boolean mDetached;
+    /** Raw process output received while detached and not yet processed by the emulator. */
+    private byte[] mDetachedOutput;
+    private int mDetachedOutputLength;
+
     @SuppressLint("HandlerLeak")
     final Handler mMainThreadHandler = new Handler() {
         final byte[] mReceiveBuffer = new byte[4 * 1024];
@@ -112,11 +159,37 @@ public final class TerminalSession extends TerminalOutput {
             if (msg.what == MSG_NEW_INPUT && isRunning()) {
                 int bytesRead = mProcessToTerminalIOQueue.read(mReceiveBuffer, false);
                 if (bytesRead > 0) {
-                    mEmulator.append(mReceiveBuffer, bytesRead);
-                    notifyScreenUpdate();
+                    if (mDetached) {
+                        appendDetachedOutput(mReceiveBuffer, bytesRead);
+                    } else {
+                        appendToEmulator(mReceiveBuffer, bytesRead);
+                        if (!mEmulator.isSynchronizedOutputActive()) {
+                            removeMessages(MSG_SYNCHRONIZED_OUTPUT_TIMEOUT);
+                            notifyScreenUpdate();
+                        } else if (!hasMessages(MSG_SYNCHRONIZED_OUTPUT_TIMEOUT)) {
+                            // Wait for the end of the update, but do not leave the screen stale if it never comes:
+                            sendEmptyMessageDelayed(MSG_SYNCHRONIZED_OUTPUT_TIMEOUT, SYNCHRONIZED_OUTPUT_TIMEOUT_MILLIS);
+                        }
+                    }
+                    mInputLatency.onOutputProcessed(bytesRead);
                 }
+            } else if (msg.what == MSG_FLUSH_DETACHED_OUTPUT) {
+                flushDetachedOutput();
+            } else if (msg.what == MSG_EXPIRE_PREDICTIONS && mEchoPredictor != null) {
+                long nextCheckTime = mEchoPredictor.expire(SystemClock.uptimeMillis());
+                if (nextCheckTime != -1) sendEmptyMessageAtTime(MSG_EXPIRE_PREDICTIONS, nextCheckTime);
+                notifyPredictionsChanged();
+            } else if (msg.what == MSG_SYNCHRONIZED_OUTPUT_TIMEOUT && mEmulator != null) {
+                // Draw the screen once, but leave the mode as set by the process:
+                mSynchronizedOutputTimedOut = true;
+                notifyScreenUpdate();
+            } else if (msg.what == MSG_CLIPBOARD_TEXT) {
+                mChangeCallback.onClipboardText(TerminalSession.this, (String) msg.obj);
+            } else if (msg.what == MSG_CLIPBOARD_TEXT_REQUESTED) {
+                mChangeCallback.onClipboardTextRequested(TerminalSession.this);
             } else if (msg.what == MSG_PROCESS_EXITED) {
                 int exitCode = (Integer) msg.obj;
+                flushDetachedOutput();
                 cleanupResources(exitCode);
                 mChangeCallback.onSessionFinished(TerminalSession.this);
 
@@ -156,7 +229,13 @@ public final class TerminalSession extends TerminalOutput {
         if (mEmulator == null) {
             initializeEmulator(columns, rows);
         } else {
+            // Output buffered while detached was written for the old size:
+            flushDetachedOutput();
             JNI.setPtyWindowSize(mTerminalFileDescriptor, rows, columns);
+            TerminalRecorder recorder = mRecorder;
+            if (recorder != null) recorder.recordResize(columns, rows);
+            // Predicted cells do not survive reflowing:
+            if (mEchoPredictor != null) mEchoPredictor.onOtherInput();
             mEmulator.resize(columns, rows);
         }
     }
@@ -174,6 +253,9 @@ public final class TerminalSession extends TerminalOutput {
      */
     public void initializeEmulator(int columns, int rows) {
         mEmulator = new TerminalEmulator(this, columns, rows, /* transcript= */5000);
+        mEmulator.mTriggers = mTriggers;
+        mEmulator.mClipboardLimit = mClipboardLimit;
+        if (mEchoPredictionEnabled) mEchoPredictor = new TerminalEchoPredictor(mEmulator);
 
         int[] processId = new int[1];
         mTerminalFileDescriptor = JNI.createSubprocess(mShellPath, mCwd, mArgs, mEnv, processId, rows, columns);
@@ -189,6 +271,12 @@ public final class TerminalSession extends TerminalOutput {
                     while (true) {
                         int read = termIn.read(buffer);
                         if (read == -1) return;
+                        mMetrics.addBytesReceived(read);
+                        mInputLatency.onOutputRead(mMetrics.getBytesReceived());
+                        TerminalSessionLogger logger = mLogger;
+                        if (logger != null) logger.log(buffer, 0, read);
+                        TerminalRecorder recorder = mRecorder;
+                        if (recorder != null) recorder.recordOutput(buffer, 0, read);
                         if (!mProcessToTerminalIOQueue.write(buffer, 0, read)) return;
                         mMainThreadHandler.sendEmptyMessage(MSG_NEW_INPUT);
                     }
@@ -207,6 +295,7 @@ public final class TerminalSession extends TerminalOutput {
                         int bytesToWrite = mTerminalToProcessIOQueue.read(buffer, true);
                         if (bytesToWrite == -1) return;
                         termOut.write(buffer, 0, bytesToWrite);
+                        mInputLatency.onInputWritten(bytesToWrite);
                     }
                 } catch (IOException e) {
                     // Ignore.
@@ -224,20 +313,48 @@ public final class TerminalSession extends TerminalOutput {
 
     }
 
-    /** Write data to the shell process. */
+    /** Write data to the shell process, after any input appended by {@link #appendCodePoint(boolean, int)}. */
     @Override
     public void write(byte[] data, int offset, int count) {
-        if (mShellPid > 0) mTerminalToProcessIOQueue.write(data, offset, count);
+        if (mUtf8InputLength > 0) flushInput();
+        if (mEchoPredictor != null && !mAppending) {
+            mEchoPredictor.onOtherInput();
+            notifyPredictionsChanged();
+        }
+        if (mShellPid > 0 && mTerminalToProcessIOQueue.write(data, offset, count)) mInputLatency.onInputQueued(count);
     }
 
     /** Write the Unicode code point to the terminal encoded in UTF-8. */
     public void writeCodePoint(boolean prependEscape, int codePoint) {
+        appendCodePoint(prependEscape, codePoint);
+        flushInput();
+    }
+
+    /**
+     * Encode the Unicode code point in UTF-8 for writing to the terminal with the next {@link #flushInput()}, so that
+     * e.g. the text committed by an input method is written to the process at once.
+     */
+    public void appendCodePoint(boolean prependEscape, int codePoint) {
         if (codePoint > 1114111 || (codePoint >= 0xD800 && codePoint <= 0xDFFF)) {
             // 1114111 (= 2**16 + 1024**2 - 1) is the highest code point, [0xD800,0xDFFF] is the surrogate range.
             throw new IllegalArgumentException("Invalid code point: " + codePoint);
         }
 
-        int bufferPosition = 0;
+        if (mEchoPredictor != null) {
+            if (!prependEscape && codePoint >= 32 && codePoint != 127) {
+                mEchoPredictor.onCodePointTyped(codePoint, SystemClock.uptimeMillis());
+                if (!mMainThreadHandler.hasMessages(MSG_EXPIRE_PREDICTIONS)) {
+                    mMainThreadHandler.sendEmptyMessageDelayed(MSG_EXPIRE_PREDICTIONS, TerminalEchoPredictor.TIMEOUT_MILLIS);
+                }
+            } else {
+                mEchoPredictor.onOtherInput();
+            }
+            notifyPredictionsChanged();
+        }
+
+        // Room for an escape and the longest encoding:
+        if (mUtf8InputLength + 5 > mUtf8InputBuffer.length) flushInput();
+        int bufferPosition = mUtf8InputLength;
         if (prependEscape) mUtf8InputBuffer[bufferPosition++] = 27;
 
         if (codePoint <= /* 7 bits */0b1111111) {
@@ -264,20 +381,205 @@ public final class TerminalSession extends TerminalOutput {
 			/* 10xxxxxx continuation byte with following 6 bits */
             mUtf8InputBuffer[bufferPosition++] = (byte) (0b10000000 | (codePoint & 0b111111));
         }
-        write(mUtf8InputBuffer, 0, bufferPosition);
+        mUtf8InputLength = bufferPosition;
+    }
+
+    /** Add bytes to the input written to the terminal with the next {@link #flushInput()}. */
+    public void appendInput(byte[] data, int offset, int count) {
+        if (mEchoPredictor != null) {
+            mEchoPredictor.onOtherInput();
+            notifyPredictionsChanged();
+        }
+        if (mUtf8InputLength + count > mUtf8InputBuffer.length) {
+            flushInput();
+            if (count > mUtf8InputBuffer.length) {
+                write(data, offset, count);
+                return;
+            }
+        }
+        System.arraycopy(data, offset, mUtf8InputBuffer, mUtf8InputLength, count);
+        mUtf8InputLength += count;
+    }
+
+    /** Write the code points appended by {@link #appendCodePoint(boolean, int)} to the terminal. */
+    public void flushInput() {
+        final int length = mUtf8InputLength;
+        if (length == 0) return;
+        mUtf8InputLength = 0;
+        if (mShellPid > 0 && mTerminalToProcessIOQueue.write(mUtf8InputBuffer, 0, length)) mInputLatency.onInputQueued(length);
     }
 
     public TerminalEmulator getEmulator() {
         return mEmulator;
     }
 
+    public TerminalMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    public TerminalInputLatency getInputLatency() {
+        return mInputLatency;
+    }
+
+    /**
+     * Log the raw output of the process from now on, replacing and closing any previous logger. The logger is closed
+     * when the process exits.
+     *
+     * @param logger the logger, or null to stop logging.
+     */
+    public void setLogger(TerminalSessionLogger logger) {
+        TerminalSessionLogger oldLogger = mLogger;
+        mLogger = logger;
+        if (oldLogger != null) oldLogger.close();
+    }
+
+    public TerminalSessionLogger getLogger() {
+        return mLogger;
+    }
+
+    /**
+     * Record process output and terminal resizes from now on for replay with {@link TerminalRecordingPlayer},
+     * replacing and closing any previous recorder. The recording starts with the current terminal size, and the
+     * recorder is closed when the process exits.
+     *
+     * @param recorder the recorder, or null to stop recording.
+     */
+    public void setRecorder(TerminalRecorder recorder) {
+        TerminalRecorder oldRecorder = mRecorder;
+        if (recorder != null && mEmulator != null) recorder.recordResize(mEmulator.mColumns, mEmulator.mRows);
+        mRecorder = recorder;
+        if (oldRecorder != null) oldRecorder.close();
+    }
+
+    public TerminalRecorder getRecorder() {
+        return mRecorder;
+    }
+
+    /**
+     * Watch the text printed by the process for patterns, replacing any previous triggers. Output is processed at least
+     * every {@value #DETACHED_OUTPUT_TRIGGER_DELAY_MILLIS} ms while detached when set, so that triggers fire in time.
+     *
+     * @param triggers the triggers, or null to stop watching.
+     */
+    public void setTriggers(TerminalTriggers triggers) {
+        mTriggers = triggers;
+        if (mEmulator != null) mEmulator.mTriggers = triggers;
+    }
+
+    /**
+     * Set the maximal size of text which the process may copy to the clipboard with OSC 52, larger text is ignored.
+     *
+     * @param limit the size in bytes, at most {@link TerminalEmulator#MAX_CLIPBOARD_LIMIT}, or 0 to ignore OSC 52
+     *              including requests for the clipboard text.
+     */
+    public void setClipboardLimit(int limit) {
+        limit = Math.min(limit, TerminalEmulator.MAX_CLIPBOARD_LIMIT);
+        mClipboardLimit = limit;
+        if (mEmulator != null) mEmulator.mClipboardLimit = limit;
+    }
+
+    /** Let the emulator process output from the process, keeping track of the time spent. */
+    private void appendToEmulator(byte[] data, int length) {
+        final long startTime = System.nanoTime();
+        mAppending = true;
+        mEmulator.append(data, length);
+        mAppending = false;
+        if (mEchoPredictor != null) mEchoPredictor.onOutputProcessed();
+        mMetrics.addAppendNanos(System.nanoTime() - startTime);
+    }
+
+    /**
+     * Show typed characters before they are echoed by the process, for processes with a slow round trip. Printable
+     * characters are drawn as predicted until confirmed or contradicted by the output, see
+     * {@link TerminalEchoPredictor}.
+     */
+    public void setEchoPredictionEnabled(boolean enabled) {
+        mEchoPredictionEnabled = enabled;
+        if (!enabled && mEchoPredictor != null) {
+            mEchoPredictor.clear();
+            notifyPredictionsChanged();
+        }
+        mEchoPredictor = (enabled && mEmulator != null) ? new TerminalEchoPredictor(mEmulator) : null;
+    }
+
+    /** The predictor of typed characters to draw, or null if echo prediction is disabled. */
+    public TerminalEchoPredictor getEchoPredictor() {
+        return mEchoPredictor;
+    }
+
+    /** Redraw the cells of predictions which have changed. */
+    private void notifyPredictionsChanged() {
+        if (mEmulator != null && mEmulator.getScreen().isDamaged()) notifyScreenUpdate();
+    }
+
+    /**
+     * If the screen should not be drawn, as the process is updating it with synchronized output. The screen is updated
+     * when the process is done, or once it has taken too long, until {@link #onScreenDrawn()}.
+     */
+    public boolean isScreenUpdateHeld() {
+        return mEmulator != null && mEmulator.isSynchronizedOutputActive() && !mSynchronizedOutputTimedOut;
+    }
+
+    /** Called when the screen has been drawn, so that further synchronized output is held again. */
+    public void onScreenDrawn() {
+        mSynchronizedOutputTimedOut = false;
+    }
+
     /** Notify the {@link #mChangeCallback} that the screen has changed. */
     protected void notifyScreenUpdate() {
         mChangeCallback.onTextChanged(this);
     }
 
+    /**
+     * Set whether this session is displayed. While detached, process output is buffered as raw bytes instead of being
+     * processed by the emulator, and processed in bulk when the session is attached again or the buffered output grows
+     * past {@link #DETACHED_OUTPUT_THRESHOLD}.
+     * <p>
+     * Note that replies to terminal queries sent by the process are delayed until the output is processed.
+     */
+    public void setDetached(boolean detached) {
+        if (mDetached == detached) return;
+        mDetached = detached;
+        if (!detached) flushDetachedOutput();
+    }
+
+    public boolean isDetached() {
+        return mDetached;
+    }
+
+    private void appendDetachedOutput(byte[] data, int length) {
+        if (mDetachedOutput == null) {
+            mDetachedOutput = new byte[Math.max(4096, length)];
+        } else if (mDetachedOutputLength + length > mDetachedOutput.length) {
+            byte[] newOutput = new byte[Math.max(mDetachedOutputLength + length, 2 * mDetachedOutput.length)];
+            System.arraycopy(mDetachedOutput, 0, newOutput, 0, mDetachedOutputLength);
+            mDetachedOutput = newOutput;
+        }
+        System.arraycopy(data, 0, mDetachedOutput, mDetachedOutputLength, length);
+        mDetachedOutputLength += length;
+
+        if (mDetachedOutputLength >= DETACHED_OUTPUT_THRESHOLD) {
+            flushDetachedOutput();
+        } else if (mTriggers != null && !mMainThreadHandler.hasMessages(MSG_FLUSH_DETACHED_OUTPUT)) {
+            mMainThreadHandler.sendEmptyMessageDelayed(MSG_FLUSH_DETACHED_OUTPUT, DETACHED_OUTPUT_TRIGGER_DELAY_MILLIS);
+        }
+    }
+
+    /** Process all output buffered while detached. */
+    private void flushDetachedOutput() {
+        mMainThreadHandler.removeMessages(MSG_FLUSH_DETACHED_OUTPUT);
+        if (mDetachedOutputLength == 0) return;
+        appendToEmulator(mDetachedOutput, mDetachedOutputLength);
+        mDetachedOutputLength = 0;
+        // Do not keep a possibly large buffer around while attached:
+        if (!mDetached) mDetachedOutput = null;
+        notifyScreenUpdate();
+    }
+
     /** Reset state for terminal emulator state. */
     public void reset() {
+        flushDetachedOutput();
+        if (mEchoPredictor != null) mEchoPredictor.onOtherInput();
         mEmulator.reset();
         notifyScreenUpdate();
     }
@@ -304,6 +606,8 @@ public final class TerminalSession extends TerminalOutput {
         mTerminalToProcessIOQueue.close();
         mProcessToTerminalIOQueue.close();
         JNI.close(mTerminalFileDescriptor);
+        setLogger(null);
+        setRecorder(null);
     }
 
     @Override
@@ -320,9 +624,15 @@ public final class TerminalSession extends TerminalOutput {
         return mShellExitStatus;
     }
 
+    /** Delivered after the output being processed, since setting the clipboard may take a while for large text. */
     @Override
     public void clipboardText(String text) {
-        mChangeCallback.onClipboardText(this, text);
+        mMainThreadHandler.obtainMessage(MSG_CLIPBOARD_TEXT, text).sendToTarget();
+    }
+
+    @Override
+    public void clipboardTextRequested() {
+        mMainThreadHandler.sendEmptyMessage(MSG_CLIPBOARD_TEXT_REQUESTED);
     }
 
     @Override
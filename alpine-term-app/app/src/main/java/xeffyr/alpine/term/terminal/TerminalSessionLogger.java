@@ -0,0 +1,225 @@
+package xeffyr.alpine.term.terminal;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Logs the raw output of a {@link TerminalSession} process to gzip compressed files, see
+ * {@link TerminalSession#setLogger(TerminalSessionLogger)}.
+ * <p>
+ * Output is copied into one of a few large buffers by the thread reading from the process, and full buffers are
+ * compressed and written by a separate thread. The reading thread never waits for storage: if all buffers are waiting
+ * to be written the output is dropped and counted in {@link #getDroppedBytes()} instead.
+ * <p>
+ * Files are named after the session and the time they were created, and a new file is started once a file has grown
+ * past the maximum size, deleting the oldest files of the session so that only a limited number is kept.
+ */
+public final class TerminalSessionLogger {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int BUFFER_COUNT = 4;
+    /** Write buffered output at least this often, so that little is lost if the app is killed. */
+    private static final long FLUSH_INTERVAL_MILLIS = 2000;
+    private static final String FILE_SUFFIX = ".log.gz";
+
+    private static final class Buffer {
+        final byte[] mData = new byte[BUFFER_SIZE];
+        int mLength;
+    }
+
+    private final File mDirectory;
+    private final String mName;
+    private final long mMaxFileSize;
+    private final int mMaxFiles;
+
+    /** Guards the buffers, and is notified when a buffer is waiting to be written or the logger is closed. */
+    private final Object mLock = new Object();
+    /** The buffer being filled by the reading thread. */
+    private Buffer mFilling = new Buffer();
+    private final ArrayDeque<Buffer> mPending = new ArrayDeque<>(BUFFER_COUNT);
+    private final ArrayDeque<Buffer> mFree = new ArrayDeque<>(BUFFER_COUNT);
+    private boolean mClosed;
+    private long mDroppedBytes;
+
+    /** The file being written, only accessed by the writer thread. */
+    private FileOutputStream mFileStream;
+    private GZIPOutputStream mOut;
+
+    /**
+     * Create a logger and start its writer thread.
+     *
+     * @param directory   the directory to write the files in, which is created if needed.
+     * @param name        the name of the session, used as prefix of the file names.
+     * @param maxFileSize the compressed size in bytes after which a new file is started.
+     * @param maxFiles    the number of files of the session to keep.
+     */
+    public TerminalSessionLogger(File directory, String name, long maxFileSize, int maxFiles) {
+        mDirectory = directory;
+        mName = name.replaceAll("[^A-Za-z0-9._-]", "_");
+        mMaxFileSize = maxFileSize;
+        mMaxFiles = Math.max(1, maxFiles);
+        for (int i = 1; i < BUFFER_COUNT; i++) mFree.add(new Buffer());
+
+        new Thread("TermSessionLogWriter[" + mName + "]") {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }.start();
+    }
+
+    /** Log output of the process. Called by the thread reading from the process, and never waits for storage. */
+    void log(byte[] data, int offset, int count) {
+        synchronized (mLock) {
+            if (mClosed) return;
+            while (count > 0) {
+                Buffer buffer = mFilling;
+                if (buffer.mLength == BUFFER_SIZE && !handOffFilling()) {
+                    if (mDroppedBytes == 0) Log.w(EmulatorDebug.LOG_TAG, "Session log of " + mName + " cannot keep up, dropping output");
+                    mDroppedBytes += count;
+                    return;
+                }
+                buffer = mFilling;
+                int bytesToCopy = Math.min(count, BUFFER_SIZE - buffer.mLength);
+                System.arraycopy(data, offset, buffer.mData, buffer.mLength, bytesToCopy);
+                buffer.mLength += bytesToCopy;
+                offset += bytesToCopy;
+                count -= bytesToCopy;
+            }
+        }
+    }
+
+    /** Queue the buffer being filled for writing if a free buffer can replace it. Must hold {@link #mLock}. */
+    private boolean handOffFilling() {
+        Buffer free = mFree.poll();
+        if (free == null) return false;
+        mPending.add(mFilling);
+        mFilling = free;
+        mLock.notify();
+        return true;
+    }
+
+    /** Stop logging. Output already logged is still written, after which the file is closed. */
+    public void close() {
+        synchronized (mLock) {
+            mClosed = true;
+            mLock.notify();
+        }
+    }
+
+    /** The number of bytes of output which could not be logged because storage did not keep up. */
+    public long getDroppedBytes() {
+        synchronized (mLock) {
+            return mDroppedBytes;
+        }
+    }
+
+    private void writeLoop() {
+        while (true) {
+            final Buffer buffer;
+            final boolean idle;
+            synchronized (mLock) {
+                if (mPending.isEmpty() && !mClosed) {
+                    try {
+                        mLock.wait(FLUSH_INTERVAL_MILLIS);
+                    } catch (InterruptedException e) {
+                        mClosed = true;
+                    }
+                }
+                // Write partially filled buffers when output is slow, or when done:
+                if (mPending.isEmpty() && mFilling.mLength > 0) handOffFilling();
+                if (mPending.isEmpty() && mClosed && mFilling.mLength > 0) {
+                    mPending.add(mFilling);
+                    mFilling = new Buffer();
+                }
+                buffer = mPending.poll();
+                if (buffer == null && mClosed) break;
+                idle = mPending.isEmpty();
+            }
+
+            if (buffer != null) {
+                write(buffer.mData, buffer.mLength);
+                // Make the output written so far readable even if the app is killed before the file is closed:
+                if (idle) flush();
+                synchronized (mLock) {
+                    buffer.mLength = 0;
+                    mFree.add(buffer);
+                }
+            }
+        }
+
+        closeFile();
+        long droppedBytes = getDroppedBytes();
+        if (droppedBytes > 0) Log.w(EmulatorDebug.LOG_TAG, "Session log of " + mName + " dropped " + droppedBytes + " bytes");
+    }
+
+    private void write(byte[] data, int length) {
+        try {
+            if (mOut == null) openFile();
+            mOut.write(data, 0, length);
+            if (mFileStream.getChannel().position() >= mMaxFileSize) closeFile();
+        } catch (IOException e) {
+            Log.e(EmulatorDebug.LOG_TAG, "Failed writing session log of " + mName, e);
+            closeFile();
+            synchronized (mLock) {
+                mDroppedBytes += length;
+            }
+        }
+    }
+
+    private void flush() {
+        if (mOut == null) return;
+        try {
+            mOut.flush();
+        } catch (IOException e) {
+            Log.e(EmulatorDebug.LOG_TAG, "Failed writing session log of " + mName, e);
+            closeFile();
+        }
+    }
+
+    private void openFile() throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) throw new IOException("Cannot create " + mDirectory);
+        deleteOldFiles();
+
+        String timestamp = new SimpleDateFormat("yyyyMMdd-HHmmss.SSS", Locale.US).format(new Date());
+        mFileStream = new FileOutputStream(new File(mDirectory, mName + "-" + timestamp + FILE_SUFFIX));
+        mOut = new GZIPOutputStream(mFileStream, 8192, /* syncFlush= */ true);
+    }
+
+    private void closeFile() {
+        if (mOut == null && mFileStream == null) return;
+        try {
+            if (mOut != null) {
+                mOut.close();
+            } else {
+                mFileStream.close();
+            }
+        } catch (IOException e) {
+            Log.e(EmulatorDebug.LOG_TAG, "Failed closing session log of " + mName, e);
+        }
+        mOut = null;
+        mFileStream = null;
+    }
+
+    /** Delete the oldest files of the session, leaving room for a new file. */
+    private void deleteOldFiles() {
+        final String prefix = mName + "-";
+        File[] files = mDirectory.listFiles((dir, fileName) -> fileName.startsWith(prefix) && fileName.endsWith(FILE_SUFFIX));
+        if (files == null || files.length < mMaxFiles) return;
+
+        // The timestamps in the names sort in order of creation:
+        Arrays.sort(files);
+        for (int i = 0; i <= files.length - mMaxFiles; i++) {
+            if (!files[i].delete()) Log.w(EmulatorDebug.LOG_TAG, "Failed deleting old session log " + files[i]);
+        }
+    }
+}
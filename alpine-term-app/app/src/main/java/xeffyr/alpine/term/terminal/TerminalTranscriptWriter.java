@@ -0,0 +1,190 @@
+package xeffyr.alpine.term.terminal;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+
+/**
+ * Writes terminal rows as text, one row at a time, so that a transcript can be exported without holding all of it
+ * in memory.
+ * <p>
+ * Rows are written as plain text, as text with ANSI escape sequences reproducing the colors and effects, or as an HTML
+ * document. Call {@link #writeHeader()}, then {@link #writeRow(TerminalRow)} for each row, then {@link #writeFooter()}.
+ */
+public final class TerminalTranscriptWriter {
+
+    public static final int FORMAT_PLAIN = 0;
+    public static final int FORMAT_ANSI = 1;
+    public static final int FORMAT_HTML = 2;
+
+    private final Writer mOut;
+    private final int mFormat;
+    /** The colors used to resolve indexed colors for HTML output. */
+    private final int[] mPalette;
+    private final StringBuilder mEscape = new StringBuilder();
+
+    /** The style of the text last written, for ANSI and HTML output. */
+    private long mCurrentStyle = TextStyle.NORMAL;
+
+    /**
+     * @param out     where to write, which should be buffered.
+     * @param format  one of {@link #FORMAT_PLAIN}, {@link #FORMAT_ANSI} or {@link #FORMAT_HTML}.
+     * @param palette the colors of the terminal, which is copied.
+     */
+    public TerminalTranscriptWriter(Writer out, int format, int[] palette) {
+        mOut = out;
+        mFormat = format;
+        mPalette = palette.clone();
+    }
+
+    public void writeHeader() throws IOException {
+        if (mFormat != FORMAT_HTML) return;
+
+        mOut.write("<!DOCTYPE html>\n<html>\n<head>\n<meta charset=\"utf-8\">\n<title>Terminal transcript</title>\n</head>\n");
+        mOut.write(String.format(Locale.US, "<body style=\"background-color: #%06x; color: #%06x;\">\n<pre>",
+            mPalette[TextStyle.COLOR_INDEX_BACKGROUND] & 0xFFFFFF, mPalette[TextStyle.COLOR_INDEX_FOREGROUND] & 0xFFFFFF));
+    }
+
+    public void writeFooter() throws IOException {
+        if (mFormat == FORMAT_HTML) mOut.write("</pre>\n</body>\n</html>\n");
+        mOut.flush();
+    }
+
+    /** Write a row followed by a newline. Trailing blank cells are skipped unless the row is wrapped. */
+    public void writeRow(TerminalRow row) throws IOException {
+        final char[] text = row.mText;
+        final int end = findEndOfText(row);
+
+        int column = 0;
+        for (int i = 0; i < end; ) {
+            final char c = text[i];
+            final int charCount = Character.isHighSurrogate(c) && i + 1 < end ? 2 : 1;
+            final int codePoint = (charCount == 2) ? Character.toCodePoint(c, text[i + 1]) : c;
+            final int width = WcWidth.width(codePoint);
+
+            if (width > 0 && mFormat != FORMAT_PLAIN) {
+                final long style = row.getStyle(Math.min(column, row.mStyle.length - 1));
+                if (style != mCurrentStyle) changeStyle(style);
+            }
+
+            if (mFormat == FORMAT_HTML && (c == '<' || c == '>' || c == '&')) {
+                mOut.write(c == '<' ? "&lt;" : (c == '>' ? "&gt;" : "&amp;"));
+            } else if (mFormat == FORMAT_ANSI && c < ' ') {
+                // Never let control characters in the text affect the reader of the transcript.
+                mOut.write(' ');
+            } else {
+                mOut.write(text, i, charCount);
+            }
+
+            if (width > 0) column += width;
+            i += charCount;
+        }
+
+        if (mCurrentStyle != TextStyle.NORMAL) changeStyle(TextStyle.NORMAL);
+        mOut.write('\n');
+    }
+
+    /** Find the char index after the last cell to output in a row. */
+    private int findEndOfText(TerminalRow row) {
+        final int spaceUsed = row.getSpaceUsed();
+        if (row.mLineWrap) return spaceUsed;
+
+        int end = spaceUsed;
+        while (end > 0 && row.mText[end - 1] == ' ') end--;
+        if (mFormat == FORMAT_PLAIN || end == spaceUsed) return end;
+
+        // Keep trailing space with a visible background, which only is found in the trailing columns when all the
+        // trailing chars are single width:
+        final int columns = row.mStyle.length;
+        for (int i = spaceUsed - 1, column = columns - 1; i >= end && column >= 0; i--, column--) {
+            final long style = row.getStyle(column);
+            if (TextStyle.decodeBackColor(style) != TextStyle.COLOR_INDEX_BACKGROUND
+                || (TextStyle.decodeEffect(style) & TextStyle.CHARACTER_ATTRIBUTE_INVERSE) != 0) {
+                return i + 1;
+            }
+        }
+        return end;
+    }
+
+    private void changeStyle(long style) throws IOException {
+        if (mFormat == FORMAT_ANSI) {
+            writeAnsiStyle(style);
+        } else {
+            if (mCurrentStyle != TextStyle.NORMAL) mOut.write("</span>");
+            if (style != TextStyle.NORMAL) writeHtmlStyle(style);
+        }
+        mCurrentStyle = style;
+    }
+
+    private void writeAnsiStyle(long style) throws IOException {
+        final StringBuilder sgr = mEscape;
+        sgr.setLength(0);
+        sgr.append("\033[0");
+
+        final int effect = TextStyle.decodeEffect(style);
+        if ((effect & TextStyle.CHARACTER_ATTRIBUTE_BOLD) != 0) sgr.append(";1");
+        if ((effect & TextStyle.CHARACTER_ATTRIBUTE_DIM) != 0) sgr.append(";2");
+        if ((effect & TextStyle.CHARACTER_ATTRIBUTE_ITALIC) != 0) sgr.append(";3");
+        if ((effect & TextStyle.CHARACTER_ATTRIBUTE_UNDERLINE) != 0) sgr.append(";4");
+        if ((effect & TextStyle.CHARACTER_ATTRIBUTE_BLINK) != 0) sgr.append(";5");
+        if ((effect & TextStyle.CHARACTER_ATTRIBUTE_INVERSE) != 0) sgr.append(";7");
+        if ((effect & TextStyle.CHARACTER_ATTRIBUTE_INVISIBLE) != 0) sgr.append(";8");
+        if ((effect & TextStyle.CHARACTER_ATTRIBUTE_STRIKETHROUGH) != 0) sgr.append(";9");
+
+        appendAnsiColor(sgr, TextStyle.decodeForeColor(style), 30, 90, 38);
+        appendAnsiColor(sgr, TextStyle.decodeBackColor(style), 40, 100, 48);
+
+        sgr.append('m');
+        mOut.append(sgr);
+    }
+
+    /** Append the SGR parameters for a color. The special colors (default foreground etc) need none. */
+    private static void appendAnsiColor(StringBuilder sgr, int color, int base, int brightBase, int extended) {
+        if ((color & 0xff000000) == 0xff000000) {
+            sgr.append(';').append(extended).append(";2;").append((color >> 16) & 0xFF).append(';')
+                .append((color >> 8) & 0xFF).append(';').append(color & 0xFF);
+        } else if (color < 8) {
+            sgr.append(';').append(base + color);
+        } else if (color < 16) {
+            sgr.append(';').append(brightBase + color - 8);
+        } else if (color < 256) {
+            sgr.append(';').append(extended).append(";5;").append(color);
+        }
+    }
+
+    private void writeHtmlStyle(long style) throws IOException {
+        int foreColor = TextStyle.decodeForeColor(style);
+        int backColor = TextStyle.decodeBackColor(style);
+        final int effect = TextStyle.decodeEffect(style);
+
+        if ((foreColor & 0xff000000) != 0xff000000) foreColor = mPalette[foreColor];
+        if ((backColor & 0xff000000) != 0xff000000) backColor = mPalette[backColor];
+        if ((effect & TextStyle.CHARACTER_ATTRIBUTE_INVERSE) != 0) {
+            int tmp = foreColor;
+            foreColor = backColor;
+            backColor = tmp;
+        }
+        if ((effect & TextStyle.CHARACTER_ATTRIBUTE_DIM) != 0) {
+            // Same as the dimming done when rendering.
+            int red = (0xFF & (foreColor >> 16)) * 2 / 3;
+            int green = (0xFF & (foreColor >> 8)) * 2 / 3;
+            int blue = (0xFF & foreColor) * 2 / 3;
+            foreColor = (red << 16) + (green << 8) + blue;
+        }
+        if ((effect & TextStyle.CHARACTER_ATTRIBUTE_INVISIBLE) != 0) foreColor = backColor;
+
+        final StringBuilder css = mEscape;
+        css.setLength(0);
+        css.append("<span style=\"color: #").append(String.format(Locale.US, "%06x", foreColor & 0xFFFFFF));
+        css.append("; background-color: #").append(String.format(Locale.US, "%06x", backColor & 0xFFFFFF));
+        if ((effect & TextStyle.CHARACTER_ATTRIBUTE_BOLD) != 0) css.append("; font-weight: bold");
+        if ((effect & TextStyle.CHARACTER_ATTRIBUTE_ITALIC) != 0) css.append("; font-style: italic");
+        if ((effect & (TextStyle.CHARACTER_ATTRIBUTE_UNDERLINE | TextStyle.CHARACTER_ATTRIBUTE_STRIKETHROUGH)) != 0) {
+            css.append("; text-decoration:");
+            if ((effect & TextStyle.CHARACTER_ATTRIBUTE_UNDERLINE) != 0) css.append(" underline");
+            if ((effect & TextStyle.CHARACTER_ATTRIBUTE_STRIKETHROUGH) != 0) css.append(" line-through");
+        }
+        css.append("\">");
+        mOut.append(css);
+    }
+}
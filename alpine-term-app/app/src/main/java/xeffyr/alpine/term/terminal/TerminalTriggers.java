@@ -0,0 +1,210 @@
+package xeffyr.alpine.term.terminal;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Watches the text printed by a {@link TerminalEmulator} for patterns, see
+ * {@link TerminalSession#setTriggers(TerminalTriggers)}.
+ * <p>
+ * A pattern is either a literal, matched anywhere in a line as soon as it has been printed, or a regular expression
+ * written as /regex/, matched at the start of each line when the line ends. All literals are matched together by an
+ * Aho-Corasick automaton, which keeps its state between chunks of output and costs constant time per ASCII character.
+ * Literals do not match across line ends.
+ */
+public final class TerminalTriggers {
+
+    /** Callback to be invoked on the main thread when a pattern matches. */
+    public interface Listener {
+        /**
+         * @param pattern the pattern as given to the constructor.
+         * @param line    the line matched, up to the end of the match for literals.
+         */
+        void onTriggered(String pattern, String line);
+    }
+
+    /** Lines are only kept up to this length for regular expressions and reporting. */
+    private static final int MAX_LINE_LENGTH = 1024;
+    private static final int ASCII_SIZE = 128;
+
+    private final Listener mListener;
+
+    /** The literal patterns, indexed by the numbers in {@link #mOutputs}. */
+    private final String[] mLiterals;
+    /** Transitions of the automaton on ASCII characters, at [state * ASCII_SIZE + char], with failures resolved. */
+    private final int[] mAsciiTransitions;
+    /** Sorted non-ASCII characters with transitions from each state, and the target states. */
+    private final char[][] mOtherChars;
+    private final int[][] mOtherTargets;
+    /** The failure link of each state, used for non-ASCII characters. */
+    private final int[] mFailures;
+    /** The literals matched when reaching each state, or null if none. */
+    private final int[][] mOutputs;
+
+    private final String[] mRegexPatterns;
+    private final Matcher[] mRegexMatchers;
+
+    private int mState;
+    private final StringBuilder mLine = new StringBuilder();
+
+    /**
+     * @param patterns literals, or regular expressions enclosed in slashes.
+     * @throws PatternSyntaxException if a regular expression is invalid.
+     */
+    public TerminalTriggers(List<String> patterns, Listener listener) {
+        mListener = listener;
+
+        List<String> literals = new ArrayList<>();
+        List<String> regexPatterns = new ArrayList<>();
+        for (String pattern : patterns) {
+            if (pattern.length() > 2 && pattern.startsWith("/") && pattern.endsWith("/")) {
+                regexPatterns.add(pattern);
+            } else if (!pattern.isEmpty()) {
+                literals.add(pattern);
+            }
+        }
+
+        mRegexPatterns = regexPatterns.toArray(new String[0]);
+        mRegexMatchers = new Matcher[mRegexPatterns.length];
+        for (int i = 0; i < mRegexPatterns.length; i++) {
+            String regex = mRegexPatterns[i];
+            mRegexMatchers[i] = Pattern.compile(regex.substring(1, regex.length() - 1)).matcher("");
+        }
+
+        mLiterals = literals.toArray(new String[0]);
+
+        // Build the trie of the literals:
+        List<Map<Character, Integer>> gotos = new ArrayList<>();
+        List<List<Integer>> outputs = new ArrayList<>();
+        gotos.add(new HashMap<>());
+        outputs.add(new ArrayList<>());
+        for (int i = 0; i < mLiterals.length; i++) {
+            int state = 0;
+            for (char c : mLiterals[i].toCharArray()) {
+                Integer next = gotos.get(state).get(c);
+                if (next == null) {
+                    next = gotos.size();
+                    gotos.add(new HashMap<>());
+                    outputs.add(new ArrayList<>());
+                    gotos.get(state).put(c, next);
+                }
+                state = next;
+            }
+            outputs.get(state).add(i);
+        }
+
+        // Compute failure links and the ASCII transitions breadth first, so that those of shorter prefixes are known:
+        final int stateCount = gotos.size();
+        mFailures = new int[stateCount];
+        mAsciiTransitions = new int[stateCount * ASCII_SIZE];
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        queue.add(0);
+        while (!queue.isEmpty()) {
+            final int state = queue.poll();
+            final Map<Character, Integer> stateGotos = gotos.get(state);
+            for (Map.Entry<Character, Integer> entry : stateGotos.entrySet()) {
+                final char c = entry.getKey();
+                final int next = entry.getValue();
+                mFailures[next] = (state == 0) ? 0 : step(gotos, mFailures[state], c);
+                outputs.get(next).addAll(outputs.get(mFailures[next]));
+                queue.add(next);
+            }
+            for (int c = 0; c < ASCII_SIZE; c++) {
+                Integer next = stateGotos.get((char) c);
+                if (next != null) {
+                    mAsciiTransitions[state * ASCII_SIZE + c] = next;
+                } else if (state != 0) {
+                    mAsciiTransitions[state * ASCII_SIZE + c] = mAsciiTransitions[mFailures[state] * ASCII_SIZE + c];
+                }
+            }
+        }
+
+        mOtherChars = new char[stateCount][];
+        mOtherTargets = new int[stateCount][];
+        mOutputs = new int[stateCount][];
+        for (int state = 0; state < stateCount; state++) {
+            List<Character> chars = new ArrayList<>();
+            for (char c : gotos.get(state).keySet()) if (c >= ASCII_SIZE) chars.add(c);
+            if (!chars.isEmpty()) {
+                char[] sorted = new char[chars.size()];
+                for (int i = 0; i < sorted.length; i++) sorted[i] = chars.get(i);
+                Arrays.sort(sorted);
+                int[] targets = new int[sorted.length];
+                for (int i = 0; i < sorted.length; i++) targets[i] = gotos.get(state).get(sorted[i]);
+                mOtherChars[state] = sorted;
+                mOtherTargets[state] = targets;
+            }
+
+            List<Integer> stateOutputs = outputs.get(state);
+            if (!stateOutputs.isEmpty()) {
+                mOutputs[state] = new int[stateOutputs.size()];
+                for (int i = 0; i < mOutputs[state].length; i++) mOutputs[state][i] = stateOutputs.get(i);
+            }
+        }
+    }
+
+    /** The transition from a state while building, following failure links. */
+    private int step(List<Map<Character, Integer>> gotos, int state, char c) {
+        while (true) {
+            Integer next = gotos.get(state).get(c);
+            if (next != null) return next;
+            if (state == 0) return 0;
+            state = mFailures[state];
+        }
+    }
+
+    /** Called by the emulator for each printed code point. */
+    void onCodePoint(int codePoint) {
+        if (Character.isSupplementaryCodePoint(codePoint)) {
+            onChar(Character.highSurrogate(codePoint));
+            onChar(Character.lowSurrogate(codePoint));
+        } else {
+            onChar((char) codePoint);
+        }
+    }
+
+    private void onChar(char c) {
+        if (mLine.length() < MAX_LINE_LENGTH) mLine.append(c);
+
+        int state = mState;
+        if (c < ASCII_SIZE) {
+            state = mAsciiTransitions[state * ASCII_SIZE + c];
+        } else {
+            while (true) {
+                final char[] chars = mOtherChars[state];
+                final int index = (chars == null) ? -1 : Arrays.binarySearch(chars, c);
+                if (index >= 0) {
+                    state = mOtherTargets[state][index];
+                    break;
+                }
+                if (state == 0) break;
+                state = mFailures[state];
+            }
+        }
+        mState = state;
+
+        final int[] matches = mOutputs[state];
+        if (matches != null) {
+            final String line = mLine.toString();
+            for (int literal : matches) mListener.onTriggered(mLiterals[literal], line);
+        }
+    }
+
+    /** Called by the emulator on a line feed or carriage return. */
+    void onLineEnd() {
+        mState = 0;
+        if (mLine.length() == 0) return;
+
+        for (int i = 0; i < mRegexMatchers.length; i++) {
+            if (mRegexMatchers[i].reset(mLine).lookingAt()) mListener.onTriggered(mRegexPatterns[i], mLine.toString());
+        }
+        mLine.setLength(0);
+    }
+}
@@ -0,0 +1,172 @@
+package xeffyr.alpine.term.terminal;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * URLs found in the transcript of a {@link TerminalBuffer}, most recently seen last.
+ * <p>
+ * Lines are scanned once when they are scrolled into the transcript, so that listing the URLs does not require a scan
+ * of the whole transcript. The index is bounded to {@link #MAX_URLS}, dropping the least recently seen URL first.
+ */
+public final class TerminalUrlIndex {
+
+    /** The maximum number of URLs kept. */
+    private static final int MAX_URLS = 500;
+
+    /** The maximum length of a line scanned when indexed, since this happens for all output scrolled by. */
+    private static final int MAX_INDEXED_LINE_LENGTH = 2048;
+
+    /** The pattern used to detect URLs. The URL is from the start of group 1 to the end of the match. */
+    static final Pattern URL_PATTERN = compileUrlPattern();
+
+    private final LinkedHashSet<String> mUrls = new LinkedHashSet<>();
+
+    /**
+     * Add the URLs found in a line scrolled into the transcript. Only the start of long lines is scanned, and failures
+     * of the pattern are ignored, since this is done while processing output.
+     */
+    void addUrls(CharSequence text) {
+        if (text.length() > MAX_INDEXED_LINE_LENGTH) text = text.subSequence(0, MAX_INDEXED_LINE_LENGTH);
+        if (!containsSchemeSeparator(text)) return;
+
+        try {
+            Matcher matcher = URL_PATTERN.matcher(text);
+            while (matcher.find()) {
+                add(text.subSequence(matcher.start(1), matcher.end()).toString());
+            }
+        } catch (RuntimeException | StackOverflowError e) {
+            Log.w(EmulatorDebug.LOG_TAG, "Failed to index URLs of a line", e);
+        }
+    }
+
+    /** Check if the text contains "://", without which the pattern cannot match. */
+    private static boolean containsSchemeSeparator(CharSequence text) {
+        for (int i = 0, end = text.length() - 2; i < end; i++) {
+            if (text.charAt(i) == ':' && text.charAt(i + 1) == '/' && text.charAt(i + 2) == '/') return true;
+        }
+        return false;
+    }
+
+    /** Add an URL, or mark it as most recently seen if already present. */
+    void add(String url) {
+        // Re-insert to move to the end of the iteration order:
+        mUrls.remove(url);
+        mUrls.add(url);
+
+        if (mUrls.size() > MAX_URLS) {
+            Iterator<String> eldest = mUrls.iterator();
+            eldest.next();
+            eldest.remove();
+        }
+    }
+
+    void clear() {
+        mUrls.clear();
+    }
+
+    public int size() {
+        return mUrls.size();
+    }
+
+    /** Get the URLs in the index, most recently seen first. */
+    public List<String> getUrls() {
+        List<String> result = new ArrayList<>(mUrls);
+        Collections.reverse(result);
+        return result;
+    }
+
+    /**
+     * Find URLs in the specified text, in order of appearance and without duplicates. Used for text which is not
+     * indexed, like the visible screen.
+     */
+    static LinkedHashSet<String> findUrls(CharSequence text) {
+        LinkedHashSet<String> urls = new LinkedHashSet<>();
+        Matcher matcher = URL_PATTERN.matcher(text);
+        while (matcher.find()) {
+            urls.add(text.subSequence(matcher.start(1), matcher.end()).toString());
+        }
+        return urls;
+    }
+
+    @SuppressWarnings("StringBufferReplaceableByString")
+    private static Pattern compileUrlPattern() {
+        StringBuilder regex_sb = new StringBuilder();
+
+        regex_sb.append("(");                       // Begin first matching group.
+        regex_sb.append("(?:");                     // Begin scheme group.
+        regex_sb.append("dav|");                    // The DAV proto.
+        regex_sb.append("dict|");                   // The DICT proto.
+        regex_sb.append("dns|");                    // The DNS proto.
+        regex_sb.append("file|");                   // File path.
+        regex_sb.append("finger|");                 // The Finger proto.
+        regex_sb.append("ftp(?:s?)|");              // The FTP proto.
+        regex_sb.append("git|");                    // The Git proto.
+        regex_sb.append("gopher|");                 // The Gopher proto.
+        regex_sb.append("http(?:s?)|");             // The HTTP proto.
+        regex_sb.append("imap(?:s?)|");             // The IMAP proto.
+        regex_sb.append("irc(?:[6s]?)|");           // The IRC proto.
+        regex_sb.append("ip[fn]s|");                // The IPFS proto.
+        regex_sb.append("ldap(?:s?)|");             // The LDAP proto.
+        regex_sb.append("pop3(?:s?)|");             // The POP3 proto.
+        regex_sb.append("redis(?:s?)|");            // The Redis proto.
+        regex_sb.append("rsync|");                  // The Rsync proto.
+        regex_sb.append("rtsp(?:[su]?)|");          // The RTSP proto.
+        regex_sb.append("sftp|");                   // The SFTP proto.
+        regex_sb.append("smb(?:s?)|");              // The SAMBA proto.
+        regex_sb.append("smtp(?:s?)|");             // The SMTP proto.
+        regex_sb.append("svn(?:(?:\\+ssh)?)|");     // The Subversion proto.
+        regex_sb.append("tcp|");                    // The TCP proto.
+        regex_sb.append("telnet|");                 // The Telnet proto.
+        regex_sb.append("tftp|");                   // The TFTP proto.
+        regex_sb.append("udp|");                    // The UDP proto.
+        regex_sb.append("vnc|");                    // The VNC proto.
+        regex_sb.append("ws(?:s?)");                // The Websocket proto.
+        regex_sb.append(")://");                    // End scheme group.
+        regex_sb.append(")");                       // End first matching group.
+
+
+        // Begin second matching group.
+        regex_sb.append("(");
+
+        // User name and/or password in format 'user:pass@'. Possessive, as are the labels of host names below, so
+        // that long text which does not match fails fast instead of backtracking.
+        regex_sb.append("(?:[^\\s:@]++(?::[^\\s@]*+)?@)?");
+
+        // Begin host group.
+        regex_sb.append("(?:");
+
+        // IP address (from http://www.regular-expressions.info/examples.html).
+        regex_sb.append("(?:(?:25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?)\\.){3}(?:25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?)|");
+
+        // Host name or domain. The labels after the first one are consumed possessively, so the last one is checked
+        // to be a top level domain of letters with a lookbehind instead of backtracking.
+        regex_sb.append("(?:[a-z\\u00a1-\\uffff0-9]++(?:-++[a-z\\u00a1-\\uffff0-9]++)*+)(?:(?:\\.[a-z\\u00a1-\\uffff0-9]++(?:-++[a-z\\u00a1-\\uffff0-9]++)*+)++(?<=\\.[a-z\\u00a1-\\uffff]{2,63}))?|");
+
+        // Just path. Used in case of 'file://' scheme.
+        regex_sb.append("/(?:[a-z\\u00a1-\\uffff0-9]++(?:-++[a-z\\u00a1-\\uffff0-9]++)*+)");
+
+        // End host group.
+        regex_sb.append(")");
+
+        // Port number.
+        regex_sb.append("(?::\\d{1,5})?");
+
+        // Resource path with optional query string.
+        regex_sb.append("(?:/[a-zA-Z0-9:@%\\-._~!$&()*+,;=?/]*)?");
+
+        // End second matching group.
+        regex_sb.append(")");
+
+        return Pattern.compile(
+            regex_sb.toString(),
+            Pattern.CASE_INSENSITIVE | Pattern.MULTILINE | Pattern.DOTALL);
+    }
+}
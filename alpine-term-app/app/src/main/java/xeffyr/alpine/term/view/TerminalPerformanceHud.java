@@ -0,0 +1,161 @@
+package xeffyr.alpine.term.view;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Typeface;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.view.Choreographer;
+import android.view.Display;
+
+import java.util.Locale;
+
+import xeffyr.alpine.term.terminal.TerminalMetrics;
+import xeffyr.alpine.term.terminal.TerminalSession;
+
+/**
+ * An overlay drawn on top of a {@link TerminalView} showing how well output of the current session is keeping up:
+ * the rate of bytes received, the fill level of the input queue, time spent in the emulator and renderer per frame,
+ * dropped frames and garbage collections.
+ * <p>
+ * While shown, a frame callback runs on every vsync to detect dropped frames.
+ */
+final class TerminalPerformanceHud implements Choreographer.FrameCallback {
+
+    /** How often the displayed values are updated. */
+    private static final long SAMPLE_INTERVAL_MILLIS = 500;
+    private static final int TEXT_COLOR = 0xFFFFFFFF;
+    private static final int BACKGROUND_COLOR = 0xB0000000;
+
+    private final TerminalView mView;
+    private final Paint mPaint = new Paint();
+    private final String[] mLines = new String[6];
+
+    private boolean mEnabled;
+    private long mFrameIntervalNanos;
+    private long mLastVsyncNanos;
+    private int mDroppedFrames;
+
+    /** Accumulated since the last sample. */
+    private int mFramesDrawn;
+    private long mRenderNanos;
+
+    /** Values at the last sample, to compute rates from. */
+    private long mSampleTime;
+    private TerminalSession mSampleSession;
+    private long mSampleBytesReceived;
+    private long mSampleAppendNanos;
+    private long mInitialGcCount;
+
+    TerminalPerformanceHud(TerminalView view) {
+        mView = view;
+        mPaint.setTypeface(Typeface.MONOSPACE);
+        mPaint.setAntiAlias(true);
+        for (int i = 0; i < mLines.length; i++) mLines[i] = "";
+    }
+
+    boolean isEnabled() {
+        return mEnabled;
+    }
+
+    void setEnabled(boolean enabled) {
+        if (mEnabled == enabled) return;
+        mEnabled = enabled;
+
+        if (enabled) {
+            Display display = mView.getDisplay();
+            float refreshRate = (display == null) ? 60.f : display.getRefreshRate();
+            mFrameIntervalNanos = (long) (1_000_000_000L / Math.max(refreshRate, 1.f));
+            mLastVsyncNanos = 0;
+            mDroppedFrames = 0;
+            mInitialGcCount = getGcCount();
+            mSampleSession = null;
+            Choreographer.getInstance().postFrameCallback(this);
+        } else {
+            Choreographer.getInstance().removeFrameCallback(this);
+        }
+    }
+
+    /** Called by the view after rendering the terminal. */
+    void onRendered(long renderNanos) {
+        mFramesDrawn++;
+        mRenderNanos += renderNanos;
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (!mEnabled) return;
+
+        if (mLastVsyncNanos != 0) {
+            long skipped = (frameTimeNanos - mLastVsyncNanos) / mFrameIntervalNanos - 1;
+            if (skipped > 0) mDroppedFrames += skipped;
+        }
+        mLastVsyncNanos = frameTimeNanos;
+
+        long now = SystemClock.uptimeMillis();
+        if (now - mSampleTime >= SAMPLE_INTERVAL_MILLIS) {
+            sample(now);
+            mView.invalidateUnlessHeld();
+        }
+
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    private void sample(long now) {
+        TerminalSession session = mView.mTermSession;
+        if (session == null) return;
+
+        TerminalMetrics metrics = session.getMetrics();
+        long bytesReceived = metrics.getBytesReceived();
+        long appendNanos = metrics.getAppendNanos();
+
+        if (session == mSampleSession) {
+            long elapsedMillis = Math.max(1, now - mSampleTime);
+            int frames = Math.max(1, mFramesDrawn);
+            mLines[0] = String.format(Locale.US, "in:      %.1f KiB/s", (bytesReceived - mSampleBytesReceived) * 1000.0 / elapsedMillis / 1024);
+            mLines[1] = String.format(Locale.US, "queue:   %d/%d", metrics.getQueuedBytes(), metrics.getQueueCapacity());
+            mLines[2] = String.format(Locale.US, "append:  %.2f ms/frame", (appendNanos - mSampleAppendNanos) / 1e6 / frames);
+            mLines[3] = String.format(Locale.US, "render:  %.2f ms/frame", mRenderNanos / 1e6 / frames);
+            mLines[4] = "dropped: " + mDroppedFrames;
+            mLines[5] = "gc:      " + (getGcCount() - mInitialGcCount);
+        }
+
+        mSampleTime = now;
+        mSampleSession = session;
+        mSampleBytesReceived = bytesReceived;
+        mSampleAppendNanos = appendNanos;
+        mFramesDrawn = 0;
+        mRenderNanos = 0;
+    }
+
+    /** Draw the overlay in the top right corner, using the text size of the terminal. */
+    void draw(Canvas canvas, TerminalRenderer renderer) {
+        mPaint.setTextSize(renderer.mTextSize);
+        final float lineHeight = mPaint.getFontSpacing();
+        final float padding = lineHeight / 2;
+
+        float width = 0;
+        for (String line : mLines) width = Math.max(width, mPaint.measureText(line));
+
+        final float right = mView.getWidth();
+        final float left = right - width - 2 * padding;
+        final float bottom = mLines.length * lineHeight + 2 * padding;
+        mPaint.setColor(BACKGROUND_COLOR);
+        canvas.drawRect(left, 0, right, bottom, mPaint);
+
+        mPaint.setColor(TEXT_COLOR);
+        float y = padding - mPaint.ascent();
+        for (String line : mLines) {
+            canvas.drawText(line, left + padding, y, mPaint);
+            y += lineHeight;
+        }
+    }
+
+    private static long getGcCount() {
+        try {
+            return Long.parseLong(Debug.getRuntimeStat("art.gc.gc-count"));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package xeffyr.alpine.term.view;
+
+import android.os.SystemClock;
+import android.view.Choreographer;
+
+/**
+ * Coalesces screen updates of a {@link TerminalView} into at most one frame per vsync.
+ * <p>
+ * Frames may additionally be capped to a configured frame rate. When the terminal output scrolls faster than anyone
+ * could read it, the scheduler enters "fast-scroll mode" and only draws {@link #FAST_SCROLL_FPS} frames per second,
+ * leaving more CPU time to the emulator and saving battery.
+ */
+final class TerminalRenderScheduler implements Choreographer.FrameCallback {
+
+    /** The frame rate used while in fast-scroll mode. */
+    private static final int FAST_SCROLL_FPS = 10;
+    /** Enter fast-scroll mode when more than this number of screens is scrolled per second. */
+    private static final int FAST_SCROLL_ENTER_SCREENS_PER_SECOND = 8;
+    /** Leave fast-scroll mode when less than this number of screens is scrolled per second. */
+    private static final int FAST_SCROLL_EXIT_SCREENS_PER_SECOND = 2;
+    /** The time window over which the scroll rate is measured. */
+    private static final long RATE_WINDOW_MILLIS = 250;
+
+    private final TerminalView mView;
+
+    /** The user configured frame rate cap, or 0 if only limited by vsync. */
+    private int mMaxFps;
+    private boolean mFrameScheduled;
+    private long mLastFrameTimeNanos;
+
+    private boolean mFastScrollMode;
+    private long mRateWindowStart;
+    private int mRowsScrolledInWindow;
+    private int mScreenRows;
+
+    TerminalRenderScheduler(TerminalView view) {
+        mView = view;
+    }
+
+    /** Set the maximum number of frames per second, or 0 to draw on every vsync. */
+    void setMaxFps(int maxFps) {
+        mMaxFps = Math.max(0, maxFps);
+    }
+
+    boolean isFastScrollMode() {
+        return mFastScrollMode;
+    }
+
+    /** Request that the view is updated on the next permitted frame. Does nothing if a frame is already pending. */
+    void scheduleFrame() {
+        if (mFrameScheduled) return;
+        mFrameScheduled = true;
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    /** Drop any pending frame, e.g. when the view is detached from its window. */
+    void cancel() {
+        if (!mFrameScheduled) return;
+        mFrameScheduled = false;
+        Choreographer.getInstance().removeFrameCallback(this);
+    }
+
+    /** Account for rows scrolled by the emulator since the last frame. */
+    void onRowsScrolled(int rows, int screenRows) {
+        mRowsScrolledInWindow += rows;
+        mScreenRows = screenRows;
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        mFrameScheduled = false;
+        updateScrollRate(SystemClock.uptimeMillis());
+
+        if (mLastFrameTimeNanos != 0) {
+            final int fps = mFastScrollMode ? (mMaxFps == 0 ? FAST_SCROLL_FPS : Math.min(mMaxFps, FAST_SCROLL_FPS)) : mMaxFps;
+            if (fps > 0) {
+                final long remainingNanos = mLastFrameTimeNanos + 1_000_000_000L / fps - frameTimeNanos;
+                // Allow half a millisecond of jitter so that e.g. a 60 fps cap does not skip every other vsync.
+                if (remainingNanos > 500_000L) {
+                    mFrameScheduled = true;
+                    Choreographer.getInstance().postFrameCallbackDelayed(this, Math.max(1, remainingNanos / 1_000_000L));
+                    return;
+                }
+            }
+        }
+
+        mLastFrameTimeNanos = frameTimeNanos;
+        mView.updateScreen();
+    }
+
+    private void updateScrollRate(long now) {
+        final long elapsed = now - mRateWindowStart;
+        if (elapsed < RATE_WINDOW_MILLIS) return;
+
+        final long rowsPerSecond = mRowsScrolledInWindow * 1000L / elapsed;
+        if (!mFastScrollMode && rowsPerSecond > (long) mScreenRows * FAST_SCROLL_ENTER_SCREENS_PER_SECOND) {
+            mFastScrollMode = true;
+        } else if (mFastScrollMode && rowsPerSecond < (long) mScreenRows * FAST_SCROLL_EXIT_SCREENS_PER_SECOND) {
+            mFastScrollMode = false;
+        }
+
+        mRateWindowStart = now;
+        mRowsScrolledInWindow = 0;
+    }
+}
@@ -3,9 +3,12 @@ package xeffyr.alpine.term.view;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.PorterDuff;
+import android.graphics.Rect;
 import android.graphics.Typeface;
 
 import xeffyr.alpine.term.terminal.TerminalBuffer;
+import xeffyr.alpine.term.terminal.TerminalColors;
+import xeffyr.alpine.term.terminal.TerminalEchoPredictor;
 import xeffyr.alpine.term.terminal.TerminalEmulator;
 import xeffyr.alpine.term.terminal.TerminalRow;
 import xeffyr.alpine.term.terminal.TextStyle;
@@ -21,6 +24,8 @@ public final class TerminalRenderer {
     final int mTextSize;
     final Typeface mTypeface;
     private final Paint mTextPaint = new Paint();
+    /** Paint for {@link #fillCellArea(Canvas, int, int, int, int, int)}, kept apart so as not to disturb text runs. */
+    private final Paint mFillPaint = new Paint();
 
     /** The width of a single mono spaced character obtained by {@link Paint#measureText(String)} on a single 'X'. */
     final float mFontWidth;
@@ -32,6 +37,28 @@ public final class TerminalRenderer {
     final int mFontLineSpacingAndAscent;
 
     private final float[] asciiMeasures = new float[127];
+    /** Buffer for the code point of a prediction in {@link #renderPredictions(TerminalEmulator, TerminalEchoPredictor, Canvas, int)}. */
+    private final char[] mPredictionChars = new char[2];
+
+    /** The clip bounds of the canvas being rendered to, used to skip rows which need no redraw. */
+    private final Rect mClipBounds = new Rect();
+
+    /** The number of entries in the direct mapped cache of colors resolved from text styles. Must be a power of two. */
+    private static final int STYLE_CACHE_SIZE = 256;
+    /** The text style of each cache entry. */
+    private final long[] mStyleCacheKeys = new long[STYLE_CACHE_SIZE];
+    /** The {@link #mStyleCacheEpoch} of each cache entry, which is valid only if it matches the current epoch. */
+    private final int[] mStyleCacheEpochs = new int[STYLE_CACHE_SIZE];
+    /** Resolved ARGB colors and effect bits of each cache entry. */
+    private final int[] mStyleCacheForeColors = new int[STYLE_CACHE_SIZE];
+    private final int[] mStyleCacheBackColors = new int[STYLE_CACHE_SIZE];
+    private final int[] mStyleCacheEffects = new int[STYLE_CACHE_SIZE];
+    /** Incremented to invalidate all cache entries. */
+    private int mStyleCacheEpoch = 1;
+    /** What the cached colors were resolved against. */
+    private TerminalColors mStyleCacheColors;
+    private int mStyleCacheGeneration;
+    private boolean mStyleCacheReverseVideo;
 
     public TerminalRenderer(int textSize, Typeface typeface) {
         mTextSize = textSize;
@@ -66,13 +93,29 @@ public final class TerminalRenderer {
         final int[] palette = mEmulator.mColors.mCurrentColors;
         final int cursorShape = mEmulator.getCursorStyle();
 
+        final TerminalColors colors = mEmulator.mColors;
+        if (colors != mStyleCacheColors || colors.getGeneration() != mStyleCacheGeneration || reverseVideo != mStyleCacheReverseVideo) {
+            // Another session or a changed palette - forget all resolved colors.
+            mStyleCacheEpoch++;
+            mStyleCacheColors = colors;
+            mStyleCacheGeneration = colors.getGeneration();
+            mStyleCacheReverseVideo = reverseVideo;
+        }
+
         if (reverseVideo)
             canvas.drawColor(palette[TextStyle.COLOR_INDEX_FOREGROUND], PorterDuff.Mode.SRC);
 
+        canvas.getClipBounds(mClipBounds);
+        final int clipTop = mClipBounds.top;
+        final int clipBottom = mClipBounds.bottom;
+
         float heightOffset = mFontLineSpacingAndAscent;
         for (int row = topRow; row < endRow; row++) {
             heightOffset += mFontLineSpacing;
 
+            // Skip rows entirely outside of the area being redrawn:
+            if (heightOffset <= clipTop || heightOffset - mFontLineSpacing >= clipBottom) continue;
+
             final int cursorX = (row == cursorRow && cursorVisible) ? cursorCol : -1;
             int selx1 = -1, selx2 = -1;
             if (row >= selectionY1 && row <= selectionY2) {
@@ -145,17 +188,69 @@ public final class TerminalRenderer {
         }
     }
 
-    private void drawTextRun(Canvas canvas, char[] text, int[] palette, float y, int startColumn, int runWidthColumns,
-                             int startCharIndex, int runWidthChars, float mes, int cursor, int cursorStyle,
-                             long textStyle, boolean reverseVideo) {
+    /**
+     * Draw the characters predicted to be echoed over their cells, underlined to tell them from output of the process,
+     * followed by the cursor.
+     */
+    void renderPredictions(TerminalEmulator emulator, TerminalEchoPredictor predictor, Canvas canvas, int topRow) {
+        final int count = predictor.getShownCount();
+        if (count == 0) return;
+
+        final int[] palette = emulator.mColors.mCurrentColors;
+        final boolean reverseVideo = emulator.isReverseVideo();
+        final int foreColor = palette[reverseVideo ? TextStyle.COLOR_INDEX_BACKGROUND : TextStyle.COLOR_INDEX_FOREGROUND];
+        final int backColor = palette[reverseVideo ? TextStyle.COLOR_INDEX_FOREGROUND : TextStyle.COLOR_INDEX_BACKGROUND];
+        mTextPaint.setFakeBoldText(false);
+        mTextPaint.setUnderlineText(true);
+        mTextPaint.setTextSkewX(0.f);
+        mTextPaint.setStrikeThruText(false);
+        mTextPaint.setColor(foreColor);
+
+        for (int i = 0; i < count; i++) {
+            final int row = predictor.getRow(i) - topRow;
+            if (row < 0 || row >= emulator.mRows) continue;
+            final int column = predictor.getColumn(i);
+            fillCellArea(canvas, backColor, column, row, column + 1, row + 1);
+            final int chars = Character.toChars(predictor.getCodePoint(i), mPredictionChars, 0);
+            canvas.drawText(mPredictionChars, 0, chars, column * mFontWidth, (row + 1) * mFontLineSpacing, mTextPaint);
+        }
+
+        final int cursorRow = predictor.getRow(count - 1) - topRow;
+        if (emulator.isShowingCursor() && cursorRow >= 0 && cursorRow < emulator.mRows) {
+            final float left = (predictor.getColumn(count - 1) + 1) * mFontWidth;
+            final float bottom = (cursorRow + 1) * mFontLineSpacing + mFontLineSpacingAndAscent;
+            float top = bottom - mFontLineSpacing;
+            float right = left + mFontWidth;
+            final int cursorStyle = emulator.getCursorStyle();
+            if (cursorStyle == TerminalEmulator.CURSOR_STYLE_UNDERLINE) top = bottom - mFontLineSpacing / 4.f;
+            else if (cursorStyle == TerminalEmulator.CURSOR_STYLE_BAR) right = left + mFontWidth / 4.f;
+            mFillPaint.setColor(palette[TextStyle.COLOR_INDEX_CURSOR]);
+            canvas.drawRect(left, top, right, bottom, mFillPaint);
+        }
+    }
+
+    /**
+     * Fill a block of cells with a color, e.g. a translucent one to highlight text.
+     *
+     * @param left   the first column.
+     * @param top    the first row, relative to the top row of the view.
+     * @param right  one column after the last column.
+     * @param bottom one row after the last row, relative to the top row of the view.
+     */
+    void fillCellArea(Canvas canvas, int color, int left, int top, int right, int bottom) {
+        mFillPaint.setColor(color);
+        canvas.drawRect(left * mFontWidth, (top + 1) * mFontLineSpacing + mFontAscent,
+            right * mFontWidth, (bottom + 1) * mFontLineSpacing + mFontAscent, mFillPaint);
+    }
+
+    /** Find the cache entry with colors and effect for a text style, resolving them if not already cached. */
+    private int resolveStyle(long textStyle, int[] palette, boolean reverseVideo) {
+        final int index = (int) (textStyle ^ (textStyle >>> 16) ^ (textStyle >>> 40)) & (STYLE_CACHE_SIZE - 1);
+        if (mStyleCacheEpochs[index] == mStyleCacheEpoch && mStyleCacheKeys[index] == textStyle) return index;
+
         int foreColor = TextStyle.decodeForeColor(textStyle);
         final int effect = TextStyle.decodeEffect(textStyle);
         int backColor = TextStyle.decodeBackColor(textStyle);
-        final boolean bold = (effect & (TextStyle.CHARACTER_ATTRIBUTE_BOLD | TextStyle.CHARACTER_ATTRIBUTE_BLINK)) != 0;
-        final boolean underline = (effect & TextStyle.CHARACTER_ATTRIBUTE_UNDERLINE) != 0;
-        final boolean italic = (effect & TextStyle.CHARACTER_ATTRIBUTE_ITALIC) != 0;
-        final boolean strikeThrough = (effect & TextStyle.CHARACTER_ATTRIBUTE_STRIKETHROUGH) != 0;
-        final boolean dim = (effect & TextStyle.CHARACTER_ATTRIBUTE_DIM) != 0;
 
         if ((foreColor & 0xff000000) != 0xff000000) {
             foreColor = palette[foreColor];
@@ -173,6 +268,38 @@ public final class TerminalRenderer {
             backColor = tmp;
         }
 
+        if ((effect & TextStyle.CHARACTER_ATTRIBUTE_DIM) != 0) {
+            int red = (0xFF & (foreColor >> 16));
+            int green = (0xFF & (foreColor >> 8));
+            int blue = (0xFF & foreColor);
+            // Dim color handling used by libvte which in turn took it from xterm
+            // (https://bug735245.bugzilla-attachments.gnome.org/attachment.cgi?id=284267):
+            red = red * 2 / 3;
+            green = green * 2 / 3;
+            blue = blue * 2 / 3;
+            foreColor = 0xFF000000 + (red << 16) + (green << 8) + blue;
+        }
+
+        mStyleCacheKeys[index] = textStyle;
+        mStyleCacheEpochs[index] = mStyleCacheEpoch;
+        mStyleCacheForeColors[index] = foreColor;
+        mStyleCacheBackColors[index] = backColor;
+        mStyleCacheEffects[index] = effect;
+        return index;
+    }
+
+    private void drawTextRun(Canvas canvas, char[] text, int[] palette, float y, int startColumn, int runWidthColumns,
+                             int startCharIndex, int runWidthChars, float mes, int cursor, int cursorStyle,
+                             long textStyle, boolean reverseVideo) {
+        final int styleIndex = resolveStyle(textStyle, palette, reverseVideo);
+        final int foreColor = mStyleCacheForeColors[styleIndex];
+        final int backColor = mStyleCacheBackColors[styleIndex];
+        final int effect = mStyleCacheEffects[styleIndex];
+        final boolean bold = (effect & (TextStyle.CHARACTER_ATTRIBUTE_BOLD | TextStyle.CHARACTER_ATTRIBUTE_BLINK)) != 0;
+        final boolean underline = (effect & TextStyle.CHARACTER_ATTRIBUTE_UNDERLINE) != 0;
+        final boolean italic = (effect & TextStyle.CHARACTER_ATTRIBUTE_ITALIC) != 0;
+        final boolean strikeThrough = (effect & TextStyle.CHARACTER_ATTRIBUTE_STRIKETHROUGH) != 0;
+
         float left = startColumn * mFontWidth;
         float right = left + runWidthColumns * mFontWidth;
 
@@ -201,18 +328,6 @@ public final class TerminalRenderer {
         }
 
         if ((effect & TextStyle.CHARACTER_ATTRIBUTE_INVISIBLE) == 0) {
-            if (dim) {
-                int red = (0xFF & (foreColor >> 16));
-                int green = (0xFF & (foreColor >> 8));
-                int blue = (0xFF & foreColor);
-                // Dim color handling used by libvte which in turn took it from xterm
-                // (https://bug735245.bugzilla-attachments.gnome.org/attachment.cgi?id=284267):
-                red = red * 2 / 3;
-                green = green * 2 / 3;
-                blue = blue * 2 / 3;
-                foreColor = 0xFF000000 + (red << 16) + (green << 8) + blue;
-            }
-
             mTextPaint.setFakeBoldText(bold);
             mTextPaint.setUnderlineText(underline);
             mTextPaint.setTextSkewX(italic ? -0.35f : 0.f);
@@ -28,11 +28,15 @@ import android.view.inputmethod.EditorInfo;
 import android.view.inputmethod.InputConnection;
 import android.widget.Scroller;
 
+import java.util.List;
+
 import xeffyr.alpine.term.R;
 import xeffyr.alpine.term.terminal.EmulatorDebug;
 import xeffyr.alpine.term.terminal.KeyHandler;
 import xeffyr.alpine.term.terminal.TerminalBuffer;
+import xeffyr.alpine.term.terminal.TerminalEchoPredictor;
 import xeffyr.alpine.term.terminal.TerminalEmulator;
+import xeffyr.alpine.term.terminal.TerminalSearchMatch;
 import xeffyr.alpine.term.terminal.TerminalSession;
 
 /** View displaying and interacting with a {@link TerminalSession}. */
@@ -41,6 +45,11 @@ public final class TerminalView extends View {
     /** Log view key and IME events. */
     private static final boolean LOG_KEY_EVENTS = false;
 
+    /** The maximum number of search matches kept, the most recent ones. */
+    private static final int SEARCH_MAX_MATCHES = 10000;
+    private static final int SEARCH_MATCH_COLOR = 0x60FFFF00;
+    private static final int SEARCH_CURRENT_MATCH_COLOR = 0xA0FF8000;
+
     /** The currently displayed terminal session, whose emulator is {@link #mEmulator}. */
     TerminalSession mTermSession;
     /** Our terminal emulator whose session is {@link #mTermSession}. */
@@ -59,6 +68,15 @@ public final class TerminalView extends View {
     private ActionMode mActionMode;
     private BitmapDrawable mLeftSelectionHandle, mRightSelectionHandle;
 
+    /** Matches of the last {@link #search(String, boolean, boolean)} in order, or null if none. */
+    private List<TerminalSearchMatch> mSearchMatches;
+    /** The buffer searched, as the matches mean nothing on the other one of the main and alternate buffers. */
+    private TerminalBuffer mSearchBuffer;
+    /** The number of rows scrolled since the search, by which the rows of the matches have moved up. */
+    private int mSearchRowShift;
+    /** The index of the current match in {@link #mSearchMatches}. */
+    private int mSearchMatchIndex;
+
     float mScaleFactor = 1.f;
     final GestureAndScaleRecognizer mGestureRecognizer;
 
@@ -66,9 +84,29 @@ public final class TerminalView extends View {
     private int mMouseScrollStartX = -1, mMouseScrollStartY = -1;
     /** Keep track of the time when a touch event leading to sending mouse scroll events started. */
     private long mMouseStartDownTime = -1;
+    /** The cell of the last mouse event sent, so that motion within a cell is not reported. */
+    private int mLastMouseX = -1, mLastMouseY = -1;
+
+    /** Rows scrolled by the mouse wheel or touch not yet sent to the terminal, see {@link #sendPendingScroll()}. */
+    private int mPendingScrollRows;
+    private boolean mPendingScrollPosted;
+    private final Runnable mSendPendingScroll = this::sendPendingScroll;
 
     final Scroller mScroller;
 
+    /** Coalesces screen updates from {@link #onScreenUpdated()} into frames. */
+    final TerminalRenderScheduler mRenderScheduler = new TerminalRenderScheduler(this);
+    /** Overlay with performance statistics, only drawn when enabled. */
+    private final TerminalPerformanceHud mPerformanceHud = new TerminalPerformanceHud(this);
+
+    /** If a redraw was held back while the screen update is held, see {@link #invalidateUnlessHeld()}. */
+    private boolean mRedrawHeld;
+
+    /** The screen cell where the cursor was last drawn, or -1 if not drawn. */
+    private int mDrawnCursorCol = -1, mDrawnCursorRow = -1;
+    /** The style of the cursor when last drawn, which may change without damaging the screen. */
+    private int mDrawnCursorStyle;
+
     /** What was left in from scrolling movement. */
     float mScrollRemainder;
 
@@ -215,6 +253,9 @@ public final class TerminalView extends View {
     public boolean attachSession(TerminalSession session) {
         if (session == mTermSession) return false;
         mTopRow = 0;
+        mSearchMatches = null;
+        mPendingScrollRows = 0;
+        mLastMouseX = mLastMouseY = -1;
 
         mTermSession = session;
         mEmulator = null;
@@ -280,6 +321,9 @@ public final class TerminalView extends View {
             }
 
             void sendTextToTerminal(CharSequence text) {
+                if (mTermSession == null) return;
+                mTermSession.getInputLatency().onInputEvent();
+                sendPendingScroll();
                 final int textLengthInChars = text.length();
                 for (int i = 0; i < textLengthInChars; i++) {
                     char firstChar = text.charAt(i);
@@ -326,8 +370,10 @@ public final class TerminalView extends View {
                         }
                     }
 
-                    inputCodePoint(codePoint, ctrlHeld, false);
+                    appendCodePoint(codePoint, ctrlHeld, false);
                 }
+                // Write all the text at once, instead of waking up the writer thread for each character:
+                mTermSession.flushInput();
             }
 
         };
@@ -348,8 +394,42 @@ public final class TerminalView extends View {
         return mEmulator == null ? 1 : mEmulator.getScreen().getActiveRows() + mTopRow - mEmulator.mRows;
     }
 
+    /**
+     * Called when the emulator screen has changed. The view is not updated immediately, instead an update is scheduled
+     * for the next frame so that many updates arriving within a single frame only cause one redraw.
+     */
     public void onScreenUpdated() {
         if (mEmulator == null) return;
+        mRenderScheduler.scheduleFrame();
+    }
+
+    /**
+     * Set the maximum number of frames per second drawn for terminal output.
+     *
+     * @param maxFps the frame rate cap, or 0 to draw on every display refresh.
+     */
+    public void setMaxFrameRate(int maxFps) {
+        mRenderScheduler.setMaxFps(maxFps);
+    }
+
+    /** Show or hide an overlay with statistics about terminal output and rendering performance. */
+    public void setPerformanceHudEnabled(boolean enabled) {
+        mPerformanceHud.setEnabled(enabled);
+        invalidate();
+    }
+
+    public boolean isPerformanceHudEnabled() {
+        return mPerformanceHud.isEnabled();
+    }
+
+    /** Apply pending changes of the emulator screen to the view. Called by {@link TerminalRenderScheduler}. */
+    void updateScreen() {
+        // Do not draw a half updated screen, the session notifies when the update is done or has timed out:
+        if (mEmulator == null || mTermSession.isScreenUpdateHeld()) return;
+        mTermSession.onScreenDrawn();
+
+        mRenderScheduler.onRowsScrolled(mEmulator.getScrollCounter(), mEmulator.mRows);
+        final int oldTopRow = mTopRow;
 
         int rowsInHistory = mEmulator.getScreen().getActiveTranscriptRows();
         if (mTopRow < -rowsInHistory) mTopRow = -rowsInHistory;
@@ -381,9 +461,44 @@ public final class TerminalView extends View {
             mTopRow = 0;
         }
 
+        // Matches are not valid on the other buffer, e.g. a full screen program started after the search:
+        if (mSearchMatches != null && mEmulator.getScreen() != mSearchBuffer) mSearchMatches = null;
+        if (mSearchMatches != null) mSearchRowShift += mEmulator.getScrollCounter();
         mEmulator.clearScrollCounter();
 
-        invalidate();
+        invalidateIfChanged(mTopRow != oldTopRow || mRedrawHeld);
+        mRedrawHeld = false;
+    }
+
+    /**
+     * Redraw the view unless the process is updating the screen with synchronized output, see
+     * {@link TerminalSession#isScreenUpdateHeld()}, in which case it is redrawn with the next screen update.
+     */
+    void invalidateUnlessHeld() {
+        if (mTermSession != null && mTermSession.isScreenUpdateHeld()) {
+            mRedrawHeld = true;
+        } else {
+            invalidate();
+        }
+    }
+
+    /**
+     * Redraw the view if anything shown has changed since it was last drawn: screen cells, the cursor position or style,
+     * or what part of the screen and transcript is shown. The whole view is invalidated, since with hardware acceleration
+     * the whole view is redrawn even if only a part of it is invalidated.
+     */
+    private void invalidateIfChanged(boolean scrolled) {
+        final TerminalBuffer screen = mEmulator.getScreen();
+        final boolean cursorShown = mEmulator.isShowingCursor();
+        final int cursorCol = cursorShown ? mEmulator.getCursorCol() : -1;
+        final int cursorRow = cursorShown ? mEmulator.getCursorRow() : -1;
+
+        if (scrolled || screen.isDamaged() || cursorCol != mDrawnCursorCol || cursorRow != mDrawnCursorRow
+            || (cursorShown && mEmulator.getCursorStyle() != mDrawnCursorStyle) || mIsSelectingText) {
+            invalidate();
+        }
+
+        screen.clearDamage();
     }
 
     /**
@@ -417,36 +532,80 @@ public final class TerminalView extends View {
         int x = (int) (e.getX() / mRenderer.mFontWidth) + 1;
         int y = (int) ((e.getY() - mRenderer.mFontLineSpacingAndAscent) / mRenderer.mFontLineSpacing) + 1;
         if (pressed && (button == TerminalEmulator.MOUSE_WHEELDOWN_BUTTON || button == TerminalEmulator.MOUSE_WHEELUP_BUTTON)) {
-            if (mMouseStartDownTime == e.getDownTime()) {
-                x = mMouseScrollStartX;
-                y = mMouseScrollStartY;
-            } else {
-                mMouseStartDownTime = e.getDownTime();
-                mMouseScrollStartX = x;
-                mMouseScrollStartY = y;
-            }
+            updateMouseScrollStart(e);
+            x = mMouseScrollStartX;
+            y = mMouseScrollStartY;
+        } else {
+            // Only report motion into another cell, as the terminal cannot tell the difference:
+            if (button == TerminalEmulator.MOUSE_LEFT_BUTTON_MOVED && x == mLastMouseX && y == mLastMouseY) return;
+            sendPendingScroll();
         }
+        mLastMouseX = x;
+        mLastMouseY = y;
         mEmulator.sendMouseEvent(button, x, y, pressed);
     }
 
+    /** Remember the cell where the gesture of a scroll event started, which is where the mouse wheel is reported. */
+    private void updateMouseScrollStart(MotionEvent e) {
+        if (mMouseStartDownTime != e.getDownTime()) {
+            mMouseStartDownTime = e.getDownTime();
+            mMouseScrollStartX = (int) (e.getX() / mRenderer.mFontWidth) + 1;
+            mMouseScrollStartY = (int) ((e.getY() - mRenderer.mFontLineSpacingAndAscent) / mRenderer.mFontLineSpacing) + 1;
+        }
+    }
+
     /** Perform a scroll, either from dragging the screen or by scrolling a mouse wheel. */
     void doScroll(MotionEvent event, int rowsDown) {
-        boolean up = rowsDown < 0;
-        int amount = Math.abs(rowsDown);
-        for (int i = 0; i < amount; i++) {
-            if (mEmulator.isMouseTrackingActive()) {
-                sendMouseEventCode(event, up ? TerminalEmulator.MOUSE_WHEELUP_BUTTON : TerminalEmulator.MOUSE_WHEELDOWN_BUTTON, true);
-            } else if (mEmulator.isAlternateBufferActive()) {
-                // Send up and down key events for scrolling, which is what some terminals do to make scroll work in
-                // e.g. less, which shifts to the alt screen without mouse handling.
-                handleKeyCode(up ? KeyEvent.KEYCODE_DPAD_UP : KeyEvent.KEYCODE_DPAD_DOWN, 0);
-            } else {
-                mTopRow = Math.min(0, Math.max(-(mEmulator.getScreen().getActiveTranscriptRows()), mTopRow + (up ? -1 : 1)));
-                if (!awakenScrollBars()) invalidate();
+        if (rowsDown == 0) return;
+        if (mEmulator.isMouseTrackingActive() || mEmulator.isAlternateBufferActive()) {
+            // Rows scrolled by the program are sent once per frame, instead of an escape sequence per event and row.
+            // The position is taken now, since the event may be recycled.
+            if (mEmulator.isMouseTrackingActive()) updateMouseScrollStart(event);
+            mPendingScrollRows += rowsDown;
+            if (!mPendingScrollPosted) {
+                mPendingScrollPosted = true;
+                postOnAnimation(mSendPendingScroll);
+            }
+        } else {
+            mTopRow = Math.min(0, Math.max(-(mEmulator.getScreen().getActiveTranscriptRows()), mTopRow + rowsDown));
+            if (mTermSession.isScreenUpdateHeld()) {
+                mRedrawHeld = true;
+            } else if (!awakenScrollBars()) {
+                invalidate();
             }
         }
     }
 
+    /**
+     * Send the rows scrolled since the last frame to the terminal in one write, as mouse wheel events or, in the
+     * alternate buffer without mouse tracking, as arrow keys. Also called before other input, to keep its order.
+     */
+    void sendPendingScroll() {
+        if (mPendingScrollPosted) {
+            mPendingScrollPosted = false;
+            removeCallbacks(mSendPendingScroll);
+        }
+        final int rows = mPendingScrollRows;
+        if (rows == 0 || mEmulator == null) return;
+        mPendingScrollRows = 0;
+
+        final boolean up = rows < 0;
+        final int amount = Math.abs(rows);
+        if (mEmulator.isMouseTrackingActive()) {
+            mLastMouseX = mMouseScrollStartX;
+            mLastMouseY = mMouseScrollStartY;
+            mEmulator.sendMouseEvents(up ? TerminalEmulator.MOUSE_WHEELUP_BUTTON : TerminalEmulator.MOUSE_WHEELDOWN_BUTTON,
+                mMouseScrollStartX, mMouseScrollStartY, true, amount);
+        } else if (mEmulator.isAlternateBufferActive()) {
+            // Send up and down key events for scrolling, which is what some terminals do to make scroll work in
+            // e.g. less, which shifts to the alt screen without mouse handling.
+            byte[] code = KeyHandler.getCodeBytes(up ? KeyEvent.KEYCODE_DPAD_UP : KeyEvent.KEYCODE_DPAD_DOWN, 0,
+                mEmulator.isCursorKeysApplicationMode(), mEmulator.isKeypadApplicationMode());
+            for (int i = 0; i < amount; i++) mTermSession.appendInput(code, 0, code.length);
+            mTermSession.flushInput();
+        }
+    }
+
     /** Overriding {@link View#onGenericMotionEvent(MotionEvent)}. */
     @Override
     public boolean onGenericMotionEvent(MotionEvent event) {
@@ -573,9 +732,10 @@ public final class TerminalView extends View {
         if (LOG_KEY_EVENTS)
             Log.i(EmulatorDebug.LOG_TAG, "onKeyDown(keyCode=" + keyCode + ", isSystem()=" + event.isSystem() + ", event=" + event + ")");
         if (mEmulator == null) return true;
+        mTermSession.getInputLatency().onInputEvent();
 
         if (mClient.onKeyDown(keyCode, event, mTermSession)) {
-            invalidate();
+            invalidateUnlessHeld();
             return true;
         } else if (event.isSystem() && (!mClient.shouldBackButtonBeMappedToEscape() || keyCode != KeyEvent.KEYCODE_BACK)) {
             return super.onKeyDown(keyCode, event);
@@ -630,19 +790,28 @@ public final class TerminalView extends View {
             inputCodePoint(result, controlDownFromEvent, leftAltDownFromEvent);
         }
 
-        if (mCombiningAccent != oldCombiningAccent) invalidate();
+        if (mCombiningAccent != oldCombiningAccent) invalidateUnlessHeld();
 
         return true;
     }
 
     void inputCodePoint(int codePoint, boolean controlDownFromEvent, boolean leftAltDownFromEvent) {
+        if (mTermSession == null) return;
+        sendPendingScroll();
+        appendCodePoint(codePoint, controlDownFromEvent, leftAltDownFromEvent);
+        mTermSession.flushInput();
+    }
+
+    /**
+     * Apply the modifiers to the code point and add it to the input of the session, which is written by
+     * {@link TerminalSession#flushInput()}.
+     */
+    private void appendCodePoint(int codePoint, boolean controlDownFromEvent, boolean leftAltDownFromEvent) {
         if (LOG_KEY_EVENTS) {
-            Log.i(EmulatorDebug.LOG_TAG, "inputCodePoint(codePoint=" + codePoint + ", controlDownFromEvent=" + controlDownFromEvent + ", leftAltDownFromEvent="
+            Log.i(EmulatorDebug.LOG_TAG, "appendCodePoint(codePoint=" + codePoint + ", controlDownFromEvent=" + controlDownFromEvent + ", leftAltDownFromEvent="
                 + leftAltDownFromEvent + ")");
         }
 
-        if (mTermSession == null) return;
-
         final boolean controlDown = controlDownFromEvent || mClient.readControlKey();
         final boolean altDown = leftAltDownFromEvent || mClient.readAltKey();
 
@@ -689,16 +858,17 @@ public final class TerminalView extends View {
             }
 
             // If left alt, send escape before the code point to make e.g. Alt+B and Alt+F work in readline:
-            mTermSession.writeCodePoint(altDown, codePoint);
+            mTermSession.appendCodePoint(altDown, codePoint);
         }
     }
 
     /** Input the specified keyCode if applicable and return if the input was consumed. */
     public boolean handleKeyCode(int keyCode, int keyMod) {
         TerminalEmulator term = mTermSession.getEmulator();
-        String code = KeyHandler.getCode(keyCode, keyMod, term.isCursorKeysApplicationMode(), term.isKeypadApplicationMode());
+        byte[] code = KeyHandler.getCodeBytes(keyCode, keyMod, term.isCursorKeysApplicationMode(), term.isKeypadApplicationMode());
         if (code == null) return false;
-        mTermSession.write(code);
+        sendPendingScroll();
+        mTermSession.write(code, 0, code.length);
         return true;
     }
 
@@ -716,7 +886,7 @@ public final class TerminalView extends View {
         if (mEmulator == null) return true;
 
         if (mClient.onKeyUp(keyCode, event)) {
-            invalidate();
+            invalidateUnlessHeld();
             return true;
         } else if (event.isSystem()) {
             // Let system key events through.
@@ -735,6 +905,13 @@ public final class TerminalView extends View {
         updateSize();
     }
 
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        mRenderScheduler.cancel();
+        mPerformanceHud.setEnabled(false);
+    }
+
     /** Check if the terminal size in rows and columns should be updated. */
     public void updateSize() {
         int viewWidth = getWidth();
@@ -750,6 +927,8 @@ public final class TerminalView extends View {
             mEmulator = mTermSession.getEmulator();
 
             mTopRow = 0;
+            // Text may have been reflowed, so positions of matches are no longer valid:
+            mSearchMatches = null;
             scrollTo(0, 0);
             invalidate();
         }
@@ -760,7 +939,23 @@ public final class TerminalView extends View {
         if (mEmulator == null) {
             canvas.drawColor(0XFF000000);
         } else {
+            final boolean showHud = mPerformanceHud.isEnabled();
+            final long renderStart = showHud ? System.nanoTime() : 0;
             mRenderer.render(mEmulator, canvas, mTopRow, mSelY1, mSelY2, mSelX1, mSelX2);
+            if (showHud) mPerformanceHud.onRendered(System.nanoTime() - renderStart);
+            TerminalEchoPredictor predictor = mTermSession.getEchoPredictor();
+            if (predictor != null) mRenderer.renderPredictions(mEmulator, predictor, canvas, mTopRow);
+            mTermSession.getInputLatency().onDrawn();
+
+            if (mSearchMatches != null && mEmulator.getScreen() == mSearchBuffer) drawSearchMatches(canvas);
+
+            if (mEmulator.isShowingCursor()) {
+                mDrawnCursorCol = mEmulator.getCursorCol();
+                mDrawnCursorRow = mEmulator.getCursorRow();
+                mDrawnCursorStyle = mEmulator.getCursorStyle();
+            } else {
+                mDrawnCursorCol = mDrawnCursorRow = -1;
+            }
 
             if (mIsSelectingText) {
                 final int gripHandleWidth = mLeftSelectionHandle.getIntrinsicWidth();
@@ -776,7 +971,127 @@ public final class TerminalView extends View {
                 mRightSelectionHandle.setBounds(left, top, left + gripHandleWidth, top + mRightSelectionHandle.getIntrinsicHeight());
                 mRightSelectionHandle.draw(canvas);
             }
+
+            if (showHud) mPerformanceHud.draw(canvas, mRenderer);
+        }
+    }
+
+    private void drawSearchMatches(Canvas canvas) {
+        final int rows = mEmulator.mRows;
+        for (int i = 0; i < mSearchMatches.size(); i++) {
+            TerminalSearchMatch match = mSearchMatches.get(i);
+            final int startRow = match.mStartRow - mSearchRowShift - mTopRow;
+            final int endRow = match.mEndRow - mSearchRowShift - mTopRow;
+            if (endRow < 0) continue;
+            if (startRow >= rows) break;
+
+            final int color = (i == mSearchMatchIndex) ? SEARCH_CURRENT_MATCH_COLOR : SEARCH_MATCH_COLOR;
+            for (int row = Math.max(0, startRow); row <= Math.min(endRow, rows - 1); row++) {
+                int left = (row == startRow) ? match.mStartColumn : 0;
+                int right = (row == endRow) ? match.mEndColumn + 1 : mEmulator.mColumns;
+                mRenderer.fillCellArea(canvas, color, left, row, right, row + 1);
+            }
+        }
+    }
+
+    /**
+     * Search the transcript and screen of the current session, highlight the matches and scroll to the most recent one.
+     *
+     * @return the number of matches found.
+     * @throws java.util.regex.PatternSyntaxException if the query is an invalid regular expression.
+     */
+    public int search(String query, boolean regex, boolean caseSensitive) {
+        clearSearch();
+        if (mEmulator == null || query.isEmpty()) return 0;
+
+        List<TerminalSearchMatch> matches = mEmulator.getScreen().search(query, regex, caseSensitive, SEARCH_MAX_MATCHES);
+        if (matches.isEmpty()) return 0;
+
+        mSearchMatches = matches;
+        mSearchBuffer = mEmulator.getScreen();
+        mSearchRowShift = 0;
+        mSearchMatchIndex = matches.size() - 1;
+        scrollToSearchMatch();
+        return matches.size();
+    }
+
+    /**
+     * Move to the previous or next match of the last search.
+     *
+     * @param older if moving up towards older output.
+     * @return false if there is no match in that direction.
+     */
+    public boolean findSearchMatch(boolean older) {
+        if (mSearchMatches == null) return false;
+
+        final int index = mSearchMatchIndex + (older ? -1 : 1);
+        if (index < 0 || index >= mSearchMatches.size()) return false;
+        // Matches may have been scrolled out of the transcript by new output:
+        if (mSearchMatches.get(index).mStartRow - mSearchRowShift < -mEmulator.getScreen().getActiveTranscriptRows()) return false;
+
+        mSearchMatchIndex = index;
+        scrollToSearchMatch();
+        return true;
+    }
+
+    public boolean hasSearchMatches() {
+        return mSearchMatches != null;
+    }
+
+    /** Remove highlighting of the matches of the last search. */
+    public void clearSearch() {
+        if (mSearchMatches == null) return;
+        mSearchMatches = null;
+        invalidate();
+    }
+
+    private void scrollToSearchMatch() {
+        final TerminalSearchMatch match = mSearchMatches.get(mSearchMatchIndex);
+        final int startRow = match.mStartRow - mSearchRowShift;
+        final int endRow = match.mEndRow - mSearchRowShift;
+        if (startRow < mTopRow || endRow >= mTopRow + mEmulator.mRows) {
+            mTopRow = Math.min(0, Math.max(-mEmulator.getScreen().getActiveTranscriptRows(), startRow - mEmulator.mRows / 2));
+            awakenScrollBars();
+        }
+        invalidate();
+    }
+
+    /**
+     * Scroll so that the prompt of the previous or next command is at the top, as marked by the shell through shell
+     * integration escape sequences.
+     *
+     * @return false if there is no such command.
+     */
+    public boolean scrollToCommand(boolean older) {
+        if (mEmulator == null) return false;
+        final int promptRow = mEmulator.getScreen().findShellMark(mTopRow, TerminalBuffer.MARK_PROMPT, older);
+        if (promptRow == TerminalBuffer.NO_ROW) return false;
+
+        final int newTopRow = Math.min(0, promptRow);
+        if (newTopRow == mTopRow) return false;
+        mTopRow = newTopRow;
+        awakenScrollBars();
+        invalidate();
+        return true;
+    }
+
+    /**
+     * Get the output of the command at the top of the view, or of the last command if not scrolled back, as marked by
+     * the shell through shell integration escape sequences.
+     *
+     * @return the output, or null if there is no marked command output.
+     */
+    public String getCommandOutput() {
+        if (mEmulator == null) return null;
+        final TerminalBuffer screen = mEmulator.getScreen();
+        int row = mTopRow;
+        if (row == 0) {
+            // The last command is the one whose output started last:
+            row = screen.findShellMark(mEmulator.getCursorRow() + 1, TerminalBuffer.MARK_OUTPUT, true);
+            if (row == TerminalBuffer.NO_ROW) return null;
         }
+        final CharSequence output = screen.getCommandOutputView(row);
+        return (output == null) ? null : output.toString();
     }
 
     /** Toggle text selection mode in the view. */
@@ -841,8 +1156,7 @@ public final class TerminalView extends View {
                     }
                     switch (item.getItemId()) {
                         case 1:
-                            String selectedText = mEmulator.getSelectedText(mSelX1, mSelY1, mSelX2, mSelY2).trim();
-                            mTermSession.clipboardText(selectedText);
+                            mClient.copySelectedText(mEmulator, mSelX1, mSelY1, mSelX2, mSelY2);
                             break;
                         case 2:
                             ClipboardManager clipboard = (ClipboardManager) getContext().getSystemService(Context.CLIPBOARD_SERVICE);
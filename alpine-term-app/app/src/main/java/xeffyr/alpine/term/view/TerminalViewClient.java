@@ -4,6 +4,7 @@ import android.view.KeyEvent;
 import android.view.MotionEvent;
 import android.view.ScaleGestureDetector;
 
+import xeffyr.alpine.term.terminal.TerminalEmulator;
 import xeffyr.alpine.term.terminal.TerminalSession;
 
 /**
@@ -27,6 +28,12 @@ public interface TerminalViewClient {
 
     void copyModeChanged(boolean copyMode);
 
+    /**
+     * Copy the selected text to the clipboard, with rows in external coordinates of the screen. Called on the main
+     * thread, which should not be kept busy by large selections.
+     */
+    void copySelectedText(TerminalEmulator emulator, int x1, int y1, int x2, int y2);
+
     boolean onKeyDown(int keyCode, KeyEvent e, TerminalSession session);
 
     boolean onKeyUp(int keyCode, KeyEvent e);
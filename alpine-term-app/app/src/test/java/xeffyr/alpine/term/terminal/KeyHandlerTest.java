@@ -0,0 +1,66 @@
+package xeffyr.alpine.term.terminal;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/** Checks that the codes precomputed by {@link KeyHandler#getCodeBytes(int, int, boolean, boolean)} are the same as computed on demand. */
+public class KeyHandlerTest {
+
+    private static final int[] KEY_MODES = {
+        0, KeyHandler.KEYMOD_SHIFT, KeyHandler.KEYMOD_CTRL, KeyHandler.KEYMOD_CTRL | KeyHandler.KEYMOD_SHIFT,
+        KeyHandler.KEYMOD_ALT, KeyHandler.KEYMOD_ALT | KeyHandler.KEYMOD_SHIFT, KeyHandler.KEYMOD_ALT | KeyHandler.KEYMOD_CTRL,
+        KeyHandler.KEYMOD_ALT | KeyHandler.KEYMOD_CTRL | KeyHandler.KEYMOD_SHIFT
+    };
+
+    private static byte[] encode(String code) {
+        return (code == null) ? null : code.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void assertSameCode(int keyCode, int keyMode, boolean cursorApp, boolean keypadApp) {
+        String message = "keyCode=" + keyCode + ", keyMode=0x" + Integer.toHexString(keyMode) + ", cursorApp=" + cursorApp + ", keypadApp=" + keypadApp;
+        assertArrayEquals(message, encode(KeyHandler.getCode(keyCode, keyMode, cursorApp, keypadApp)),
+            KeyHandler.getCodeBytes(keyCode, keyMode, cursorApp, keypadApp));
+    }
+
+    @Test
+    public void testHandledKeyCodes() {
+        for (int keyCode : KeyHandler.HANDLED_KEYCODES) {
+            for (int keyMode : KEY_MODES) {
+                for (int mode = 0; mode < 4; mode++) {
+                    assertSameCode(keyCode, keyMode, (mode & 2) != 0, (mode & 1) != 0);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testTermcapMappings() {
+        for (Map.Entry<String, Integer> entry : KeyHandler.TERMCAP_TO_KEYCODE.entrySet()) {
+            final int keyCode = entry.getValue() & ~(KeyHandler.KEYMOD_ALT | KeyHandler.KEYMOD_CTRL | KeyHandler.KEYMOD_SHIFT);
+            final int keyMode = entry.getValue() & (KeyHandler.KEYMOD_ALT | KeyHandler.KEYMOD_CTRL | KeyHandler.KEYMOD_SHIFT);
+            for (int mode = 0; mode < 4; mode++) {
+                final boolean cursorApp = (mode & 2) != 0;
+                final boolean keypadApp = (mode & 1) != 0;
+                String message = "termcap=" + entry.getKey() + ", cursorApp=" + cursorApp + ", keypadApp=" + keypadApp;
+                byte[] expected = encode(KeyHandler.getCodeFromTermcap(entry.getKey(), cursorApp, keypadApp));
+                assertNotNull(message, expected);
+                assertArrayEquals(message, expected, KeyHandler.getCodeBytes(keyCode, keyMode, cursorApp, keypadApp));
+            }
+        }
+    }
+
+    @Test
+    public void testUnhandledKeyCodes() {
+        assertNull(KeyHandler.getCodeBytes(-1, 0, false, false));
+        assertNull(KeyHandler.getCodeBytes(Integer.MAX_VALUE, 0, false, false));
+        for (int keyCode = 0; keyCode < 300; keyCode++) {
+            assertSameCode(keyCode, 0, false, false);
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package xeffyr.alpine.term.terminal;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/** Checks the bytes sent by {@link TerminalEmulator#sendMouseEvents(int, int, int, boolean, int)} in each mouse protocol. */
+public class MouseEventTest {
+
+    /** Collects the bytes written by the emulator, unless discarding them to not allocate. */
+    private static final class Output extends TerminalOutput {
+        final ByteArrayOutputStream mWritten = new ByteArrayOutputStream();
+        boolean mDiscard;
+        int mWriteCount;
+
+        @Override
+        public void write(byte[] data, int offset, int count) {
+            mWriteCount++;
+            if (!mDiscard) mWritten.write(data, offset, count);
+        }
+
+        @Override
+        public void titleChanged(String oldTitle, String newTitle) {
+        }
+
+        @Override
+        public void clipboardText(String text) {
+        }
+
+        @Override
+        public void clipboardTextRequested() {
+        }
+
+        @Override
+        public void onBell() {
+        }
+
+        @Override
+        public void onColorsChanged() {
+        }
+
+        byte[] take() {
+            byte[] result = mWritten.toByteArray();
+            mWritten.reset();
+            return result;
+        }
+    }
+
+    private Output mOutput;
+    private TerminalEmulator mEmulator;
+
+    @Before
+    public void setUp() {
+        mOutput = new Output();
+        mEmulator = new TerminalEmulator(mOutput, 1000, 500, 100);
+        enterString("\033[?1002h");
+    }
+
+    private void enterString(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        mEmulator.append(bytes, bytes.length);
+        mOutput.take();
+    }
+
+    private static byte[] bytes(int... values) {
+        byte[] result = new byte[values.length];
+        for (int i = 0; i < values.length; i++) result[i] = (byte) values[i];
+        return result;
+    }
+
+    private void assertSent(String expected) {
+        assertEquals(expected, new String(mOutput.take(), StandardCharsets.ISO_8859_1));
+    }
+
+    @Test
+    public void testX10() {
+        mEmulator.sendMouseEvent(TerminalEmulator.MOUSE_LEFT_BUTTON, 10, 20, true);
+        assertSent("\033[M *4");
+        // Releases are reported as button 3:
+        mEmulator.sendMouseEvent(TerminalEmulator.MOUSE_LEFT_BUTTON, 10, 20, false);
+        assertSent("\033[M#*4");
+        mEmulator.sendMouseEvent(TerminalEmulator.MOUSE_WHEELUP_BUTTON, 223, 1, true);
+        assertArrayEquals(bytes(27, '[', 'M', 96, 255, 33), mOutput.take());
+        // Coordinates not fitting in a byte are not reported:
+        mEmulator.sendMouseEvent(TerminalEmulator.MOUSE_LEFT_BUTTON, 224, 1, true);
+        mEmulator.sendMouseEvent(TerminalEmulator.MOUSE_LEFT_BUTTON, 1, 224, true);
+        assertSent("");
+    }
+
+    @Test
+    public void testSgr() {
+        enterString("\033[?1006h");
+        mEmulator.sendMouseEvent(TerminalEmulator.MOUSE_LEFT_BUTTON, 300, 20, true);
+        assertSent("\033[<0;300;20M");
+        mEmulator.sendMouseEvent(TerminalEmulator.MOUSE_LEFT_BUTTON, 300, 20, false);
+        assertSent("\033[<0;300;20m");
+        mEmulator.sendMouseEvent(TerminalEmulator.MOUSE_LEFT_BUTTON_MOVED, 1, 2, true);
+        assertSent("\033[<32;1;2M");
+        mEmulator.sendMouseEvent(TerminalEmulator.MOUSE_WHEELDOWN_BUTTON, 1000, 500, true);
+        assertSent("\033[<65;1000;500M");
+    }
+
+    @Test
+    public void testUtf8() {
+        enterString("\033[?1005h");
+        mEmulator.sendMouseEvent(TerminalEmulator.MOUSE_LEFT_BUTTON, 10, 20, true);
+        assertSent("\033[M *4");
+        // 100 + 32 = U+0084 and 300 + 32 = U+014C:
+        mEmulator.sendMouseEvent(TerminalEmulator.MOUSE_LEFT_BUTTON, 100, 300, false);
+        assertArrayEquals(bytes(27, '[', 'M', '#', 0xC2, 0x84, 0xC5, 0x8C), mOutput.take());
+        // Coordinates not fitting in two bytes are not reported, which is above 2015:
+        mEmulator.resize(2100, 10);
+        mEmulator.sendMouseEvent(TerminalEmulator.MOUSE_LEFT_BUTTON, 2015, 1, true);
+        assertArrayEquals(bytes(27, '[', 'M', ' ', 0xDF, 0xBF, '!'), mOutput.take());
+        mEmulator.sendMouseEvent(TerminalEmulator.MOUSE_LEFT_BUTTON, 2016, 1, true);
+        assertSent("");
+    }
+
+    @Test
+    public void testUrxvt() {
+        enterString("\033[?1015h");
+        mEmulator.sendMouseEvent(TerminalEmulator.MOUSE_WHEELUP_BUTTON, 300, 20, true);
+        assertSent("\033[96;300;20M");
+        mEmulator.sendMouseEvent(TerminalEmulator.MOUSE_LEFT_BUTTON, 5, 6, false);
+        assertSent("\033[35;5;6M");
+    }
+
+    @Test
+    public void testLastProtocolSetWins() {
+        enterString("\033[?1006h\033[?1015h");
+        mEmulator.sendMouseEvent(TerminalEmulator.MOUSE_LEFT_BUTTON, 1, 1, true);
+        assertSent("\033[32;1;1M");
+        enterString("\033[?1005h");
+        mEmulator.sendMouseEvent(TerminalEmulator.MOUSE_LEFT_BUTTON, 1, 1, true);
+        assertSent("\033[M !!");
+        enterString("\033[?1006h");
+        mEmulator.sendMouseEvent(TerminalEmulator.MOUSE_LEFT_BUTTON, 1, 1, true);
+        assertSent("\033[<0;1;1M");
+        enterString("\033[?1006l");
+        mEmulator.sendMouseEvent(TerminalEmulator.MOUSE_LEFT_BUTTON, 1, 1, true);
+        assertSent("\033[M !!");
+    }
+
+    @Test
+    public void testRepeatedEventsAreWrittenTogether() {
+        enterString("\033[?1006h");
+        mEmulator.sendMouseEvents(TerminalEmulator.MOUSE_WHEELUP_BUTTON, 7, 9, true, 100);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 100; i++) expected.append("\033[<64;7;9M");
+        assertSent(expected.toString());
+        assertTrue("writes: " + mOutput.mWriteCount, mOutput.mWriteCount < 10);
+    }
+
+    @Test
+    public void testNoAllocation() {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadBean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+        Assume.assumeTrue(allocationBean.isThreadAllocatedMemorySupported() && allocationBean.isThreadAllocatedMemoryEnabled());
+
+        final long threadId = Thread.currentThread().getId();
+        final int events = 100_000;
+        mOutput.mDiscard = true;
+        // SGR, urxvt, UTF-8 and then X10 again:
+        for (String protocol : new String[]{"1006h", "1015h", "1005h", "1005l"}) {
+            enterString("\033[?" + protocol);
+            // Warm up, so that the measurement does not include class loading or compilation:
+            sendDragEvents(events);
+            final long allocatedBefore = allocationBean.getThreadAllocatedBytes(threadId);
+            sendDragEvents(events);
+            final long allocated = allocationBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+            // Allocating anything per event would be at least 16 bytes each:
+            assertTrue("DECSET " + protocol + " allocated " + allocated + " bytes", allocated < events);
+        }
+    }
+
+    private void sendDragEvents(int count) {
+        for (int i = 0; i < count; i++) {
+            mEmulator.sendMouseEvent(TerminalEmulator.MOUSE_LEFT_BUTTON_MOVED, 1 + i % 900, 1 + i % 400, true);
+        }
+    }
+}